@@ -0,0 +1,330 @@
+/*
+
+Copyright 2012 Daniel Gonzalez Peña, Osvaldo Graña
+
+
+This file is part of the bicycle Project.
+
+bicycle Project is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+bicycle Project is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser Public License for more details.
+
+You should have received a copy of the GNU Lesser Public License
+along with bicycle Project.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package es.cnio.bioinfo.bicycle;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads the uncompressed bytes of a sequence of BGZF files between two virtual offsets. Each BGZF block is an
+ * independent deflate stream, so several of these streams can inflate disjoint regions of the same files in
+ * parallel.
+ *
+ * @author lipido
+ */
+public class BGZFSequenceInputStream extends InputStream {
+
+	static final int MAX_BLOCK_SIZE = 65536;
+	private static final int BLOCK_HEADER_LENGTH = 18;
+	private static final int BLOCK_FOOTER_LENGTH = 8;
+
+	/**
+	 * A position in the uncompressed stream: the file, the block inside the file, and the offset inside the
+	 * uncompressed block.
+	 */
+	public static class VirtualOffset implements Comparable<VirtualOffset> {
+		final int file;
+		final int block;
+		final int offset;
+
+		VirtualOffset(int file, int block, int offset) {
+			this.file = file;
+			this.block = block;
+			this.offset = offset;
+		}
+
+		@Override
+		public int compareTo(VirtualOffset o) {
+			if (this.file != o.file) return this.file < o.file ? -1 : 1;
+			if (this.block != o.block) return this.block < o.block ? -1 : 1;
+			return this.offset < o.offset ? -1 : (this.offset == o.offset ? 0 : 1);
+		}
+
+		@Override
+		public String toString() {
+			return this.file + ":" + this.block + ":" + this.offset;
+		}
+	}
+
+	/**
+	 * The block offsets of a list of BGZF files
+	 */
+	public static class Index {
+		private final List<File> files;
+		private final long[][] blockOffsets;
+
+		private Index(List<File> files, long[][] blockOffsets) {
+			this.files = files;
+			this.blockOffsets = blockOffsets;
+		}
+
+		public static Index build(List<File> files) throws IOException {
+			long[][] offsets = new long[files.size()][];
+			for (int i = 0; i < files.size(); i++) {
+				offsets[i] = scanBlocks(files.get(i));
+			}
+			return new Index(files, offsets);
+		}
+
+		public List<File> getFiles() {
+			return files;
+		}
+
+		public int getBlockCount(int file) {
+			return blockOffsets[file].length;
+		}
+
+		public long getBlockOffset(int file, int block) {
+			return blockOffsets[file][block];
+		}
+
+		public long getBlockLength(int file, int block) {
+			if (block + 1 < blockOffsets[file].length) {
+				return blockOffsets[file][block + 1] - blockOffsets[file][block];
+			} else {
+				return files.get(file).length() - blockOffsets[file][block];
+			}
+		}
+
+		/**
+		 * Normalizes a block position, so a block beyond the last block of a file refers to the first block of the
+		 * following file.
+		 */
+		VirtualOffset normalize(int file, int block, int offset) {
+			while (file < files.size() && block >= blockOffsets[file].length) {
+				file++;
+				block = 0;
+				offset = 0;
+			}
+			return new VirtualOffset(file, block, offset);
+		}
+
+		VirtualOffset end() {
+			return new VirtualOffset(files.size(), 0, 0);
+		}
+
+		private static long[] scanBlocks(File f) throws IOException {
+			long[] offsets = new long[1024];
+			int count = 0;
+			ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_LENGTH);
+			try (FileChannel channel = new FileInputStream(f).getChannel()) {
+				long position = 0;
+				long length = channel.size();
+				while (position < length) {
+					header.clear();
+					readFully(channel, header, position);
+					int blockSize = getBlockSize(header.array(), f, position);
+
+					if (count == offsets.length) {
+						offsets = Arrays.copyOf(offsets, count * 2);
+					}
+					offsets[count++] = position;
+					position += blockSize;
+				}
+			}
+			return Arrays.copyOf(offsets, count);
+		}
+	}
+
+	private final Index index;
+	private final VirtualOffset end;
+
+	private int currentFile;
+	private int currentBlock;
+	private FileChannel channel;
+
+	private final Inflater inflater = new Inflater(true);
+	private ByteBuffer compressed = ByteBuffer.allocate(MAX_BLOCK_SIZE);
+	private final byte[] uncompressed = new byte[MAX_BLOCK_SIZE];
+	private int uncompressedPos = 0;
+	private int uncompressedLimit = 0;
+	private boolean finished = false;
+
+	public BGZFSequenceInputStream(Index index, VirtualOffset start, VirtualOffset end) throws IOException {
+		this.index = index;
+		this.end = end;
+		this.currentFile = start.file;
+		this.currentBlock = start.block;
+
+		if (start.compareTo(end) >= 0) {
+			this.finished = true;
+		} else {
+			loadBlock();
+			this.uncompressedPos = start.offset;
+		}
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		int readed = this.read(b, 0, 1);
+		return readed == -1 ? -1 : (b[0] & 0xff);
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		while (!finished && uncompressedPos >= uncompressedLimit) {
+			nextBlock();
+		}
+		if (finished) {
+			return -1;
+		}
+		int readed = Math.min(len, uncompressedLimit - uncompressedPos);
+		System.arraycopy(uncompressed, uncompressedPos, b, off, readed);
+		uncompressedPos += readed;
+		return readed;
+	}
+
+	/**
+	 * Returns the block of the current file where the last readed byte comes from
+	 */
+	public int getCurrentBlock() {
+		return currentBlock;
+	}
+
+	/**
+	 * Returns the position, inside the current uncompressed block, of the next byte to be read
+	 */
+	public int getPositionInBlock() {
+		return uncompressedPos;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (channel != null) {
+			channel.close();
+			channel = null;
+		}
+		inflater.end();
+		finished = true;
+	}
+
+	private void nextBlock() throws IOException {
+		VirtualOffset next = index.normalize(currentFile, currentBlock + 1, 0);
+		if (next.file != currentFile && channel != null) {
+			channel.close();
+			channel = null;
+		}
+		currentFile = next.file;
+		currentBlock = next.block;
+		if (next.compareTo(end) >= 0) {
+			finished = true;
+			return;
+		}
+		loadBlock();
+	}
+
+	private void loadBlock() throws IOException {
+		if (channel == null) {
+			channel = new FileInputStream(index.getFiles().get(currentFile)).getChannel();
+		}
+		int length = (int) index.getBlockLength(currentFile, currentBlock);
+		uncompressedLimit = inflateBlock(channel, index.getBlockOffset(currentFile, currentBlock), length);
+		uncompressedPos = 0;
+
+		if (currentFile == end.file && currentBlock == end.block) {
+			uncompressedLimit = Math.min(uncompressedLimit, end.offset);
+		}
+	}
+
+	private int inflateBlock(FileChannel channel, long position, int length) throws IOException {
+		if (compressed.capacity() < length) {
+			compressed = ByteBuffer.allocate(length);
+		}
+		compressed.clear();
+		compressed.limit(length);
+		readFully(channel, compressed, position);
+
+		byte[] block = compressed.array();
+		int extraLength = (block[10] & 0xff) | ((block[11] & 0xff) << 8);
+		int dataStart = 12 + extraLength;
+		int dataLength = length - dataStart - BLOCK_FOOTER_LENGTH;
+		int expected = (block[length - 4] & 0xff) | ((block[length - 3] & 0xff) << 8)
+				| ((block[length - 2] & 0xff) << 16) | ((block[length - 1] & 0xff) << 24);
+
+		inflater.reset();
+		inflater.setInput(block, dataStart, dataLength);
+		try {
+			int inflated = 0;
+			while (inflated < expected && !inflater.finished()) {
+				int n = inflater.inflate(uncompressed, inflated, expected - inflated);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				inflated += n;
+			}
+			if (inflated != expected) {
+				throw new IOException("Corrupted BGZF block at " + position + " in " + index.getFiles().get
+						(currentFile) + ". Expected " + expected + " bytes, inflated " + inflated);
+			}
+			return inflated;
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupted BGZF block at " + position + " in " + index.getFiles().get(currentFile),
+					e);
+		}
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int readed = channel.read(buffer, position);
+			if (readed == -1) {
+				throw new IOException("Unexpected end of BGZF file at " + position);
+			}
+			position += readed;
+		}
+	}
+
+	/**
+	 * Returns the total size of the BGZF block whose header is given, or throws an exception if the header is not
+	 * a BGZF one.
+	 */
+	private static int getBlockSize(byte[] header, File f, long position) throws IOException {
+		if ((header[0] & 0xff) != 0x1f || (header[1] & 0xff) != 0x8b || header[2] != 8 || (header[3] & 4) == 0) {
+			throw new IOException("Not a BGZF block at " + position + " in " + f);
+		}
+		// the BC subfield is the first (and usually the only) extra subfield
+		if (header[12] != 'B' || header[13] != 'C' || header[14] != 2 || header[15] != 0) {
+			throw new IOException("BGZF block without BC subfield at " + position + " in " + f);
+		}
+		return ((header[16] & 0xff) | ((header[17] & 0xff) << 8)) + 1;
+	}
+
+	/**
+	 * Returns true if the given bytes (the first bytes of a file) are the header of a BGZF block
+	 */
+	static boolean isBGZFHeader(byte[] header, int length) {
+		return length >= BLOCK_HEADER_LENGTH
+				&& (header[0] & 0xff) == 0x1f && (header[1] & 0xff) == 0x8b && header[2] == 8 && (header[3] & 4) != 0
+				&& header[12] == 'B' && header[13] == 'C';
+	}
+}
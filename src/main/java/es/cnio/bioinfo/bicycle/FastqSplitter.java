@@ -35,107 +35,195 @@ import java.util.List;
 
 public class FastqSplitter {
 
+	private enum Compression {
+		NONE, GZIP, BGZF
+	}
 
 	public static List<BufferedReader> splitfastq(List<File> fastqs, int maxChunks) throws IOException {
+		return splitfastq(fastqs, maxChunks, false);
+	}
 
-		//get total length
-		long totalLength = 0;
+	/**
+	 * Splits a list of fastq files into, at most, maxChunks readers. Files can be plain, gzip or BGZF compressed
+	 * (but all of them in the same way) and are read directly, without decompressing them to disk.
+	 *
+	 * @param fastqs          the fastq files
+	 * @param maxChunks       the maximum number of readers to return
+	 * @param keepRecordOrder if true, compressed files are dealt to the readers in batches of records, so the n-th
+	 *                        record of two file lists with the same number of records ends in the same reader at
+	 *                        the same position, which is needed to split the two mates of paired-end samples
+	 * @return the readers
+	 * @throws IOException
+	 */
+	public static List<BufferedReader> splitfastq(List<File> fastqs, int maxChunks, boolean keepRecordOrder) throws
+			IOException {
+
+		final List<BufferedReader> toret = new LinkedList<BufferedReader>();
+		for (InputStream is : splitfastqStreams(fastqs, maxChunks, keepRecordOrder)) {
+			toret.add(new BufferedReader(new InputStreamReader(is)));
+		}
+		return toret;
+	}
 
-		// which is the global starting byte (inclusive) of each file
-		List<Long> fileStarts = new LinkedList<Long>();
+	/**
+	 * Same as {@link #splitfastq(List, int, boolean)}, but returns the raw byte streams of each chunk.
+	 */
+	public static List<InputStream> splitfastqStreams(List<File> fastqs, int maxChunks, boolean keepRecordOrder)
+			throws IOException {
 
-		for (File f : fastqs) {
-			fileStarts.add(totalLength);
-			totalLength += f.length();
+		switch (getCompression(fastqs)) {
+			case BGZF:
+				if (!keepRecordOrder) {
+					return splitBGZFFastq(fastqs, maxChunks);
+				}
+				// chunks of BGZF blocks do not contain the same records in both mates, inflate in a pipeline
+			case GZIP:
+				return new GzipInflatePipeline(fastqs, maxChunks, keepRecordOrder).getInputStreams();
+			default:
+				return splitPlainFastq(fastqs, maxChunks);
 		}
+	}
 
+	private static List<InputStream> splitPlainFastq(List<File> fastqs, int maxChunks) throws IOException {
+		MappedFileSequence sequence = new MappedFileSequence(fastqs);
 
+		long totalLength = sequence.length();
 		long chunkStep = totalLength / maxChunks;
-		//System.out.println("chunk step: "+chunkStep);
 
+		final List<InputStream> toret = new LinkedList<InputStream>();
 		long currentStart = 0;
-		List<Long> chunks = new LinkedList<Long>();
-
 		for (int chunk = 0; chunk < maxChunks; chunk++) {
-			long currentEnd = currentStart + chunkStep;
+			long currentEnd = chunk == maxChunks - 1 ? totalLength : sequence.findRecordStart(currentStart +
+					Math.max(chunkStep, 1));
 
-			final int fileIndex = getFileForPosition(currentEnd, fileStarts);
-			File f = fastqs.get(fileIndex);
+			toret.add(new MappedFileSequenceInputStream(sequence, currentStart, currentEnd));
+			currentStart = currentEnd;
+		}
 
+		return toret;
 
-			final long previous = currentEnd - fileStarts.get(fileIndex);
-			currentEnd = adjustPos(f, previous) + fileStarts.get(fileIndex);
-			//System.out.println("adjusted "+f+" from "+previous+" to "+currentEnd);
+	}
 
 
-			chunks.add(currentEnd);
-			currentStart = currentEnd + 1;
+	private static List<InputStream> splitBGZFFastq(List<File> fastqs, int maxChunks) throws IOException {
+		BGZFSequenceInputStream.Index index = BGZFSequenceInputStream.Index.build(fastqs);
 
-			if (currentEnd == totalLength - 1) {
-				break;
-			}
+		//get total compressed length
+		long totalLength = 0;
+		for (File f : fastqs) {
+			totalLength += f.length();
 		}
+		long chunkStep = totalLength / maxChunks;
 
-		currentStart = 0;
-		final List<BufferedReader> toret = new LinkedList<BufferedReader>();
-		for (Long end : chunks) {
-			final InputStream is = new FileSequenceInputStream(fastqs, end, currentStart);
-
-			toret.add(new BufferedReader(new InputStreamReader(is)));
-			currentStart = end;
+		// chunk boundaries, which are the start of a record
+		List<BGZFSequenceInputStream.VirtualOffset> boundaries = new LinkedList<BGZFSequenceInputStream
+				.VirtualOffset>();
+		boundaries.add(index.normalize(0, 0, 0));
+
+		long accumulated = 0;
+		long nextBoundary = chunkStep;
+		for (int file = 0; file < fastqs.size(); file++) {
+			for (int block = 0; block < index.getBlockCount(file); block++) {
+				if (accumulated >= nextBoundary && boundaries.size() < maxChunks) {
+					BGZFSequenceInputStream.VirtualOffset boundary = adjustPos(index, file, block);
+					if (boundary.compareTo(boundaries.get(boundaries.size() - 1)) > 0) {
+						boundaries.add(boundary);
+					}
+					nextBoundary += chunkStep;
+				}
+				accumulated += index.getBlockLength(file, block);
+			}
 		}
+		boundaries.add(index.end());
 
+		final List<InputStream> toret = new LinkedList<InputStream>();
+		for (int i = 0; i < boundaries.size() - 1; i++) {
+			toret.add(new BGZFSequenceInputStream(index, boundaries.get(i), boundaries.get(i + 1)));
+		}
 		return toret;
-
 	}
 
-
-	private static long adjustPos(File f, long skip) throws IOException {
-		//long previous = skip;
-
-		// find the next @ after the skip-th byte in f
-		InputStream is = new FileInputStream(f);
-		is.skip(skip);
-		byte bytes[] = new byte[1024]; //chunk big enough 
-		int readed;
-		while ((readed = is.read(bytes)) != -1) {
-			//find @
-			String s = new String(bytes, 0, readed);
-
-			int index = -1;
-			while ((index = s.indexOf("\n@")) != -1) {
-				//are we in a sequence name line, or in the middle of the quality string?
-				//if we are in the sequence name line, after two eols we must find a '+' char
-				//if not, we must skip this quality line
-
-				String[] tokens = s.substring(index + 1).split("\n", 3);
-
-				if (tokens.length < 3) {
-					throw new RuntimeException("cant find 3 \\n chars in fastq, which is expected in the readed buffer" +
-							". Buffer is: " + s);
-				}
-				if (tokens[2].startsWith("+")) {
-					return skip + index + 1;
-				} else {
-					int index2 = s.substring(index + 1).indexOf('\n');
-					if (index2 == -1) {
-						throw new RuntimeException("cant find \\n char in fastq, which is expected in the readed " +
-								"buffer. Buffer is: " + s);
+	/**
+	 * Finds the first record starting at or after the given block
+	 */
+	private static BGZFSequenceInputStream.VirtualOffset adjustPos(BGZFSequenceInputStream.Index index, int file,
+																   int block) throws IOException {
+		if (block == 0) {
+			// files start with a record
+			return index.normalize(file, 0, 0);
+		}
+		BGZFSequenceInputStream.VirtualOffset nextFile = index.normalize(file + 1, 0, 0);
+		BGZFSequenceInputStream is = new BGZFSequenceInputStream(index, index.normalize(file, block, 0), nextFile);
+		try {
+			// block, offset and first char of the last lines starting in this stream, indexed by line number % 4
+			int[] lineBlocks = new int[4];
+			int[] lineOffsets = new int[4];
+			byte[] lineFirstChars = new byte[4];
+			int lines = 0;
+			boolean atLineStart = false;
+
+			byte[] buffer = new byte[BGZFSequenceInputStream.MAX_BLOCK_SIZE];
+			int readed;
+			while ((readed = is.read(buffer)) != -1) {
+				// each read returns bytes of only one block
+				int currentBlock = is.getCurrentBlock();
+				int readStart = is.getPositionInBlock() - readed;
+				for (int i = 0; i < readed; i++) {
+					if (atLineStart) {
+						int line = lines % 4;
+						lineBlocks[line] = currentBlock;
+						lineOffsets[line] = readStart + i;
+						lineFirstChars[line] = buffer[i];
+						lines++;
+						atLineStart = false;
+
+						//are we in a sequence name line, or in the middle of the quality string?
+						//if we are in a '+' line, the line two lines before must be a sequence name line
+						int nameLine = (lines - 3) % 4;
+						if (buffer[i] == '+' && lines >= 3 && lineFirstChars[nameLine] == '@') {
+							return index.normalize(file, lineBlocks[nameLine], lineOffsets[nameLine]);
+						}
+					}
+					if (buffer[i] == '\n') {
+						atLineStart = true;
 					}
-					return skip + index + 1 + index2;
 				}
 			}
+			return nextFile;
+		} finally {
+			is.close();
 		}
-		return f.length();
 	}
 
-	private static int getFileForPosition(long currentEnd, List<Long> fileStarts) {
-		//System.out.println(fileStarts);
-		int i = 0;
-		while (i < fileStarts.size() && fileStarts.get(i) <= currentEnd) {
-			i++;
+	private static Compression getCompression(List<File> fastqs) throws IOException {
+		Compression toret = null;
+		for (File f : fastqs) {
+			byte[] header = new byte[18];
+			int readed = 0;
+			InputStream is = new FileInputStream(f);
+			try {
+				int n;
+				while (readed < header.length && (n = is.read(header, readed, header.length - readed)) != -1) {
+					readed += n;
+				}
+			} finally {
+				is.close();
+			}
+
+			Compression compression = Compression.NONE;
+			if (BGZFSequenceInputStream.isBGZFHeader(header, readed)) {
+				compression = Compression.BGZF;
+			} else if (readed >= 2 && (header[0] & 0xff) == 0x1f && (header[1] & 0xff) == 0x8b) {
+				compression = Compression.GZIP;
+			}
+
+			if (toret != null && toret != compression) {
+				throw new IllegalArgumentException("All fastq files must be compressed in the same way. " + f + " " +
+						"is " + compression + ", but previous files are " + toret);
+			}
+			toret = compression;
 		}
-		return i - 1;
+		return toret == null ? Compression.NONE : toret;
 	}
 
 	public static void main(String[] args) throws IOException {
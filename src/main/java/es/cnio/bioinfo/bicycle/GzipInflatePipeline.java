@@ -0,0 +1,218 @@
+/*
+
+Copyright 2012 Daniel Gonzalez Peña, Osvaldo Graña
+
+
+This file is part of the bicycle Project.
+
+bicycle Project is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+bicycle Project is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser Public License for more details.
+
+You should have received a copy of the GNU Lesser Public License
+along with bicycle Project.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package es.cnio.bioinfo.bicycle;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Inflates gzip FASTQ files in background threads and deals the decompressed records to a fixed number of
+ * InputStreams, in batches of whole records. Batch j of a producer goes to output (j mod outputs), so two files
+ * with the same number of records (the two mates of a paired-end sample) are dealt in exactly the same way.
+ * <p>
+ * A gzip member cannot be inflated in parallel, but different files can, so there is one producer per group of
+ * files. If the record order should be kept across files, a single producer inflates all of them in order.
+ *
+ * @author lipido
+ */
+class GzipInflatePipeline {
+
+	private static final int RECORDS_PER_BATCH = 4096;
+	private static final int QUEUE_CAPACITY = 8;
+	private static final int BUFFER_SIZE = 65536;
+
+	private static final byte[] END = new byte[0];
+
+	private final List<BlockingQueue<byte[]>> queues = new ArrayList<BlockingQueue<byte[]>>();
+	private final AtomicInteger runningProducers = new AtomicInteger();
+	private volatile IOException error;
+
+	GzipInflatePipeline(List<File> files, int outputs, boolean keepRecordOrder) {
+		for (int i = 0; i < outputs; i++) {
+			queues.add(new ArrayBlockingQueue<byte[]>(QUEUE_CAPACITY));
+		}
+
+		final List<List<File>> groups = new ArrayList<List<File>>();
+		if (keepRecordOrder) {
+			groups.add(files);
+		} else {
+			int producers = Math.min(files.size(), Math.max(1, outputs));
+			for (int i = 0; i < producers; i++) {
+				groups.add(new ArrayList<File>());
+			}
+			for (int i = 0; i < files.size(); i++) {
+				groups.get(i % producers).add(files.get(i));
+			}
+		}
+
+		runningProducers.set(groups.size());
+		for (int i = 0; i < groups.size(); i++) {
+			final List<File> group = groups.get(i);
+			final int firstQueue = i;
+			Thread producer = new Thread("gzip-inflater-" + i) {
+				@Override
+				public void run() {
+					produce(group, firstQueue);
+				}
+			};
+			producer.setDaemon(true);
+			producer.start();
+		}
+	}
+
+	List<InputStream> getInputStreams() {
+		List<InputStream> toret = new ArrayList<InputStream>();
+		for (BlockingQueue<byte[]> queue : queues) {
+			toret.add(new QueueInputStream(queue));
+		}
+		return toret;
+	}
+
+	private void produce(List<File> group, int firstQueue) {
+		int batch = firstQueue;
+		try {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			byte[] current = new byte[BUFFER_SIZE];
+			int currentLength = 0;
+			int lines = 0;
+
+			for (File f : group) {
+				InputStream is = new GZIPInputStream(new FileInputStream(f), BUFFER_SIZE);
+				try {
+					int readed;
+					while ((readed = is.read(buffer)) != -1) {
+						int from = 0;
+						for (int i = 0; i < readed; i++) {
+							if (buffer[i] == '\n' && ++lines == RECORDS_PER_BATCH * 4) {
+								current = append(current, currentLength, buffer, from, i + 1 - from);
+								currentLength += i + 1 - from;
+								put(batch++, Arrays.copyOf(current, currentLength));
+								currentLength = 0;
+								lines = 0;
+								from = i + 1;
+							}
+						}
+						current = append(current, currentLength, buffer, from, readed - from);
+						currentLength += readed - from;
+					}
+				} finally {
+					is.close();
+				}
+				if (currentLength > 0 && current[currentLength - 1] != '\n') {
+					// last line of a file without end of line
+					current = append(current, currentLength, new byte[]{'\n'}, 0, 1);
+					currentLength++;
+					lines++;
+				}
+			}
+			if (currentLength > 0) {
+				put(batch, Arrays.copyOf(current, currentLength));
+			}
+		} catch (IOException e) {
+			error = e;
+		} catch (InterruptedException e) {
+			error = new IOException("gzip inflater interrupted", e);
+		} finally {
+			// on errors, consumers will find the error while polling
+			if (runningProducers.decrementAndGet() == 0 && error == null) {
+				for (BlockingQueue<byte[]> queue : queues) {
+					try {
+						queue.put(END);
+					} catch (InterruptedException e) {
+						error = new IOException("gzip inflater interrupted", e);
+					}
+				}
+			}
+		}
+	}
+
+	private void put(int batch, byte[] data) throws InterruptedException {
+		queues.get(batch % queues.size()).put(data);
+	}
+
+	private static byte[] append(byte[] dest, int destLength, byte[] src, int from, int length) {
+		if (destLength + length > dest.length) {
+			dest = Arrays.copyOf(dest, Math.max(dest.length * 2, destLength + length));
+		}
+		System.arraycopy(src, from, dest, destLength, length);
+		return dest;
+	}
+
+	private class QueueInputStream extends InputStream {
+		private final BlockingQueue<byte[]> queue;
+		private byte[] current = null;
+		private int position = 0;
+		private boolean finished = false;
+
+		QueueInputStream(BlockingQueue<byte[]> queue) {
+			this.queue = queue;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			int readed = this.read(b, 0, 1);
+			return readed == -1 ? -1 : (b[0] & 0xff);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			while (!finished && (current == null || position == current.length)) {
+				try {
+					current = queue.poll(1, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					throw new IOException("interrupted while waiting for inflated data", e);
+				}
+				if (current == null) {
+					if (error != null) {
+						throw new IOException("error while inflating gzip input", error);
+					}
+					continue;
+				}
+				position = 0;
+				if (current == END) {
+					finished = true;
+				}
+			}
+			if (finished) {
+				return -1;
+			}
+			int readed = Math.min(len, current.length - position);
+			System.arraycopy(current, position, b, off, readed);
+			position += readed;
+			return readed;
+		}
+	}
+}
@@ -0,0 +1,178 @@
+/*
+
+Copyright 2012 Daniel Gonzalez Peña, Osvaldo Graña
+
+
+This file is part of the bicycle Project.
+
+bicycle Project is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+bicycle Project is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser Public License for more details.
+
+You should have received a copy of the GNU Lesser Public License
+along with bicycle Project.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package es.cnio.bioinfo.bicycle;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A sequence of files mapped in memory and addressed by a global offset. Files are mapped once, in segments of at
+ * most {@link #SEGMENT_SIZE} bytes, and the file handles are closed after mapping, so any number of chunks can be
+ * read concurrently through independent views of the same mappings.
+ *
+ * @author lipido
+ */
+public class MappedFileSequence {
+
+	static final int SEGMENT_SIZE = 1 << 30;
+
+	private final List<File> files;
+	private final long[] fileStarts;
+	private final long totalLength;
+
+	// segments of all files, in order, and its global start offsets
+	private final List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+	private final List<Long> segmentStarts = new ArrayList<Long>();
+
+	public MappedFileSequence(List<File> files) throws IOException {
+		this.files = files;
+		this.fileStarts = new long[files.size() + 1];
+
+		long start = 0;
+		for (int i = 0; i < files.size(); i++) {
+			fileStarts[i] = start;
+			FileChannel channel = new FileInputStream(files.get(i)).getChannel();
+			try {
+				long length = channel.size();
+				for (long position = 0; position < length; position += SEGMENT_SIZE) {
+					long size = Math.min(SEGMENT_SIZE, length - position);
+					segments.add(channel.map(FileChannel.MapMode.READ_ONLY, position, size));
+					segmentStarts.add(start + position);
+				}
+				start += length;
+			} finally {
+				// mappings remain valid after closing the channel
+				channel.close();
+			}
+		}
+		fileStarts[files.size()] = start;
+		this.totalLength = start;
+	}
+
+	public List<File> getFiles() {
+		return files;
+	}
+
+	public long length() {
+		return totalLength;
+	}
+
+	/**
+	 * Returns the byte at the given global offset
+	 */
+	public byte get(long position) {
+		int segment = getSegmentForPosition(position);
+		return segments.get(segment).get((int) (position - segmentStarts.get(segment)));
+	}
+
+	/**
+	 * Returns independent read-only views of the bytes between start (inclusive) and end (exclusive), one for each
+	 * mapped segment overlapping the region.
+	 */
+	public List<ByteBuffer> getRegion(long start, long end) {
+		List<ByteBuffer> toret = new ArrayList<ByteBuffer>();
+		if (start >= end) {
+			return toret;
+		}
+		for (int segment = getSegmentForPosition(start); segment < segments.size() && segmentStarts.get(segment) <
+				end; segment++) {
+			long segmentStart = segmentStarts.get(segment);
+			ByteBuffer view = segments.get(segment).asReadOnlyBuffer();
+			view.position((int) (Math.max(start, segmentStart) - segmentStart));
+			view.limit((int) (Math.min(end, segmentStart + view.capacity()) - segmentStart));
+			toret.add(view.slice());
+		}
+		return toret;
+	}
+
+	/**
+	 * Finds the global offset of the first fastq record starting at or after the given global offset. Records do
+	 * not span files, so if there is no record start in the rest of the file, the start of the next file is
+	 * returned.
+	 */
+	public long findRecordStart(long position) {
+		if (position >= totalLength) {
+			return totalLength;
+		}
+		int file = getFileForPosition(position);
+		long fileEnd = fileStarts[file + 1];
+		if (position == fileStarts[file]) {
+			return position;
+		}
+
+		// find the next \n@ starting at the previous byte
+		for (long i = position - 1; i < fileEnd - 1; i++) {
+			if (get(i) != '\n' || get(i + 1) != '@') {
+				continue;
+			}
+			//are we in a sequence name line, or in the middle of the quality string?
+			//if we are in the sequence name line, after two eols we must find a '+' char
+			//if not, the record starts after this quality line
+			long candidate = i + 1;
+			long thirdLine = nextLine(nextLine(candidate, fileEnd), fileEnd);
+			if (thirdLine < fileEnd && get(thirdLine) == '+') {
+				return candidate;
+			} else {
+				return nextLine(candidate, fileEnd);
+			}
+		}
+		return fileEnd;
+	}
+
+	/**
+	 * Returns the start of the line after the one containing position, or end if there is no such line
+	 */
+	private long nextLine(long position, long end) {
+		while (position < end && get(position) != '\n') {
+			position++;
+		}
+		return Math.min(position + 1, end);
+	}
+
+	private int getFileForPosition(long position) {
+		int i = 0;
+		while (i < files.size() && fileStarts[i + 1] <= position) {
+			i++;
+		}
+		return i;
+	}
+
+	private int getSegmentForPosition(long position) {
+		int low = 0;
+		int high = segmentStarts.size() - 1;
+		while (low < high) {
+			int middle = (low + high + 1) >>> 1;
+			if (segmentStarts.get(middle) <= position) {
+				low = middle;
+			} else {
+				high = middle - 1;
+			}
+		}
+		return low;
+	}
+}
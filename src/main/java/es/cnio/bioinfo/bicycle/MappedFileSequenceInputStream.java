@@ -0,0 +1,104 @@
+/*
+
+Copyright 2012 Daniel Gonzalez Peña, Osvaldo Graña
+
+
+This file is part of the bicycle Project.
+
+bicycle Project is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+bicycle Project is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser Public License for more details.
+
+You should have received a copy of the GNU Lesser Public License
+along with bicycle Project.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package es.cnio.bioinfo.bicycle;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads a region of a {@link MappedFileSequence}. The region is read directly from the mapped memory, without
+ * system calls, and it is also available as a list of ByteBuffer views.
+ *
+ * @author lipido
+ */
+public class MappedFileSequenceInputStream extends InputStream {
+
+	private final List<ByteBuffer> buffers;
+	private int current = 0;
+
+	/**
+	 * Creates a stream over the bytes between start (inclusive) and end (exclusive) of the sequence
+	 */
+	public MappedFileSequenceInputStream(MappedFileSequence sequence, long start, long end) {
+		this.buffers = sequence.getRegion(start, end);
+	}
+
+	/**
+	 * Returns independent views of the whole region, not affected by the reads done in this stream
+	 */
+	public List<ByteBuffer> getBuffers() {
+		List<ByteBuffer> toret = new ArrayList<ByteBuffer>();
+		for (ByteBuffer buffer : buffers) {
+			ByteBuffer view = buffer.duplicate();
+			view.rewind();
+			toret.add(view);
+		}
+		return toret;
+	}
+
+	@Override
+	public int read() {
+		ByteBuffer buffer = currentBuffer();
+		return buffer == null ? -1 : (buffer.get() & 0xff);
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) {
+		if (len == 0) {
+			return 0;
+		}
+		ByteBuffer buffer = currentBuffer();
+		if (buffer == null) {
+			return -1;
+		}
+		int readed = Math.min(len, buffer.remaining());
+		buffer.get(b, off, readed);
+		return readed;
+	}
+
+	@Override
+	public long skip(long n) {
+		long skipped = 0;
+		ByteBuffer buffer;
+		while (skipped < n && (buffer = currentBuffer()) != null) {
+			int step = (int) Math.min(n - skipped, buffer.remaining());
+			buffer.position(buffer.position() + step);
+			skipped += step;
+		}
+		return skipped;
+	}
+
+	@Override
+	public int available() {
+		ByteBuffer buffer = currentBuffer();
+		return buffer == null ? 0 : buffer.remaining();
+	}
+
+	private ByteBuffer currentBuffer() {
+		while (current < buffers.size() && !buffers.get(current).hasRemaining()) {
+			current++;
+		}
+		return current < buffers.size() ? buffers.get(current) : null;
+	}
+}
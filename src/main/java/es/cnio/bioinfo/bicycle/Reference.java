@@ -24,11 +24,14 @@ package es.cnio.bioinfo.bicycle;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.PrintStream;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Scanner;
 
+import es.cnio.bioinfo.bicycle.gatk.ContextTrack;
+
 public class Reference {
 
 	private File referenceFile;
@@ -79,6 +82,29 @@ public class Reference {
 		}
 	}
 
+	/**
+	 * Returns the {@link ContextTrack} file of this reference, which is built next to the reference index the first
+	 * time it is requested
+	 */
+	public File getContextTrackFile() {
+		File track = new File(this.project.getWorkingDirectory() + File.separator + this.referenceFile.getName() +
+				ContextTrack.EXTENSION);
+		if (!track.exists()) {
+			// build in a temporary file, so an interrupted build is not taken as a complete track
+			File tmp = new File(track.getAbsolutePath() + ".tmp");
+			try {
+				ContextTrack.build(this.referenceFile, tmp);
+			} catch (IOException e) {
+				tmp.delete();
+				throw new RuntimeException(e);
+			}
+			if (!tmp.renameTo(track)) {
+				throw new RuntimeException("could not create the context track " + track);
+			}
+		}
+		return track;
+	}
+
 	private void createReferenceIndex(File index) throws FileNotFoundException {
 		PrintStream indexOut = new PrintStream(new FileOutputStream(index));
 		Scanner sc = new Scanner(this.referenceFile);
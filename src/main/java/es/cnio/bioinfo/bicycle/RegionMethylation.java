@@ -1,5 +1,6 @@
 package es.cnio.bioinfo.bicycle;
 
+import java.io.File;
 import java.text.DecimalFormat;
 
 public class RegionMethylation {
@@ -196,6 +197,14 @@ methylation");
 		return sb.toString();
 	}
 
+	/**
+	 * Returns the file with the methylation of the regions of a BED file, next to the methylcytosines file
+	 */
+	public static File getRegionsFile(File methylcytosinesFile, String bedName) {
+		return new File(methylcytosinesFile.toString().replace("methylcytosines", "") + bedName.replace("bed",
+				"METHYLATEDregions.txt"));
+	}
+
 	public static RegionMethylation unmarshall(String line) {
 		final String[] tokens = line.split("\t");
 
@@ -32,27 +32,11 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.PrintWriter;
-import java.nio.BufferUnderflowException;
 import java.text.NumberFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
-import java.util.Collection;
-import java.util.Collections;
 import java.util.Date;
 import java.util.Enumeration;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Map;
-
-import es.cnio.bioinfo.bicycle.gatk.Strand;
-import net.sf.picard.filter.SamRecordFilter;
-import net.sf.picard.util.Interval;
-import net.sf.picard.util.IntervalList;
-import net.sf.picard.util.SamLocusIterator;
-import net.sf.picard.util.SamLocusIterator.LocusInfo;
-import net.sf.picard.util.SamLocusIterator.RecordAndOffset;
-import net.sf.samtools.SAMFileReader;
 
 
 /**
@@ -850,149 +834,4 @@ public final class Tools {
 
 	}
 
-
-	private static ThreadLocal<HashMap<Strand, SamLocusIterator>> previousIterators = new ThreadLocal<>();
-	private static ThreadLocal<HashMap<Strand, Interval>> previousIntervals = new ThreadLocal<>();
-	private static Map<SamLocusIterator, LocusInfo> currentLocus = Collections.synchronizedMap(new HashMap<SamLocusIterator, LocusInfo>());
-
-	private static final int INTERVAL_WINDOW = 10000000;
-
-	public static List<RecordAndOffset> getReadsForLocus(Strand strand,
-														 String contig, int pos, boolean filterDuplicates,
-														 List<SAMFileReader> readers,
-														 List<SamRecordFilter> filters, char trimbase) {
-		List<RecordAndOffset> toret = new LinkedList<RecordAndOffset>();
-		for (SAMFileReader reader : readers) {
-
-			//try to find previous iterator
-			HashMap<Strand, SamLocusIterator> threadIterators = previousIterators.get();
-			if (threadIterators == null) {
-				threadIterators = new HashMap<>();
-				previousIterators.set(threadIterators);
-
-				HashMap<Strand, Interval> threadPreviousIntervals = new HashMap<>();
-				previousIntervals.set(threadPreviousIntervals);
-			}
-
-			SamLocusIterator iterator = threadIterators.get(strand);
-			Interval interval = null;
-			if (iterator != null) {
-				interval = previousIntervals.get().get(strand);
-				if (!interval.getSequence().equals(contig) || interval.getEnd() < pos || interval.getStart() > pos) {
-
-					//System.out.println("consuming iterator with interval "+interval+" want to go to: "+pos);
-					while (iterator.hasNext()) {
-
-						iterator.next(); //consume the iterator (it throws exception if we create another before
-						// running out this one!)
-					}
-					currentLocus.remove(iterator);
-					iterator = null;
-
-				}
-			}
-			if (iterator == null) {
-
-				int ADAPTED_WINDOW = INTERVAL_WINDOW;
-				while (iterator == null && ADAPTED_WINDOW > 0) {
-
-					IntervalList site = new IntervalList(reader.getFileHeader());
-					interval = new Interval(contig, pos, Math.min(reader.getFileHeader().getSequence(contig)
-							.getSequenceLength(), pos + ADAPTED_WINDOW)); //don't be cowboy here, using 1M gives
-					// BufferUnderflow
-					site.add(interval);
-
-					iterator = createSamLocusIterator(reader, site, filters);
-
-					try {
-						iterator.iterator();//call to avoid NPE
-					} catch (BufferUnderflowException e) {
-						iterator = null;
-
-						ADAPTED_WINDOW /= 2;
-						System.err.println("Reducing window due to BufferUnderflow to " + ADAPTED_WINDOW);
-					}
-				}
-				if (iterator == null) {
-					throw new RuntimeException("Cant create iterator due to buffer underflow exceptions");
-				}
-			}
-			//put the iterator in cache
-			try {
-				previousIterators.get().put(strand, iterator);
-				previousIntervals.get().put(strand, interval);
-			} catch (NullPointerException e) {
-				System.out.println("null pointer");
-			}
-			LocusInfo li = null;
-
-			//check if the previous iteration has reached exactly the position we are aiming at
-			if (currentLocus.get(iterator) != null && currentLocus.get(iterator).getPosition() == pos) {
-				li = currentLocus.get(iterator);
-			} else {
-				while (iterator.hasNext()) {
-					li = iterator.next();
-
-					if (li.getPosition() >= pos) {
-						break;
-					}
-				}
-				currentLocus.put(iterator, li);
-			}
-
-			if (li != null && li.getPosition() == pos) {
-				//System.out.println("yes");
-				Collection<RecordAndOffset> ros = li.getRecordAndPositions();
-
-				if (filterDuplicates) {
-					HashMap<Integer, RecordAndOffset> uniqueReads = new HashMap<Integer, RecordAndOffset>();
-					for (RecordAndOffset read : ros) {
-						//System.err.println("is clonal: "+read.getRecord().getReadName());
-						if (strand.isNegative()) {
-							if (!uniqueReads.containsKey(read.getRecord().getAlignmentEnd()) ||
-									uniqueReads.get(read.getRecord().getAlignmentEnd()).getRecord().getMappingQuality
-											() < read.getRecord().getMappingQuality()) {
-								uniqueReads.put(read.getRecord().getAlignmentEnd(), read);
-							}/*else{
-								System.err.println("filtering duplicate: "+read.getRecord().getReadName());
-							}*/
-						} else {
-							if (!uniqueReads.containsKey(read.getRecord().getAlignmentStart()) ||
-									uniqueReads.get(read.getRecord().getAlignmentStart()).getRecord()
-											.getMappingQuality() < read.getRecord().getMappingQuality()) {
-								uniqueReads.put(read.getRecord().getAlignmentStart(), read);
-							}/*else{
-								System.err.println("filtering duplicate: "+read.getRecord().getReadName());
-							}*/
-						}
-					}
-					ros = new LinkedList<RecordAndOffset>();
-					ros = uniqueReads.values();
-				}
-
-				for (RecordAndOffset ro : ros) {
-					if (ro.getReadBase() != trimbase) {
-						toret.add(ro);
-					}
-				}
-
-			}
-		}
-
-		return toret;
-	}
-
-	private static SamLocusIterator createSamLocusIterator(
-			SAMFileReader reader,
-			IntervalList site, List<SamRecordFilter> filters) {
-		SamLocusIterator iterator;
-		iterator = new SamLocusIterator(reader, site, true);
-
-
-		iterator.setSamFilters(filters);
-
-		iterator.setEmitUncoveredLoci(false);
-		return iterator;
-	}
-
 } // fin de clase
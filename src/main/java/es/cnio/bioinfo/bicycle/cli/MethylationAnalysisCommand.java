@@ -30,6 +30,7 @@ import es.cnio.bioinfo.bicycle.ErrorRateMode;
 import es.cnio.bioinfo.bicycle.Project;
 import es.cnio.bioinfo.bicycle.Reference;
 import es.cnio.bioinfo.bicycle.Sample;
+import es.cnio.bioinfo.bicycle.gatk.BadBisulfiteFilter;
 import es.cnio.bioinfo.bicycle.operations.MethylationAnalysis;
 
 public class MethylationAnalysisCommand extends ProjectCommand {
@@ -84,6 +85,8 @@ public class MethylationAnalysisCommand extends ProjectCommand {
 
 
 		MethylationAnalysis ma = new MethylationAnalysis(project);
+		ma.setNativeCaller(parameters.containsKey(this.findOption("k")));
+		ma.setBadBisulfiteThreshold(Integer.parseInt(parameters.get(this.findOption("u"))));
 		if (errorMode == ErrorRateMode.from_control_genome) {
 
 			if (errorTokens.length < 2) {
@@ -140,6 +143,9 @@ public class MethylationAnalysisCommand extends ProjectCommand {
 
 		toret.add(new Option("remove-uncorrectly-converted", "r",
 				"ignore non-correctly bisulfite-converted reads", true, false));
+		toret.add(new DefaultValuedOption("uncorrectly-converted-threshold", "u",
+				"number of cytosines out of the CpG context of the non-correctly bisulfite-converted reads", "" +
+				BadBisulfiteFilter.DEFAULT_THRESHOLD));
 
 		toret.add(new Option("remove-ambiguous", "a",
 				"ignore reads aligned to both Watson and Crick strands", true, false));
@@ -168,6 +174,9 @@ public class MethylationAnalysisCommand extends ProjectCommand {
 		toret.add(new Option("correct non-CG to CG", "g",
 				"Correct non-CG", true, false));
 
+		toret.add(new Option("native-caller", "k",
+				"Call methylation with the multi-threaded native caller instead of the GATK walker", true, false));
+
 		return toret;
 	}
 
@@ -26,6 +26,7 @@ import java.util.Map;
 
 import es.cnio.bioinfo.bicycle.Project;
 import es.cnio.bioinfo.bicycle.Sample;
+import es.cnio.bioinfo.bicycle.gatk.BadBisulfiteFilter;
 import es.cnio.bioinfo.bicycle.operations.SampleBisulfitation;
 
 public class ReadsBisulfitationCommand extends ProjectCommand {
@@ -46,7 +47,11 @@ public class ReadsBisulfitationCommand extends ProjectCommand {
 
 		for (Sample s : project.getSamples()) {
 			SampleBisulfitation sb = new SampleBisulfitation(s);
-			sb.computeSampleBisulfitation(parameters.containsKey(this.findOption("b")));
+			BadBisulfiteFilter badBisulfiteFilter = null;
+			if (parameters.containsKey(this.findOption("r"))) {
+				badBisulfiteFilter = new BadBisulfiteFilter(Integer.parseInt(parameters.get(this.findOption("u"))));
+			}
+			sb.computeSampleBisulfitation(parameters.containsKey(this.findOption("b")), badBisulfiteFilter);
 		}
 	}
 
@@ -54,10 +59,12 @@ public class ReadsBisulfitationCommand extends ProjectCommand {
 	protected List<Option> createOptions() {
 		List<Option> toret = super.createOptions();
 		
-		/*toret.add(new Option("remove-bad-bisulfited", "r", 
+		toret.add(new Option("remove-bad-bisulfited", "r",
 				"remove unconverted reads (those were the bisulfite " +
 				"treatment failed, following the rule applied in Lister et al., Nature 2009)", true, false));
-		*/
+		toret.add(new DefaultValuedOption("bad-bisulfited-threshold", "u",
+				"number of cytosines out of the CpG context of the unconverted reads", "" + BadBisulfiteFilter
+				.DEFAULT_THRESHOLD));
 		toret.add(new Option("remove-unconverted-barcodes", "b", "remove reads with unconverted barcodes", true,
 				false));
 
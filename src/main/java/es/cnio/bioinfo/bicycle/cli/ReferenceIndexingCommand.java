@@ -37,7 +37,8 @@ public class ReferenceIndexingCommand extends ProjectCommand {
 
 	@Override
 	public String getDescription() {
-		return "Tells Bowtie to build indexes for both references, CtoT and GtoA";
+		return "Tells Bowtie to build indexes for both references, CtoT and GtoA, and builds the context track of the " +
+				"reference";
 	}
 
 	@Override
@@ -61,6 +62,7 @@ public class ReferenceIndexingCommand extends ProjectCommand {
 				int t = Integer.parseInt(parameters.get(this.findOption("t")));
 				al.buildBowtie2Index(ref, t);
 			}
+			ref.getContextTrackFile();
 		}
 	}
 
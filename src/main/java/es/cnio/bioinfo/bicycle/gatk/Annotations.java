@@ -0,0 +1,76 @@
+/*
+
+Copyright 2012 Daniel Gonzalez Peña, Osvaldo Graña
+
+
+This file is part of the bicycle Project. 
+
+bicycle Project is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+bicycle Project is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser Public License for more details.
+
+You should have received a copy of the GNU Lesser Public License
+along with bicycle Project.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package es.cnio.bioinfo.bicycle.gatk;
+
+import java.util.AbstractList;
+import java.util.List;
+
+/**
+ * The annotations of a methylation call, one per BED annotation track. Only the identifiers of the annotations are
+ * kept, the annotations are resolved by their tracks when they are requested, that is, when the calls are written
+ * to the output files.
+ *
+ * @author lipido
+ */
+class Annotations extends AbstractList<String> {
+
+	private final List<BEDAnnotationTrack> tracks;
+	private final int[] annotationIds;
+
+	public Annotations(List<BEDAnnotationTrack> tracks, int[] annotationIds) {
+		if (tracks.size() != annotationIds.length) {
+			throw new IllegalArgumentException("Expected " + tracks.size() + " annotations, found " +
+					annotationIds.length);
+		}
+		this.tracks = tracks;
+		this.annotationIds = annotationIds;
+	}
+
+	/**
+	 * Annotates a position with all the tracks
+	 */
+	public static Annotations annotate(List<BEDAnnotationTrack> tracks, String contig, long position) {
+		int[] annotationIds = new int[tracks.size()];
+		for (int i = 0; i < annotationIds.length; i++) {
+			annotationIds[i] = tracks.get(i).getAnnotationId(contig, position);
+		}
+		return new Annotations(tracks, annotationIds);
+	}
+
+	/**
+	 * Returns the identifier of the annotation of a track in its {@link BEDAnnotationTrack}
+	 */
+	public int getAnnotationId(int track) {
+		return annotationIds[track];
+	}
+
+	@Override
+	public String get(int index) {
+		return tracks.get(index).getAnnotation(annotationIds[index]);
+	}
+
+	@Override
+	public int size() {
+		return annotationIds.length;
+	}
+}
@@ -0,0 +1,260 @@
+/*
+
+Copyright 2012 Daniel Gonzalez Peña, Osvaldo Graña
+
+
+This file is part of the bicycle Project. 
+
+bicycle Project is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+bicycle Project is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser Public License for more details.
+
+You should have received a copy of the GNU Lesser Public License
+along with bicycle Project.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package es.cnio.bioinfo.bicycle.gatk;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * The features of a BED file, kept in memory per contig, to annotate positions with the names of the features
+ * overlapping them. Positions are 1-based, as the ones of the tribble BED codec used by the GATK.
+ * <p>
+ * The features of each contig are split once into segments overlapped by the same features. Each distinct
+ * annotation of a segment (the names of its features separated by "|") is interned and identified by an integer,
+ * so annotating a position is a binary search that returns the identifier, and the annotation is only built when
+ * the identifier is resolved with {@link #getAnnotation(int)}.
+ *
+ * @author lipido
+ */
+class BEDAnnotationTrack {
+
+	/**
+	 * Identifier of the annotation of the positions without features
+	 */
+	public static final int NO_FEATURES = 0;
+
+	private final String name;
+	private final Map<String, ContigSegments> segments = new HashMap<String, ContigSegments>();
+
+	private final List<String> annotations = new ArrayList<String>();
+	private final Map<String, Integer> annotationIds = new HashMap<String, Integer>();
+
+	public BEDAnnotationTrack(File bed) throws IOException {
+		this(bed, bed.getName());
+	}
+
+	public BEDAnnotationTrack(File bed, String name) throws IOException {
+		this.name = name;
+		this.annotations.add("N/A");
+
+		Map<String, List<Feature>> perContig = new HashMap<String, List<Feature>>();
+		Map<String, String> names = new HashMap<String, String>();
+		BufferedReader reader = new BufferedReader(new FileReader(bed));
+		try {
+			String line = null;
+			while ((line = reader.readLine()) != null) {
+				if (line.trim().length() == 0 || line.startsWith("#") || line.startsWith("track") || line
+						.startsWith("browser")) {
+					continue;
+				}
+				String[] tokens = line.split("\t");
+				if (tokens.length < 3) {
+					tokens = line.trim().split("\\s+");
+				}
+				if (tokens.length < 3) {
+					throw new IllegalArgumentException("Malformed BED line in " + bed + ": " + line);
+				}
+
+				List<Feature> contigFeatures = perContig.get(tokens[0]);
+				if (contigFeatures == null) {
+					contigFeatures = new ArrayList<Feature>();
+					perContig.put(tokens[0], contigFeatures);
+				}
+				String featureName = tokens.length > 3 ? tokens[3] : "";
+				String internedName = names.get(featureName);
+				if (internedName == null) {
+					internedName = featureName;
+					names.put(featureName, featureName);
+				}
+				contigFeatures.add(new Feature(Integer.parseInt(tokens[1]) + 1, Integer.parseInt(tokens[2]),
+						internedName));
+			}
+		} finally {
+			reader.close();
+		}
+
+		for (Map.Entry<String, List<Feature>> entry : perContig.entrySet()) {
+			this.segments.put(entry.getKey(), new ContigSegments(entry.getValue()));
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Returns the identifier of the annotation of a position, or {@link #NO_FEATURES} if no feature overlaps it
+	 */
+	public int getAnnotationId(String contig, long position) {
+		ContigSegments contigSegments = this.segments.get(contig);
+		if (contigSegments == null) {
+			return NO_FEATURES;
+		}
+		return contigSegments.getAnnotationId(position);
+	}
+
+	/**
+	 * Returns the annotation with the given identifier: the names of the features separated by "|", or "N/A" for
+	 * {@link #NO_FEATURES}
+	 */
+	public String getAnnotation(int annotationId) {
+		return this.annotations.get(annotationId);
+	}
+
+	/**
+	 * Returns the names of the features overlapping a position separated by "|", or "N/A" if there is none
+	 */
+	public String annotate(String contig, long position) {
+		return getAnnotation(getAnnotationId(contig, position));
+	}
+
+	private int intern(String annotation) {
+		Integer id = this.annotationIds.get(annotation);
+		if (id == null) {
+			id = this.annotations.size();
+			this.annotations.add(annotation);
+			this.annotationIds.put(annotation, id);
+		}
+		return id;
+	}
+
+	private static class Feature {
+		final int start;
+		final int end;
+		final String name;
+
+		Feature(int start, int end, String name) {
+			this.start = start;
+			this.end = end;
+			this.name = name;
+		}
+	}
+
+	private class ContigSegments {
+		// first position of each segment, sorted. A segment ends where the next one starts
+		private final int[] starts;
+		private final int[] annotationIds;
+
+		ContigSegments(List<Feature> features) {
+			// the names of a segment are in the order of the starts of their features, and in the order of the
+			// file for equal starts
+			final Feature[] sorted = features.toArray(new Feature[features.size()]);
+			Arrays.sort(sorted, new Comparator<Feature>() {
+				@Override
+				public int compare(Feature o1, Feature o2) {
+					return Integer.compare(o1.start, o2.start);
+				}
+			});
+			Integer[] byEnd = new Integer[sorted.length];
+			for (int i = 0; i < byEnd.length; i++) {
+				byEnd[i] = i;
+			}
+			Arrays.sort(byEnd, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer o1, Integer o2) {
+					return Integer.compare(sorted[o1].end, sorted[o2].end);
+				}
+			});
+
+			int[] segmentStarts = new int[sorted.length * 2];
+			int[] segmentIds = new int[sorted.length * 2];
+			int count = 0;
+
+			// the features overlapping the current segment, by their index in sorted
+			TreeSet<Integer> active = new TreeSet<Integer>();
+			int nextStart = 0;
+			int nextEnd = 0;
+			StringBuilder annotation = new StringBuilder();
+			while (nextStart < sorted.length || nextEnd < byEnd.length) {
+				// the next boundary: the start of a feature or the position after the end of one
+				long boundary = Long.MAX_VALUE;
+				if (nextStart < sorted.length) {
+					boundary = sorted[nextStart].start;
+				}
+				if (nextEnd < byEnd.length) {
+					boundary = Math.min(boundary, (long) sorted[byEnd[nextEnd]].end + 1);
+				}
+
+				while (nextEnd < byEnd.length && (long) sorted[byEnd[nextEnd]].end + 1 == boundary) {
+					active.remove(byEnd[nextEnd]);
+					nextEnd++;
+				}
+				while (nextStart < sorted.length && sorted[nextStart].start == boundary) {
+					// features ending before their start overlap no position
+					if (sorted[nextStart].end >= sorted[nextStart].start) {
+						active.add(nextStart);
+					}
+					nextStart++;
+				}
+
+				int id = NO_FEATURES;
+				if (!active.isEmpty()) {
+					annotation.setLength(0);
+					boolean first = true;
+					for (Integer feature : active) {
+						if (!first) {
+							annotation.append('|');
+						}
+						annotation.append(sorted[feature].name);
+						first = false;
+					}
+					id = intern(annotation.toString());
+				}
+				if (count == 0 || segmentIds[count - 1] != id) {
+					segmentStarts[count] = (int) boundary;
+					segmentIds[count] = id;
+					count++;
+				}
+			}
+
+			this.starts = Arrays.copyOf(segmentStarts, count);
+			this.annotationIds = Arrays.copyOf(segmentIds, count);
+		}
+
+		int getAnnotationId(long position) {
+			// last segment starting at or before the position
+			int low = 0;
+			int high = starts.length - 1;
+			int last = -1;
+			while (low <= high) {
+				int middle = (low + high) >>> 1;
+				if (starts[middle] <= position) {
+					last = middle;
+					low = middle + 1;
+				} else {
+					high = middle - 1;
+				}
+			}
+			return last == -1 ? NO_FEATURES : annotationIds[last];
+		}
+	}
+}
@@ -0,0 +1,92 @@
+/*
+
+Copyright 2012 Daniel Gonzalez Peña, Osvaldo Graña
+
+
+This file is part of the bicycle Project. 
+
+bicycle Project is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+bicycle Project is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser Public License for more details.
+
+You should have received a copy of the GNU Lesser Public License
+along with bicycle Project.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package es.cnio.bioinfo.bicycle.gatk;
+
+/**
+ * Detects the reads where the bisulfite treatment failed, following the rule applied in Lister et al., Nature 2009:
+ * reads with a given number of cytosines out of the CpG context.
+ * <p>
+ * In the Watson strand, a cytosine out of the CpG context is a C followed by any base but a G, and in the Crick
+ * strand it is a G preceded by any base but a C. Each pair of bases is counted once, so, for example, CCCA has two
+ * cytosines out of the CpG context. The read is scanned once, until the threshold is reached.
+ *
+ * @author lipido
+ */
+public class BadBisulfiteFilter {
+
+	public static final int DEFAULT_THRESHOLD = 4;
+
+	private final int threshold;
+
+	public BadBisulfiteFilter() {
+		this(DEFAULT_THRESHOLD);
+	}
+
+	/**
+	 * Creates a new filter
+	 *
+	 * @param threshold the number of cytosines out of the CpG context of the bad bisulfited reads
+	 */
+	public BadBisulfiteFilter(int threshold) {
+		if (threshold < 1) {
+			throw new IllegalArgumentException("the threshold must be at least 1: " + threshold);
+		}
+		this.threshold = threshold;
+	}
+
+	public int getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * Returns whether a read of a strand is bad bisulfited
+	 *
+	 * @param strand the strand where the read comes from
+	 * @param bases  the bases of the read, as ASCII characters
+	 */
+	public boolean isBad(Strand strand, byte[] bases) {
+		int count = 0;
+		if (strand == Strand.WATSON) {
+			for (int i = 0; i < bases.length - 1; i++) {
+				if ((bases[i] == 'C' || bases[i] == 'c') && bases[i + 1] != 'G' && bases[i + 1] != 'g') {
+					if (++count == threshold) {
+						return true;
+					}
+					i++;
+				}
+			}
+		} else if (strand == Strand.CRICK) {
+			for (int i = 0; i < bases.length - 1; i++) {
+				if (bases[i] != 'C' && bases[i] != 'c' && (bases[i + 1] == 'G' || bases[i + 1] == 'g')) {
+					if (++count == threshold) {
+						return true;
+					}
+					i++;
+				}
+			}
+		} else {
+			throw new IllegalArgumentException("this strand " + strand + " is not supported");
+		}
+		return false;
+	}
+}
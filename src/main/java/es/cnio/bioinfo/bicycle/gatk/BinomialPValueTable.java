@@ -0,0 +1,100 @@
+/*
+
+Copyright 2012 Daniel Gonzalez Peña, Osvaldo Graña
+
+
+This file is part of the bicycle Project. 
+
+bicycle Project is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+bicycle Project is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser Public License for more details.
+
+You should have received a copy of the GNU Lesser Public License
+along with bicycle Project.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package es.cnio.bioinfo.bicycle.gatk;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.math.MathException;
+import org.apache.commons.math.distribution.BinomialDistributionImpl;
+
+/**
+ * Memoized p-values of the methylation calls: the probability of observing at least a given number of cytosines at
+ * a given depth by bisulfite conversion errors alone, for each strand and context.
+ * <p>
+ * The p-values up to a maximum depth are computed when the table is created. The ones above it are computed the
+ * first time they are requested and kept. The table can be shared by several threads.
+ *
+ * @author lipido
+ */
+class BinomialPValueTable {
+
+	private final double[] errors = new double[Strand.values().length * Context.values().length];
+
+	// precomputed[strand and context][depth][count]
+	private final double[][][] precomputed;
+	private final int maxPrecomputedDepth;
+
+	private final ConcurrentHashMap<Long, Double> computed = new ConcurrentHashMap<Long, Double>();
+
+	public BinomialPValueTable(ContigBisulfiteError error, int maxPrecomputedDepth) {
+		this.maxPrecomputedDepth = maxPrecomputedDepth;
+		this.precomputed = new double[errors.length][][];
+
+		for (Strand strand : Strand.values()) {
+			for (Context context : Context.values()) {
+				int index = index(strand, context);
+				errors[index] = error.getError(strand, context).getError();
+
+				precomputed[index] = new double[maxPrecomputedDepth + 1][];
+				for (int depth = 0; depth <= maxPrecomputedDepth; depth++) {
+					precomputed[index][depth] = new double[depth + 1];
+					for (int count = 0; count <= depth; count++) {
+						precomputed[index][depth][count] = computePval(errors[index], count, depth);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the p-value of observing mCCount cytosines or more in depth reads
+	 */
+	public double getPval(Strand strand, Context context, int mCCount, int depth) {
+		int index = index(strand, context);
+		if (depth <= maxPrecomputedDepth && mCCount <= depth) {
+			return precomputed[index][depth][mCCount];
+		}
+
+		Long key = ((long) index << 58) | ((long) depth << 29) | mCCount;
+		Double pval = computed.get(key);
+		if (pval == null) {
+			pval = computePval(errors[index], mCCount, depth);
+			computed.put(key, pval);
+		}
+		return pval;
+	}
+
+	private static int index(Strand strand, Context context) {
+		return strand.ordinal() * Context.values().length + context.ordinal();
+	}
+
+	private static double computePval(double error, int mCCount, int depth) {
+		if (mCCount == 0) {
+			return 1.0d;
+		}
+		try {
+			return 1.0d - new BinomialDistributionImpl(depth, error).cumulativeProbability(mCCount - 1);
+		} catch (MathException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
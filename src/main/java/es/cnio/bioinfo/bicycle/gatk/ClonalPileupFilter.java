@@ -0,0 +1,215 @@
+/*
+
+Copyright 2012 Daniel Gonzalez Peña, Osvaldo Graña
+
+
+This file is part of the bicycle Project. 
+
+bicycle Project is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+bicycle Project is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser Public License for more details.
+
+You should have received a copy of the GNU Lesser Public License
+along with bicycle Project.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package es.cnio.bioinfo.bicycle.gatk;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import org.broadinstitute.sting.utils.pileup.PileupElement;
+import org.broadinstitute.sting.utils.pileup.PileupElementFilter;
+import org.broadinstitute.sting.utils.pileup.ReadBackedPileup;
+
+import net.sf.samtools.SAMRecord;
+
+/**
+ * Removes the clonal reads from the pileups of a strand along a traversal.
+ * <p>
+ * Reads of the strand sharing the alignment start (or the alignment end, in the negative strand) are clonal, and
+ * only the one with the highest sum of base qualities (the first one, in case of ties) is kept. Each read is tracked
+ * from the first pileup it is seen in until the traversal moves past its end, with its quality sum computed once.
+ * The reads sharing a key are linked in a group, and the read kept in a group is decided again only when a read
+ * enters or leaves the group, so filtering a pileup is a flag check per read.
+ * <p>
+ * The positions of a traversal are expected to move forward. Instances are not thread-safe.
+ *
+ * @author lipido
+ */
+class ClonalPileupFilter implements PileupElementFilter {
+
+	private final boolean negative;
+
+	private final Map<SAMRecord, TrackedRead> reads = new IdentityHashMap<SAMRecord, TrackedRead>();
+	private final Map<Integer, TrackedRead> groups = new HashMap<Integer, TrackedRead>();
+	private final PriorityQueue<TrackedRead> byEnd = new PriorityQueue<TrackedRead>(64, new EndComparator());
+
+	private String contig = null;
+	private int position = 0;
+	// number of pileups filtered, to find the tracked reads that are not in the current one
+	private int visit = 0;
+
+	ClonalPileupFilter(Strand strand) {
+		this.negative = strand.isNegative();
+	}
+
+	/**
+	 * Returns the pileup of a position without the clonal reads
+	 *
+	 * @param contig   the contig of the position
+	 * @param position the position
+	 * @param pileup   the pileup of the reads of the strand at the position
+	 */
+	public ReadBackedPileup filter(String contig, int position, ReadBackedPileup pileup) {
+		if (!contig.equals(this.contig) || position < this.position) {
+			clear();
+			this.contig = contig;
+		}
+		this.position = position;
+		this.visit++;
+
+		while (!byEnd.isEmpty() && byEnd.peek().end < position) {
+			remove(byEnd.poll());
+		}
+
+		int size = 0;
+		for (PileupElement element : pileup) {
+			SAMRecord read = element.getRead();
+			TrackedRead tracked = reads.get(read);
+			if (tracked == null) {
+				tracked = new TrackedRead(read, negative);
+				add(tracked);
+			}
+			tracked.lastSeen = visit;
+			size++;
+		}
+		if (size != reads.size()) {
+			// reads tracked from an earlier part of the traversal, which the engine has handed again as new records
+			removeStale();
+		}
+
+		return pileup.getFilteredPileup(this);
+	}
+
+	@Override
+	public boolean allow(PileupElement element) {
+		TrackedRead tracked = reads.get(element.getRead());
+		return tracked != null && !tracked.clonal;
+	}
+
+	private void clear() {
+		reads.clear();
+		groups.clear();
+		byEnd.clear();
+	}
+
+	private void add(TrackedRead tracked) {
+		reads.put(tracked.read, tracked);
+		byEnd.add(tracked);
+
+		TrackedRead head = groups.get(tracked.key);
+		if (head == null) {
+			groups.put(tracked.key, tracked);
+			head = tracked;
+		} else {
+			TrackedRead last = head;
+			while (last.next != null) {
+				last = last.next;
+			}
+			last.next = tracked;
+		}
+		decideClonal(head);
+	}
+
+	private void remove(TrackedRead tracked) {
+		reads.remove(tracked.read);
+
+		TrackedRead head = groups.get(tracked.key);
+		if (head == tracked) {
+			head = tracked.next;
+			if (head == null) {
+				groups.remove(tracked.key);
+			} else {
+				groups.put(tracked.key, head);
+			}
+		} else {
+			TrackedRead previous = head;
+			while (previous.next != tracked) {
+				previous = previous.next;
+			}
+			previous.next = tracked.next;
+		}
+		tracked.next = null;
+		if (head != null) {
+			decideClonal(head);
+		}
+	}
+
+	private void removeStale() {
+		List<TrackedRead> stale = new ArrayList<TrackedRead>();
+		for (TrackedRead tracked : reads.values()) {
+			if (tracked.lastSeen != visit) {
+				stale.add(tracked);
+			}
+		}
+		for (TrackedRead tracked : stale) {
+			byEnd.remove(tracked);
+			remove(tracked);
+		}
+	}
+
+	private static void decideClonal(TrackedRead head) {
+		TrackedRead kept = head;
+		for (TrackedRead tracked = head.next; tracked != null; tracked = tracked.next) {
+			if (kept.qualitySum < tracked.qualitySum) {
+				kept = tracked;
+			}
+		}
+		for (TrackedRead tracked = head; tracked != null; tracked = tracked.next) {
+			tracked.clonal = tracked != kept;
+		}
+	}
+
+	private static class TrackedRead {
+		private final SAMRecord read;
+		private final Integer key;
+		private final int end;
+		private final int qualitySum;
+		private boolean clonal = false;
+		private int lastSeen;
+		// next read of the same group, in the order they were seen
+		private TrackedRead next = null;
+
+		TrackedRead(SAMRecord read, boolean negative) {
+			this.read = read;
+			this.end = read.getAlignmentEnd();
+			this.key = negative ? this.end : read.getAlignmentStart();
+
+			int sum = 0;
+			for (byte b : read.getBaseQualities()) {
+				sum += (int) b;
+			}
+			this.qualitySum = sum;
+		}
+	}
+
+	private static class EndComparator implements Comparator<TrackedRead> {
+		@Override
+		public int compare(TrackedRead o1, TrackedRead o2) {
+			return o1.end < o2.end ? -1 : (o1.end == o2.end ? 0 : 1);
+		}
+	}
+}
@@ -0,0 +1,379 @@
+/*
+
+Copyright 2012 Daniel Gonzalez Peña, Osvaldo Graña
+
+
+This file is part of the bicycle Project. 
+
+bicycle Project is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+bicycle Project is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser Public License for more details.
+
+You should have received a copy of the GNU Lesser Public License
+along with bicycle Project.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package es.cnio.bioinfo.bicycle.gatk;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.text.DecimalFormat;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.logging.Logger;
+
+import net.sf.picard.filter.SamRecordFilter;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMFileWriter;
+import net.sf.samtools.SAMFileWriterFactory;
+import net.sf.samtools.SAMRecord;
+
+/**
+ * Marks the clonal reads of a coordinate-sorted strand BAM file with the SAM duplicate flag, in one streaming pass.
+ * <p>
+ * Reads sharing a key are clonal, and all but the one with the highest sum of base qualities (the first one, in case
+ * of ties) are marked. The key is the alignment start in the Watson strand and the alignment end in the Crick
+ * strand, as in the per-locus clonal removal of the walker. For paired reads with both mates in the same contig, the
+ * key also has the start of the mate and which mate the read is, and the mate that comes second in the file takes
+ * the decision taken for the first one.
+ * <p>
+ * Only the reads that pass the default read filters and the optional given filter are considered. Since the
+ * duplicate flag is honoured by the default read filters, a methylation caller over marked files does not need to
+ * remove clonal reads by itself. The number of reads considered and marked is written to a metrics file next to the
+ * marked BAM file, which also tells that the file is marked.
+ *
+ * @author lipido
+ */
+public class ClonalReadMarker {
+	private static final Logger logger = Logger.getLogger(ClonalReadMarker.class.getSimpleName());
+
+	public static final String METRICS_SUFFIX = ".clonal";
+
+	private final Strand strand;
+	private final SamRecordFilter filter;
+
+	/**
+	 * Creates a new marker
+	 *
+	 * @param strand the strand of the BAM files
+	 * @param filter the filter of the reads that are not considered, or null. It is given copies of the reads, so it
+	 *               can modify them.
+	 */
+	public ClonalReadMarker(Strand strand, SamRecordFilter filter) {
+		this.strand = strand;
+		this.filter = filter;
+	}
+
+	/**
+	 * Writes a copy of a coordinate-sorted BAM file with the clonal reads marked, and its index and metrics file
+	 *
+	 * @return the metrics of the marked file
+	 */
+	public Metrics mark(File input, File output) throws IOException {
+		SAMFileReader reader = new SAMFileReader(input);
+		reader.setValidationStringency(SAMFileReader.ValidationStringency.SILENT);
+		SAMFileHeader header = reader.getFileHeader();
+		if (header.getSortOrder() != SAMFileHeader.SortOrder.coordinate) {
+			reader.close();
+			throw new IllegalArgumentException("the BAM file is not sorted by coordinate: " + input);
+		}
+
+		SAMFileWriterFactory factory = new SAMFileWriterFactory();
+		factory.setCreateIndex(true);
+		SAMFileWriter writer = factory.makeBAMWriter(header, true, output);
+
+		Metrics metrics = new Metrics();
+		try {
+			Marking marking = new Marking(writer, metrics);
+			for (SAMRecord record : reader) {
+				marking.add(record);
+			}
+			marking.flush();
+		} finally {
+			reader.close();
+			writer.close();
+		}
+
+		metrics.write(getMetricsFile(output));
+		logger.info("Marked " + metrics + " in " + output.getName());
+		return metrics;
+	}
+
+	/**
+	 * Returns the metrics file of a marked BAM file
+	 */
+	public static File getMetricsFile(File bam) {
+		return new File(bam.getAbsolutePath() + METRICS_SUFFIX);
+	}
+
+	/**
+	 * Returns the metrics of a BAM file marked by this class, or null if it is not marked
+	 */
+	public static Metrics getMetrics(File bam) {
+		File metricsFile = getMetricsFile(bam);
+		if (!metricsFile.exists() || metricsFile.lastModified() < bam.lastModified()) {
+			return null;
+		}
+		try {
+			return Metrics.read(metricsFile);
+		} catch (FileNotFoundException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Returns whether all the given BAM files have been marked
+	 */
+	public static boolean isMarked(Collection<File> bams) {
+		if (bams.isEmpty()) {
+			return false;
+		}
+		for (File bam : bams) {
+			if (getMetrics(bam) == null) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Describes the marked reads of the given BAM files, or returns null if some of them is not marked
+	 */
+	public static String describe(Collection<File> bams) {
+		if (!isMarked(bams)) {
+			return null;
+		}
+		StringBuilder description = new StringBuilder();
+		for (File bam : bams) {
+			if (description.length() > 0) {
+				description.append(", ");
+			}
+			description.append(bam.getName()).append(": ").append(getMetrics(bam));
+		}
+		return description.toString();
+	}
+
+	/**
+	 * Number of reads considered and marked as clonal in a BAM file
+	 */
+	public static class Metrics {
+		private long reads = 0;
+		private long clonal = 0;
+
+		public long getReads() {
+			return reads;
+		}
+
+		public long getClonal() {
+			return clonal;
+		}
+
+		private void write(File file) throws FileNotFoundException {
+			PrintStream out = new PrintStream(new FileOutputStream(file));
+			out.println("reads\t" + reads);
+			out.println("clonal\t" + clonal);
+			out.close();
+		}
+
+		private static Metrics read(File file) throws FileNotFoundException {
+			Metrics metrics = new Metrics();
+			Scanner sc = new Scanner(file);
+			try {
+				while (sc.hasNextLine()) {
+					String[] tokens = sc.nextLine().split("\t");
+					if (tokens[0].equals("reads")) {
+						metrics.reads = Long.parseLong(tokens[1]);
+					} else if (tokens[0].equals("clonal")) {
+						metrics.clonal = Long.parseLong(tokens[1]);
+					}
+				}
+			} finally {
+				sc.close();
+			}
+			return metrics;
+		}
+
+		@Override
+		public String toString() {
+			double ratio = reads == 0 ? 0d : (double) clonal / (double) reads;
+			return clonal + " clonal of " + reads + " reads (" + new DecimalFormat("0.00").format(ratio * 100d) +
+					"%)";
+		}
+	}
+
+	/**
+	 * State of a marking pass. Reads are written in the same order they are read, once the decision about them is
+	 * final: a group of clonal reads is complete when the file reaches reads starting after the key position of the
+	 * group, since no later read can share it.
+	 */
+	private class Marking {
+		private final SAMFileWriter writer;
+		private final Metrics metrics;
+
+		private final Deque<PendingRead> pending = new ArrayDeque<PendingRead>();
+		private final Map<GroupKey, Group> groups = new HashMap<GroupKey, Group>();
+		// first mates of the pairs whose second mate has not been read yet
+		private final Map<String, PendingRead> firstMates = new HashMap<String, PendingRead>();
+		private int referenceIndex = -1;
+
+		Marking(SAMFileWriter writer, Metrics metrics) {
+			this.writer = writer;
+			this.metrics = metrics;
+		}
+
+		void add(SAMRecord record) {
+			if (record.getReferenceIndex().intValue() != referenceIndex) {
+				flush();
+				firstMates.clear();
+				referenceIndex = record.getReferenceIndex();
+			}
+			emitDecided(record.getAlignmentStart());
+
+			PendingRead read = new PendingRead(record, isEligible(record));
+			pending.add(read);
+			if (read.eligible) {
+				metrics.reads++;
+			}
+
+			boolean paired = record.getReadPairedFlag() && !record.getReadUnmappedFlag() && !record
+					.getMateUnmappedFlag() && record.getMateReferenceIndex().equals(record.getReferenceIndex());
+			if (paired) {
+				PendingRead firstMate = firstMates.remove(record.getReadName());
+				if (firstMate != null) {
+					read.firstMate = firstMate;
+					return;
+				}
+				firstMates.put(record.getReadName(), read);
+			}
+
+			if (read.eligible) {
+				int position = strand.isNegative() ? record.getAlignmentEnd() : record.getAlignmentStart();
+				GroupKey key = paired ? new GroupKey(position, record.getMateAlignmentStart(), record
+						.getFirstOfPairFlag() ? 1 : 2) : new GroupKey(position, 0, 0);
+				Group group = groups.get(key);
+				if (group == null) {
+					group = new Group(key);
+					groups.put(key, group);
+				}
+				read.group = group;
+				group.add(read);
+			}
+		}
+
+		void flush() {
+			emitDecided(Integer.MAX_VALUE);
+			groups.clear();
+		}
+
+		private void emitDecided(int nextStart) {
+			while (!pending.isEmpty()) {
+				PendingRead read = pending.peek();
+				if (read.group != null) {
+					if (read.group.key.position >= nextStart) {
+						return;
+					}
+					groups.remove(read.group.key);
+				}
+				pending.poll();
+
+				boolean clonal = read.firstMate != null ? read.firstMate.clonal : read.clonal;
+				if (clonal) {
+					read.record.setDuplicateReadFlag(true);
+					if (read.eligible) {
+						metrics.clonal++;
+					}
+				}
+				read.clonal = clonal;
+				writer.addAlignment(read.record);
+			}
+		}
+
+		private boolean isEligible(SAMRecord record) {
+			if (record.getReadUnmappedFlag() || record.getNotPrimaryAlignmentFlag() || record
+					.getDuplicateReadFlag() || record.getReadFailsVendorQualityCheckFlag()) {
+				return false;
+			}
+			return filter == null || !filter.filterOut((SAMRecord) record.clone());
+		}
+	}
+
+	private static class PendingRead {
+		private final SAMRecord record;
+		private final boolean eligible;
+		private final int qualitySum;
+		private Group group = null;
+		private PendingRead firstMate = null;
+		private boolean clonal = false;
+
+		PendingRead(SAMRecord record, boolean eligible) {
+			this.record = record;
+			this.eligible = eligible;
+			int sum = 0;
+			for (byte b : record.getBaseQualities()) {
+				sum += (int) b;
+			}
+			this.qualitySum = sum;
+		}
+	}
+
+	private static class Group {
+		private final GroupKey key;
+		private PendingRead kept = null;
+
+		Group(GroupKey key) {
+			this.key = key;
+		}
+
+		void add(PendingRead read) {
+			if (kept == null) {
+				kept = read;
+			} else if (kept.qualitySum < read.qualitySum) {
+				kept.clonal = true;
+				kept = read;
+			} else {
+				read.clonal = true;
+			}
+		}
+	}
+
+	private static class GroupKey {
+		private final int position;
+		private final int mateStart;
+		private final int mate;
+
+		GroupKey(int position, int mateStart, int mate) {
+			this.position = position;
+			this.mateStart = mateStart;
+			this.mate = mate;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof GroupKey)) {
+				return false;
+			}
+			GroupKey other = (GroupKey) obj;
+			return position == other.position && mateStart == other.mateStart && mate == other.mate;
+		}
+
+		@Override
+		public int hashCode() {
+			return (position * 31 + mateStart) * 31 + mate;
+		}
+	}
+}
@@ -0,0 +1,343 @@
+/*
+
+Copyright 2012 Daniel Gonzalez Peña, Osvaldo Graña
+
+
+This file is part of the bicycle Project. 
+
+bicycle Project is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+bicycle Project is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser Public License for more details.
+
+You should have received a copy of the GNU Lesser Public License
+along with bicycle Project.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package es.cnio.bioinfo.bicycle.gatk;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Precomputed strand and context of every position of a reference.
+ * <p>
+ * The track is built once by streaming the FASTA file and stored in a file with 4 bits per base: the lower two bits
+ * are the context (0 if the position is not a cytosine in any strand) and the third one is set for the cytosines of
+ * the Crick strand. Each sequence is memory-mapped when it is first requested, so looking up a position is an array
+ * access that does not touch the FASTA file.
+ * <p>
+ * As in {@link Strand#getContext(String, byte[], long, long, long)}, the cytosines whose context would be read
+ * beyond the end of the sequence have no context.
+ * <p>
+ * File layout: the packed bases of each sequence, one after the other, followed by the directory (number of
+ * sequences and, for each one, its name, length and data offset) and the offset of the directory.
+ *
+ * @author lipido
+ */
+public class ContextTrack implements Closeable {
+
+	public static final String EXTENSION = ".contexts";
+
+	private static final int MAGIC = 0x42435458; // BCTX
+	private static final int CRICK_BIT = 4;
+	private static final int IO_BUFFER_SIZE = 65536;
+
+	private final RandomAccessFile file;
+	private final Map<String, SequenceTrack> sequences = new LinkedHashMap<String, SequenceTrack>();
+
+	private ContextTrack(File track) throws IOException {
+		this.file = new RandomAccessFile(track, "r");
+
+		file.seek(file.length() - 8);
+		long directoryOffset = file.readLong();
+		file.seek(directoryOffset);
+		if (file.readInt() != MAGIC) {
+			throw new IOException("not a context track file: " + track);
+		}
+		int count = file.readInt();
+		for (int i = 0; i < count; i++) {
+			String name = file.readUTF();
+			long length = file.readLong();
+			long offset = file.readLong();
+			sequences.put(name, new SequenceTrack(name, length, offset));
+		}
+	}
+
+	/**
+	 * Opens a track built with {@link #build(File, File)}
+	 */
+	public static ContextTrack open(File track) throws IOException {
+		return new ContextTrack(track);
+	}
+
+	public List<String> getSequenceNames() {
+		return new ArrayList<String>(sequences.keySet());
+	}
+
+	/**
+	 * Returns the track of a sequence, or null if the reference does not contain it
+	 */
+	public SequenceTrack getSequence(String name) {
+		return sequences.get(name);
+	}
+
+	@Override
+	public void close() throws IOException {
+		file.close();
+	}
+
+	/**
+	 * The track of one sequence of the reference
+	 */
+	public class SequenceTrack {
+		private final String name;
+		private final long length;
+		private final long offset;
+		private volatile MappedByteBuffer data;
+
+		private SequenceTrack(String name, long length, long offset) {
+			this.name = name;
+			this.length = length;
+			this.offset = offset;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public long getLength() {
+			return length;
+		}
+
+		/**
+		 * Returns the strand in which the base at a 1-based position is a cytosine with a context, or null if it is
+		 * not
+		 */
+		public Strand getStrand(long position) {
+			int code = getCode(position);
+			if (code == 0) {
+				return null;
+			}
+			return (code & CRICK_BIT) != 0 ? Strand.CRICK : Strand.WATSON;
+		}
+
+		/**
+		 * Returns the context of the cytosine at a 1-based position, or null if the position is not a cytosine with
+		 * a context
+		 */
+		public Context getContext(long position) {
+			int code = getCode(position);
+			if (code == 0) {
+				return null;
+			}
+			return Context.values()[(code & 3) - 1];
+		}
+
+		private int getCode(long position) {
+			if (position < 1 || position > length) {
+				throw new IllegalArgumentException("position out of " + name + ": " + position);
+			}
+			long index = position - 1;
+			int packed = getData().get((int) (index >>> 1));
+			return (index & 1) == 0 ? packed & 0x0F : (packed >>> 4) & 0x0F;
+		}
+
+		private MappedByteBuffer getData() {
+			MappedByteBuffer data = this.data;
+			if (data == null) {
+				synchronized (this) {
+					if (this.data == null) {
+						try {
+							this.data = file.getChannel().map(FileChannel.MapMode.READ_ONLY, offset, (length + 1)
+									/ 2);
+						} catch (IOException e) {
+							throw new RuntimeException(e);
+						}
+					}
+					data = this.data;
+				}
+			}
+			return data;
+		}
+	}
+
+	/**
+	 * Builds the track of a reference
+	 *
+	 * @param fasta the FASTA file of the reference
+	 * @param track the track file to create
+	 */
+	public static void build(File fasta, File track) throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(fasta), IO_BUFFER_SIZE);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(track),
+				IO_BUFFER_SIZE));
+		try {
+			TrackBuilder builder = new TrackBuilder(out);
+			boolean lineStart = true;
+			boolean inHeader = false;
+			StringBuilder header = new StringBuilder();
+			int c;
+			while ((c = in.read()) != -1) {
+				if (c == '\n' || c == '\r') {
+					if (inHeader) {
+						builder.startSequence(header.toString().trim().split("\\s+")[0]);
+						header.setLength(0);
+						inHeader = false;
+					}
+					lineStart = true;
+					continue;
+				}
+				if (lineStart && c == '>') {
+					inHeader = true;
+				} else if (inHeader) {
+					header.append((char) c);
+				} else if (c != ' ' && c != '\t') {
+					builder.addBase((byte) c);
+				}
+				lineStart = false;
+			}
+			if (inHeader) {
+				builder.startSequence(header.toString().trim().split("\\s+")[0]);
+			}
+			builder.finish();
+		} finally {
+			in.close();
+			out.close();
+		}
+	}
+
+	/**
+	 * Computes the codes of a stream of bases. The code of a base is known once the two bases after it have been
+	 * read.
+	 */
+	private static class TrackBuilder {
+		private final DataOutputStream out;
+		private final List<Object[]> directory = new ArrayList<Object[]>();
+		private long written = 0;
+
+		private String sequence = null;
+		private long length;
+		private long sequenceOffset;
+
+		// last bases read: [0] is the oldest
+		private final byte[] window = new byte[5];
+		private int pendingCode = -1;
+
+		TrackBuilder(DataOutputStream out) {
+			this.out = out;
+		}
+
+		void startSequence(String name) throws IOException {
+			endSequence();
+			this.sequence = name;
+			this.length = 0;
+			this.sequenceOffset = written;
+		}
+
+		void addBase(byte base) throws IOException {
+			if (sequence == null) {
+				throw new IOException("bases found before the first FASTA header");
+			}
+			if (base >= 'a' && base <= 'z') {
+				base -= 'a' - 'A';
+			}
+			System.arraycopy(window, 1, window, 0, window.length - 1);
+			window[window.length - 1] = base;
+			length++;
+			if (length >= 3) {
+				// the base two positions before the last one has both flanks
+				writeCode(code(window[2], window[1], window[0], window[3], window[4], length - 2));
+			}
+		}
+
+		private void endSequence() throws IOException {
+			if (sequence == null) {
+				return;
+			}
+			// the last two bases have no downstream flank in the Watson strand
+			for (long position = Math.max(1, length - 1); position <= length; position++) {
+				int offset = (int) (length - position);
+				byte base = window[window.length - 1 - offset];
+				byte previous = position >= 2 ? window[window.length - 2 - offset] : 0;
+				byte previous2 = position >= 3 ? window[window.length - 3 - offset] : 0;
+				writeCode(code(base, previous, previous2, (byte) 0, (byte) 0, position));
+			}
+			if (pendingCode != -1) {
+				out.writeByte(pendingCode);
+				written++;
+				pendingCode = -1;
+			}
+			directory.add(new Object[]{sequence, length, sequenceOffset});
+			sequence = null;
+			Arrays.fill(window, (byte) 0);
+		}
+
+		private void writeCode(int code) throws IOException {
+			if (pendingCode == -1) {
+				pendingCode = code;
+			} else {
+				out.writeByte(pendingCode | (code << 4));
+				written++;
+				pendingCode = -1;
+			}
+		}
+
+		/**
+		 * Computes the code of a base from its flanks. Flanks beyond the ends of the sequence are 0.
+		 */
+		private int code(byte base, byte previous, byte previous2, byte next, byte next2, long position) {
+			if (base == 'C') {
+				if (next2 == 0) {
+					return 0;
+				}
+				return contextCode(next == 'G' ? Context.CG : next2 == 'G' ? Context.CHG : Context.CHH);
+			} else if (base == 'G') {
+				if (position < 3) {
+					return 0;
+				}
+				return CRICK_BIT | contextCode(previous == 'C' ? Context.CG : previous2 == 'C' ? Context.CHG :
+						Context.CHH);
+			}
+			return 0;
+		}
+
+		private static int contextCode(Context context) {
+			return context.ordinal() + 1;
+		}
+
+		void finish() throws IOException {
+			endSequence();
+			long directoryOffset = written;
+			out.writeInt(MAGIC);
+			out.writeInt(directory.size());
+			for (Object[] entry : directory) {
+				out.writeUTF((String) entry[0]);
+				out.writeLong((Long) entry[1]);
+				out.writeLong((Long) entry[2]);
+			}
+			out.writeLong(directoryOffset);
+		}
+	}
+}
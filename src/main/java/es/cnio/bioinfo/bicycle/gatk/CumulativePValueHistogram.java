@@ -0,0 +1,80 @@
+/*
+
+Copyright 2012 Daniel Gonzalez Peña, Osvaldo Graña
+
+
+This file is part of the bicycle Project. 
+
+bicycle Project is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+bicycle Project is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser Public License for more details.
+
+You should have received a copy of the GNU Lesser Public License
+along with bicycle Project.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package es.cnio.bioinfo.bicycle.gatk;
+
+import java.util.Arrays;
+
+/**
+ * An immutable copy of a {@link PValueHistogram} with its p-values sorted and their cumulative counts, so the
+ * number of p-values below a cutoff is found with a binary search.
+ *
+ * @author lipido
+ */
+class CumulativePValueHistogram {
+
+	private final double[] pvals;
+
+	// cumulativeCounts[i] is the number of p-values lower than pvals[i]
+	private final long[] cumulativeCounts;
+
+	public CumulativePValueHistogram(PValueHistogram histogram) {
+		this.pvals = histogram.getPvals();
+		Arrays.sort(this.pvals);
+
+		this.cumulativeCounts = new long[pvals.length + 1];
+		for (int i = 0; i < pvals.length; i++) {
+			cumulativeCounts[i + 1] = cumulativeCounts[i] + histogram.getCount(pvals[i]);
+		}
+	}
+
+	/**
+	 * Returns how many p-values are lower than the given cutoff
+	 */
+	public long countBelow(double cutoff) {
+		// first position whose p-value is not lower than the cutoff
+		int low = 0;
+		int high = pvals.length;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (pvals[middle] < cutoff) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return cumulativeCounts[low];
+	}
+
+	/**
+	 * Returns the number of distinct p-values
+	 */
+	public int size() {
+		return pvals.length;
+	}
+
+	/**
+	 * Returns the number of p-values
+	 */
+	public long getTotal() {
+		return cumulativeCounts[pvals.length];
+	}
+}
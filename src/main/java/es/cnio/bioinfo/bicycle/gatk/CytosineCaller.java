@@ -0,0 +1,160 @@
+/*
+
+Copyright 2012 Daniel Gonzalez Peña, Osvaldo Graña
+
+
+This file is part of the bicycle Project. 
+
+bicycle Project is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+bicycle Project is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser Public License for more details.
+
+You should have received a copy of the GNU Lesser Public License
+along with bicycle Project.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package es.cnio.bioinfo.bicycle.gatk;
+
+import java.util.LinkedList;
+import java.util.List;
+
+import es.cnio.bioinfo.bicycle.MethylationCall;
+
+/**
+ * Computes the methylation calls of a cytosine from the bases of its pileup, including the non-CG to CG correction.
+ * It is shared by the GATK walker and the native caller, which only differ in how the pileups are built.
+ *
+ * @author lipido
+ */
+class CytosineCaller {
+
+	/**
+	 * Source of the pileups of the positions next to the cytosines, used by the non-CG to CG correction
+	 */
+	interface DownstreamPileups {
+		/**
+		 * Returns the bases read at a position in the reads of a strand, without the trimmed bases
+		 */
+		byte[] getBases(Strand strand, String contig, int position);
+	}
+
+	private final BinomialPValueTable pvalTable;
+	private final boolean correctNonCG;
+
+	public CytosineCaller(BinomialPValueTable pvalTable, boolean correctNonCG) {
+		this.pvalTable = pvalTable;
+		this.correctNonCG = correctNonCG;
+	}
+
+	/**
+	 * Computes the calls of a cytosine
+	 *
+	 * @param bases       the filtered bases of the pileup of the cytosine in the reads of its strand
+	 * @param downstream  the pileups of the downstream positions, only used if the non-CG correction is enabled
+	 * @return the call of the cytosine, preceded or followed by the call added in the opposite strand by the
+	 * correction, if any
+	 */
+	public List<MethylationCall> call(String contig, long position, Strand strand, Strand oppositeStrand, Context
+			context, byte[] bases, List<String> annotations, DownstreamPileups downstream) {
+		List<MethylationCall> toret = new LinkedList<MethylationCall>();
+
+		int mCCount = 0;
+
+		int depth = bases.length;
+		int CTdepth = bases.length;
+		StringBuilder pileupb = new StringBuilder();
+
+		for (byte base : bases) {
+			pileupb.append((char) base);
+			if (base == strand.getCytosineBase()) {
+				mCCount++;
+			}
+			if (base != strand.getCytosineBase() && base != strand.getThymineBase()) {
+				CTdepth--;
+			}
+		}
+		double pval = pvalTable.getPval(strand, context, mCCount, depth);
+
+		//added (osvaldo, 3jan2016)
+		double CRatio = (double) mCCount / (double) depth;
+
+		//modified (osvaldo, 31dec2015): adds CRatio argument
+		MethylationCall call = new MethylationCall(contig, position, strand, context, pval, depth, CTdepth, mCCount,
+				pileupb.toString(), false, false, annotations, new Double(CRatio));
+		toret.add(call);
+
+		//perform nonCG to CG correction
+		if (context != Context.CG && this.correctNonCG) {
+
+			int downstreamPosition = (int) strand.downstream(position);
+
+			byte[] strandReads = downstream.getBases(strand, contig, downstreamPosition);
+
+			int strandGCount = 0;
+			int strandDepth = strandReads.length;
+			double strandGRatio = 0;
+			char guanineBase = strand.getGuanineBase();
+			for (byte base : strandReads) {
+				if (base == guanineBase) {
+					strandGCount++;
+				}
+			}
+			strandGRatio = (double) strandGCount / (double) strandDepth;
+
+			if (strandGRatio >= 0.2d) {
+
+				byte[] oppositeReads = downstream.getBases(oppositeStrand, contig, downstreamPosition);
+
+				if (oppositeReads.length > 0) {
+					//both G ratios above 20%?
+
+
+					int oppositeCCount = 0;
+					int oppositeDepth = oppositeReads.length;
+					int oppositeCTdepth = oppositeDepth;
+					StringBuilder oppositePileup = new StringBuilder();
+					double oppositeCRatio = 0;
+					for (byte base : oppositeReads) {
+						oppositePileup.append((char) base);
+						if (base == oppositeStrand.getCytosineBase()) {
+							oppositeCCount++;
+						}
+						if (base != oppositeStrand.getCytosineBase() && base != oppositeStrand.getThymineBase()) {
+							oppositeCTdepth--;
+						}
+					}
+					oppositeCRatio = (double) oppositeCCount / (double) oppositeDepth;
+
+					if (oppositeCRatio >= 0.2) {
+						call.correctToCG();
+
+						//modified (osvaldo, 31dec2015): adds oppositeCRatio argument
+						//add another one to the opposite strand
+						MethylationCall oppositeCall = new MethylationCall(contig, downstreamPosition,
+								oppositeStrand, Context.CG, pvalTable.getPval(oppositeStrand, Context.CG,
+								oppositeCCount, oppositeDepth), oppositeDepth, oppositeCTdepth, oppositeCCount,
+								oppositePileup.toString(), false, true, annotations, oppositeCRatio);
+						if (downstreamPosition < position) {
+							toret.add(0, oppositeCall); //prepend
+						} else {
+							toret.add(oppositeCall); //append
+						}
+					}
+
+				} else if (Math.abs(strandGCount - call.getCytosines()) <= 2) {
+					call.correctToCG();
+
+				}
+			}
+
+		}
+		return toret;
+	}
+}
@@ -0,0 +1,80 @@
+/*
+
+Copyright 2012 Daniel Gonzalez Peña, Osvaldo Graña
+
+
+This file is part of the bicycle Project. 
+
+bicycle Project is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+bicycle Project is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser Public License for more details.
+
+You should have received a copy of the GNU Lesser Public License
+along with bicycle Project.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package es.cnio.bioinfo.bicycle.gatk;
+
+/**
+ * Bisulfite error with a fixed rate per strand, the same for all contexts.
+ *
+ * @author lipido
+ */
+public class FixedContigBisulfiteError implements ContigBisulfiteError {
+
+	private final double watsonError;
+	private final double crickError;
+
+	public FixedContigBisulfiteError(double watsonError, double crickError) {
+		this.watsonError = watsonError;
+		this.crickError = crickError;
+	}
+
+	/**
+	 * Parses the error rates in the form &lt;rate_watson&gt;,&lt;rate_crick&gt;
+	 */
+	public static FixedContigBisulfiteError parse(String errorRate) {
+		return new FixedContigBisulfiteError(Double.parseDouble(errorRate.split(",")[0]), Double.parseDouble
+				(errorRate.split(",")[1]));
+	}
+
+	@Override
+	public BisulfiteError getError(final Strand strand, Context context) {
+		return new BisulfiteError() {
+			@Override
+			public double getError() {
+				if (strand == Strand.WATSON) {
+					return watsonError;
+				} else if (strand == Strand.CRICK) {
+					return crickError;
+				}
+				throw new RuntimeException("Incompatible strand " + strand);
+			}
+
+		};
+
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder toret = new StringBuilder();
+		for (Strand s : Strand.values()) {
+			toret.append(s + " = {");
+			boolean first = true;
+			for (Context c : Context.values()) {
+				if (!first) toret.append(", ");
+				else first = false;
+				toret.append(c + " = " + getError(s, c).getError());
+			}
+			toret.append("} ");
+		}
+		return toret.toString();
+	}
+}
@@ -23,93 +23,124 @@ package es.cnio.bioinfo.bicycle.gatk;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
+
+import es.cnio.bioinfo.bicycle.MethylationCall;
 
 /**
  * Reads several sorted GPFiles, merging them and giving the lines sorted by position
+ * <p>
+ * The inputs are kept in a priority queue by the position of their current line, which is parsed once, when the
+ * line is read. Lines at the same position are given in the order of the inputs. The inputs can be text files, with
+ * the sequence and the position in their first two columns, or binary .methylation files read by
+ * {@link MethylationCallReader}s.
  *
  * @author lipido
  */
 public class GPFilesReader {
 
-	private BufferedReader[] readers;
-	private String[] current;
+	private final Map<String, Integer> sequenceIndexes = new HashMap<>();
 
-	private int lastLineReaderIndex = -1;
+	private final PriorityQueue<Input> queue;
 
-	private Map<String, Integer> sequenceIndexes = new HashMap<>();
+	private int lastLineReaderIndex = -1;
+	private String lastContig = null;
+	private long lastPosition = -1;
 
 	public GPFilesReader(List<String> sequenceNames, BufferedReader... bufferedReaders) throws IOException {
+		this(sequenceNames, bufferedReaders.length);
+
+		for (int i = 0; i < bufferedReaders.length; i++) {
+			addInput(new TextInput(i, bufferedReaders[i]));
+		}
+	}
+
+	/**
+	 * Creates a reader merging binary .methylation files
+	 */
+	public GPFilesReader(List<String> sequenceNames, MethylationCallReader... callReaders) throws IOException {
+		this(sequenceNames, callReaders.length);
+
+		for (int i = 0; i < callReaders.length; i++) {
+			addInput(new BinaryInput(i, callReaders[i]));
+		}
+	}
 
+	private GPFilesReader(List<String> sequenceNames, int inputs) {
 		int i = 0;
 		for (String sequenceName : sequenceNames) {
 			sequenceIndexes.put(sequenceName, i++);
 		}
 
-		readers = bufferedReaders;
-		current = new String[readers.length];
+		this.queue = new PriorityQueue<>(Math.max(1, inputs), new Comparator<Input>() {
+			@Override
+			public int compare(Input o1, Input o2) {
+				if (o1.contigIndex != o2.contigIndex) {
+					return Integer.compare(o1.contigIndex, o2.contigIndex);
+				}
+				if (o1.position != o2.position) {
+					return Long.compare(o1.position, o2.position);
+				}
+				return Integer.compare(o1.index, o2.index);
+			}
+		});
+	}
 
-		i = 0;
-		for (BufferedReader reader : readers) {
-			current[i++] = readLine(reader);
+	private void addInput(Input input) throws IOException {
+		if (input.advance()) {
+			queue.add(input);
 		}
 	}
 
+	/**
+	 * Returns the next line, or null if all the inputs are finished. The lines of binary inputs are their calls,
+	 * marshalled.
+	 */
 	public String readLine() throws IOException {
-		String minimum = null;
-		String minimumContig = null;
-		long minimumPos = Long.MAX_VALUE;
-
-		int i = 0;
-		int whoIsMinimum = 0;
-		for (String currentLine : current) {
-			if (currentLine != null) {
-				if (minimumContig == null) {
-					String[] tokens = currentLine.split("\t", 3);
-					minimum = currentLine;
-					minimumContig = tokens[0];
-					minimumPos = Long.parseLong(tokens[1]);
-					whoIsMinimum = i;
-				} else {
-					String[] tokens = currentLine.split("\t", 3);
-					if (minimumContig.equals(tokens[0])) {
-						long currentPos = Long.parseLong(tokens[1]);
-						if (currentPos < minimumPos) {
-							minimum = currentLine;
-							minimumContig = tokens[0];
-							minimumPos = currentPos;
-							whoIsMinimum = i;
-						}
-					} else if (this.sequenceIndexes.get(minimumContig) > this.sequenceIndexes.get(tokens[0])) {
-						minimumContig = tokens[0];
-						minimum = currentLine;
-						minimumPos = Long.parseLong(tokens[1]);
-						whoIsMinimum = i;
-					}
-				}
+		Input input = next();
+		if (input == null) {
+			return null;
+		}
+		String line = input.getLine();
+		release(input);
+		return line;
+	}
 
-			}
-			i++;
+	/**
+	 * Returns the call of the next line, or null if all the inputs are finished
+	 */
+	public MethylationCall readCall() throws IOException {
+		Input input = next();
+		if (input == null) {
+			return null;
 		}
-		if (minimum != null) {
-			this.current[whoIsMinimum] = readLine(this.readers[whoIsMinimum]);
-			this.lastLineReaderIndex = whoIsMinimum;
-		} else {
+		MethylationCall call = input.getCall();
+		release(input);
+		return call;
+	}
+
+	private Input next() {
+		Input input = queue.poll();
+		if (input == null) {
 			this.lastLineReaderIndex = -1;
+			this.lastContig = null;
+			this.lastPosition = -1;
+			return null;
 		}
-
-		return minimum;
+		this.lastLineReaderIndex = input.index;
+		this.lastContig = input.contig;
+		this.lastPosition = input.position;
+		return input;
 	}
 
-	private String readLine(BufferedReader reader) throws IOException {
-		String line = null;
-		do {
-			line = reader.readLine();
-		} while (line != null && line.startsWith("#"));
-
-		return line;
+	private void release(Input input) throws IOException {
+		if (input.advance()) {
+			queue.add(input);
+		}
 	}
 
 	/**
@@ -121,4 +152,127 @@ public class GPFilesReader {
 	public int getLastLineReaderIndex() {
 		return lastLineReaderIndex;
 	}
+
+	/**
+	 * Returns the sequence of the last returned line, or null if null was returned
+	 */
+	public String getLastContig() {
+		return lastContig;
+	}
+
+	/**
+	 * Returns the position of the last returned line, or -1 if null was returned
+	 */
+	public long getLastPosition() {
+		return lastPosition;
+	}
+
+	private int getSequenceIndex(String contig) {
+		Integer index = sequenceIndexes.get(contig);
+		if (index == null) {
+			throw new IllegalArgumentException("Unknown sequence: " + contig);
+		}
+		return index;
+	}
+
+	private abstract class Input {
+		final int index;
+		String contig;
+		int contigIndex;
+		long position;
+
+		Input(int index) {
+			this.index = index;
+		}
+
+		/**
+		 * Moves to the next line and parses its position
+		 *
+		 * @return false if the input is finished
+		 */
+		abstract boolean advance() throws IOException;
+
+		abstract String getLine();
+
+		abstract MethylationCall getCall();
+	}
+
+	private class TextInput extends Input {
+		private final BufferedReader reader;
+		private String line;
+
+		TextInput(int index, BufferedReader reader) {
+			super(index);
+			this.reader = reader;
+		}
+
+		@Override
+		boolean advance() throws IOException {
+			do {
+				line = reader.readLine();
+			} while (line != null && line.startsWith("#"));
+
+			if (line == null) {
+				return false;
+			}
+
+			int contigEnd = line.indexOf('\t');
+			int positionEnd = line.indexOf('\t', contigEnd + 1);
+			if (positionEnd == -1) {
+				positionEnd = line.length();
+			}
+			// consecutive lines are usually in the same sequence
+			if (contig == null || contig.length() != contigEnd || !line.startsWith(contig)) {
+				contig = line.substring(0, contigEnd);
+				contigIndex = getSequenceIndex(contig);
+			}
+			position = Long.parseLong(line.substring(contigEnd + 1, positionEnd));
+			return true;
+		}
+
+		@Override
+		String getLine() {
+			return line;
+		}
+
+		@Override
+		MethylationCall getCall() {
+			return MethylationCall.unmarshall(line);
+		}
+	}
+
+	private class BinaryInput extends Input {
+		private final MethylationCallReader reader;
+		private MethylationCall call;
+
+		BinaryInput(int index, MethylationCallReader reader) {
+			super(index);
+			this.reader = reader;
+		}
+
+		@Override
+		boolean advance() throws IOException {
+			call = reader.read();
+			if (call == null) {
+				return false;
+			}
+			// the reader gives the same name instance for all the calls of a sequence
+			if (call.getContig() != contig) {
+				contig = call.getContig();
+				contigIndex = getSequenceIndex(contig);
+			}
+			position = call.getPosition();
+			return true;
+		}
+
+		@Override
+		String getLine() {
+			return call.marshall();
+		}
+
+		@Override
+		MethylationCall getCall() {
+			return call;
+		}
+	}
 }
@@ -21,15 +21,18 @@ along with bicycle Project.  If not, see <http://www.gnu.org/licenses/>.
 
 package es.cnio.bioinfo.bicycle.gatk;
 
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import org.broadinstitute.sting.commandline.Argument;
 import org.broadinstitute.sting.gatk.GenomeAnalysisEngine;
@@ -38,10 +41,7 @@ import org.broadinstitute.sting.utils.pileup.PileupElement;
 import org.broadinstitute.sting.utils.pileup.PileupElementFilter;
 import org.broadinstitute.sting.utils.pileup.ReadBackedPileup;
 
-import net.sf.samtools.CigarElement;
-import net.sf.samtools.CigarOperator;
 import net.sf.samtools.SAMRecord;
-import net.sf.samtools.TextCigarCodec;
 
 public class ListerFilter extends ReadFilter {
 
@@ -53,6 +53,9 @@ public class ListerFilter extends ReadFilter {
 	@Argument(doc = "remove bad bisulfited", required = false)
 	public boolean removeBad = false;
 
+	@Argument(doc = "number of cytosines out of the CpG context of the bad bisulfited reads", required = false)
+	public int badBisulfiteThreshold = BadBisulfiteFilter.DEFAULT_THRESHOLD;
+
 	@Argument(doc = "remove ambigous read using tagged reads with ZA flag", required = false)
 	public boolean removeAmbiguous = false;
 
@@ -61,8 +64,7 @@ public class ListerFilter extends ReadFilter {
 
 	public static char TRIMMED_BASE = 'X';
 
-	public Pattern watson = Pattern.compile(".*[Cc][^Gg].*[Cc][^Gg].*[Cc][^Gg].*[Cc][^Gg].*");
-	public Pattern crick = Pattern.compile(".*[^Cc][Gg].*[^Cc][Gg].*[^Cc][Gg].*[^Cc][Gg].*");
+	private BadBisulfiteFilter badBisulfiteFilter;
 
 	private GenomeAnalysisEngine engine;
 
@@ -70,54 +72,66 @@ public class ListerFilter extends ReadFilter {
 	public static int mindepth = 1;
 
 
-	// counters
-	private long unmmapedReadsCounter = 0;
-	private long withMoreThanOneAlignmentCounter = 0;
-	private long ambiguousReadCounter = 0;
-	private long trimmedCounter = 0;
-	private long badBisulfitedCounter = 0;
-	private long processedReadsCounter = 0;
+	/**
+	 * The reasons why a read is filtered out
+	 */
+	public enum FilterReason {
+		UNMAPPED, MORE_THAN_ONE_ALIGNMENT, AMBIGUOUS, BAD_BISULFITED
+	}
 
-	private ThreadLocal<Boolean> freezeCountersInThread = new ThreadLocal<>();
+	// counters, kept per thread and merged when the statistics are requested
+	private volatile CounterGeneration counters = new CounterGeneration();
 
+	/**
+	 * Stops counting the reads filtered by the current thread, since they were already counted
+	 */
 	public void freezeCountersInThread() {
-		this.freezeCountersInThread.set(true);
+		this.getCountersInThread().frozen = true;
 	}
+
 	public void unfreezeCountersInThread() {
-		this.freezeCountersInThread.set(false);
+		this.getCountersInThread().frozen = false;
 	}
 
 	public void resetCounters() {
-		this.processedReadsCounter = 0;
-		this.unmmapedReadsCounter = 0;
-		this.withMoreThanOneAlignmentCounter = 0;
-		this.ambiguousReadCounter = 0;
-		this.trimmedCounter = 0;
-		this.badBisulfitedCounter = 0;
-	}
-
-	public long getUnmmapedReadsCounter() {
-		return unmmapedReadsCounter;
+		this.counters = new CounterGeneration();
 	}
 
-	public long getWithMoreThanOneAlignmentCounter() {
-		return withMoreThanOneAlignmentCounter;
-	}
-
-	public long getAmbiguousReadCounter() {
-		return ambiguousReadCounter;
-	}
-
-	public long getBadBisulfitedCounter() {
-		return badBisulfitedCounter;
+	/**
+	 * Returns the reads counted since the last reset, merging the counters of all threads. It must be called once
+	 * the threads filtering reads have finished.
+	 */
+	public Statistics getStatistics() {
+		Statistics statistics = new Statistics();
+		CounterGeneration generation = this.counters;
+		synchronized (generation.all) {
+			for (Counters threadCounters : generation.all) {
+				statistics.processed += threadCounters.processed;
+				statistics.trimmed += threadCounters.trimmed;
+				for (int i = 0; i < statistics.filtered.length; i++) {
+					statistics.filtered[i] += threadCounters.filtered[i];
+				}
+			}
+		}
+		return statistics;
 	}
 
-	public long getProcessedReadsCounter() {
-		return processedReadsCounter;
+	/**
+	 * Returns the metrics file with the statistics of the reads filtered in an analysis
+	 */
+	public static File getMetricsFile(File summaryFile) {
+		return new File(summaryFile.getAbsolutePath() + ".filters");
 	}
 
-	public long getTrimmedCounter() {
-		return trimmedCounter;
+	private Counters getCountersInThread() {
+		CounterGeneration generation = this.counters;
+		Counters threadCounters = generation.perThread.get();
+		if (threadCounters == null) {
+			threadCounters = new Counters();
+			generation.perThread.set(threadCounters);
+			generation.all.add(threadCounters);
+		}
+		return threadCounters;
 	}
 
 	@Override
@@ -129,16 +143,15 @@ public class ListerFilter extends ReadFilter {
 	@Override
 	public boolean filterOut(SAMRecord record) {
 
-		if (this.freezeCountersInThread.get() == null) {
-			this.freezeCountersInThread.set(false);
-		}
+		Counters counters = this.getCountersInThread();
+		boolean count = !counters.frozen;
 
 		//remove reads with two or more alignments
 
-		if (this.freezeCountersInThread.get() == false) this.processedReadsCounter ++;
+		if (count) counters.processed++;
 		if (record.getReadUnmappedFlag()) {
 
-			if (this.freezeCountersInThread.get() == false) this.unmmapedReadsCounter++;
+			if (count) counters.filtered[FilterReason.UNMAPPED.ordinal()]++;
 			System.err.println("UNMAPPED READ!");
 			System.exit(1);
 			return false;
@@ -149,14 +162,14 @@ public class ListerFilter extends ReadFilter {
 			if (record.getHeader().getProgramRecord("Bowtie") != null) {
 				if (record.getAttribute("XM") != null
 						&& ((Integer) record.getAttribute("XM")) > 1) {
-					if (this.freezeCountersInThread.get() == false) this.withMoreThanOneAlignmentCounter++;
+					if (count) counters.filtered[FilterReason.MORE_THAN_ONE_ALIGNMENT.ordinal()]++;
 					return true;
 				}
 			}
 			// bowtie 2
 			if (record.getHeader().getProgramRecord("bowtie2") != null) {
 				if (record.getAttribute("XS") != null) {
-					if (this.freezeCountersInThread.get() == false) this.withMoreThanOneAlignmentCounter++;
+					if (count) counters.filtered[FilterReason.MORE_THAN_ONE_ALIGNMENT.ordinal()]++;
 					return true;
 				}
 			}
@@ -165,7 +178,7 @@ public class ListerFilter extends ReadFilter {
 		//remove ambiguous
 		if (removeAmbiguous) {
 			if (record.getAttribute("ZA") != null && record.getAttribute("ZA").toString().equals("Y")) {
-				if (this.freezeCountersInThread.get() == false) this.ambiguousReadCounter++;
+				if (count) counters.filtered[FilterReason.AMBIGUOUS.ordinal()]++;
 				return true;
 			}
 		}
@@ -173,14 +186,20 @@ public class ListerFilter extends ReadFilter {
 		//trim to x mismatch (trim must be before bad bisulfited)
 		if (trim) {
 			boolean trimmed = trim(record, trimUntil);
-			if (trimmed && this.freezeCountersInThread.get() == false) this.trimmedCounter++;
+			if (trimmed && count) counters.trimmed++;
 		}
 		//bad bisulfited filter
 		if (removeBad) {
-			if (record.getReadGroup().getId().equals("WATSON") && watson.matcher(record.getReadString()).find()
+			BadBisulfiteFilter badBisulfite = this.badBisulfiteFilter;
+			if (badBisulfite == null || badBisulfite.getThreshold() != badBisulfiteThreshold) {
+				badBisulfite = new BadBisulfiteFilter(badBisulfiteThreshold);
+				this.badBisulfiteFilter = badBisulfite;
+			}
+			String group = record.getReadGroup().getId();
+			if (group.equals("WATSON") && badBisulfite.isBad(Strand.WATSON, record.getReadBases())
 					||
-					record.getReadGroup().getId().equals("CRICK") && crick.matcher(record.getReadString()).find()) {
-				if (this.freezeCountersInThread.get() == false) this.badBisulfitedCounter++;
+					group.equals("CRICK") && badBisulfite.isBad(Strand.CRICK, record.getReadBases())) {
+				if (count) counters.filtered[FilterReason.BAD_BISULFITED.ordinal()]++;
 				return true;
 			}
 		}
@@ -238,75 +257,24 @@ public class ListerFilter extends ReadFilter {
 
 	private boolean trim(SAMRecord record, int trimMismatches) {
 		record.setAttribute("XT", "true");
-		String sequenceCT = record.getReadString();
 
 		int mismatches = (Integer) record.getAttribute("NM");
 
 		if (mismatches >= trimMismatches) {
-
 			boolean isReverse = record.getReadNegativeStrandFlag();
+			byte[] bases = record.getReadBases();
 
-
-			int currentMismatches = 0;
-			int trimPoint = isReverse ? sequenceCT.length() : 0;
-
-			CigarIterator cigarIterator =
-					new CigarIterator(record.getCigarString(), isReverse);
-
-			MDTagIterator mdIterator = new MDTagIterator((String) record.getAttribute("MD"), isReverse);
-
-			CigarOperator lastCigarOperator = null;
-			while (cigarIterator.hasNext() && currentMismatches < trimMismatches) {
-				CigarOperator operator = cigarIterator.next();
-
-				switch (operator) {
-					case M:
-						MDTagOperator mdOperator = mdIterator.next();
-						if (mdOperator == MDTagOperator.VARIANT) {
-							currentMismatches++;
-							if (currentMismatches < trimMismatches) {
-								trimPoint = trimPoint + (isReverse ? -1 : 1);
-							}
-						} else if (mdOperator == MDTagOperator.SEQUENCE_MATCH) {
-							// do nothing
-							trimPoint = trimPoint + (isReverse ? -1 : 1);
-						} else {
-							//should not happen
-							return false; // do not trim
-						}
-
-						break;
-					case I:
-						currentMismatches++;
-						if (currentMismatches < trimMismatches) {
-							trimPoint = trimPoint + (isReverse ? -1 : 1);
-						}
-						break;
-					case D:
-						currentMismatches++;
-						mdIterator.next();
-						break;
-					default:
-						return false; //do not trim this read, since it has non-supported CIGAR operations
-				}
-				lastCigarOperator = operator;
-			}
-
-			if (currentMismatches >= trimMismatches) {
+			int trimPoint = ReadTrimmer.findTrimPoint(record.getCigar().getCigarElements(), (String) record
+					.getAttribute("MD"), isReverse, bases.length, trimMismatches);
+			if (trimPoint != -1) {
 				if (isReverse) {
-					//trimPoint ++; //trim the last mismatch
-					record.setReadString(record.getReadString().substring(0, trimPoint).replaceAll(".", "" +
-							TRIMMED_BASE)
-							+ record.getReadString().substring(trimPoint));
+					Arrays.fill(bases, 0, trimPoint, (byte) TRIMMED_BASE);
 				} else {
-					//trimPoint --; //trim the last mismatch
-					record.setReadString(record.getReadString().substring(0, trimPoint) + record.getReadString()
-							.substring
-									(trimPoint).replaceAll(".", "" + TRIMMED_BASE));
+					Arrays.fill(bases, trimPoint, bases.length, (byte) TRIMMED_BASE);
 				}
+				record.setReadBases(bases);
 				return true;
 			}
-
 		}
 		return false;
 
@@ -314,29 +282,27 @@ public class ListerFilter extends ReadFilter {
 
 	@Override
 	public String toString() {
+		Statistics statistics = this.getStatistics();
 
-		double ambiguousRatio = (double)this.getAmbiguousReadCounter()/(double)this.getProcessedReadsCounter();
-		double onlyWithOneAlignmentRatio = (double)this.getWithMoreThanOneAlignmentCounter()/(double)this.getProcessedReadsCounter();
-		double badBisulfitedRatio = (double)this.getBadBisulfitedCounter()/(double)this
-				.getProcessedReadsCounter();
-		double trimmedRatio = (double)this.getTrimmedCounter()/(double)this.getProcessedReadsCounter();
-
-		return "Mapped reads processed: "+this.getProcessedReadsCounter()+"" +
+		return "Mapped reads processed: "+statistics.getProcessed()+"" +
 				", remove ambiguous reads: " + this.removeAmbiguous +
-					(this.removeAmbiguous ? " (" + this.getAmbiguousReadCounter() + " removed " +
-						"("+asPercent(ambiguousRatio)+"))"
+					(this.removeAmbiguous ? " (" + statistics.getFiltered(FilterReason.AMBIGUOUS) + " removed " +
+						"("+asPercent(statistics.getRatio(statistics.getFiltered(FilterReason.AMBIGUOUS)))+"))"
 						: "") +
 				", remove with more than one alignment: " + this.onlyWithOneAlignment +
-					(this.onlyWithOneAlignment ? " (" + this.getWithMoreThanOneAlignmentCounter() + " removed " +
-						"("+asPercent(onlyWithOneAlignmentRatio)+"))"
+					(this.onlyWithOneAlignment ? " (" + statistics.getFiltered(FilterReason.MORE_THAN_ONE_ALIGNMENT) +
+						" removed " +
+						"("+asPercent(statistics.getRatio(statistics.getFiltered(FilterReason
+						.MORE_THAN_ONE_ALIGNMENT)))+"))"
 						: "") +
 				", remove non-correctly bisulfite-converted reads: " + this.removeBad +
-					(this.removeBad ? " (" + this.getBadBisulfitedCounter() + " removed " +
-							"("+asPercent(badBisulfitedRatio)+"))"
+					(this.removeBad ? " (" + statistics.getFiltered(FilterReason.BAD_BISULFITED) + " removed " +
+							"("+asPercent(statistics.getRatio(statistics.getFiltered(FilterReason.BAD_BISULFITED)))
+							+"))"
 						: "") +
 				", trim to 'x' mismatch: " + this.trim +
-					(this.trim ? " x=" + this.trimUntil + " " + this.getTrimmedCounter() + " trimmed " +
-						"("+asPercent(trimmedRatio)+")"
+					(this.trim ? " x=" + this.trimUntil + " " + statistics.getTrimmed() + " trimmed " +
+						"("+asPercent(statistics.getRatio(statistics.getTrimmed()))+")"
 						:"");
 	}
 
@@ -346,186 +312,74 @@ public class ListerFilter extends ReadFilter {
 		return fmt.format(decimal * 100d) + "%";
 	}
 
-	protected static class CigarIterator implements Iterator<CigarOperator> {
-
-		private final boolean reverse;
-		private List<CigarElement> cigarElements;
-		private int currentCigarElementsPos;
-
-		private int repetitionsOfCurrentOperation = 0;
-		private CigarOperator currentOperator = null;
+	/**
+	 * Number of reads processed, filtered out by each reason and trimmed by a {@link ListerFilter}
+	 */
+	public static class Statistics {
+		private long processed = 0;
+		private long trimmed = 0;
+		private final long[] filtered = new long[FilterReason.values().length];
 
-		public CigarIterator(String cigar, boolean reverse) {
-			this.cigarElements = new ArrayList(TextCigarCodec.getSingleton().decode(cigar).getCigarElements());
-			this.reverse = reverse;
-			this.currentCigarElementsPos = this.reverse ? cigarElements.size() : -1;
-			this.advanceCigarElement();
+		public long getProcessed() {
+			return processed;
 		}
 
-		@Override
-		public boolean hasNext() {
-			return repetitionsOfCurrentOperation > 0
-					|| (this.currentCigarElementsPos >= 0 && this.currentCigarElementsPos < this.cigarElements.size());
+		public long getTrimmed() {
+			return trimmed;
 		}
 
-		@Override
-		public CigarOperator next() {
-
-			CigarOperator result = this.currentOperator;
-			this.repetitionsOfCurrentOperation--;
-			if (repetitionsOfCurrentOperation == 0 && (this.currentCigarElementsPos >= 0 && this
-					.currentCigarElementsPos < this.cigarElements.size())) {
-				advanceCigarElement();
-			}
-
-			return result;
+		public long getFiltered(FilterReason reason) {
+			return filtered[reason.ordinal()];
 		}
 
-		private void advanceCigarElement() {
-			this.currentCigarElementsPos = this.currentCigarElementsPos + (this.reverse ? -1 : 1);
-			if (this.currentCigarElementsPos >= 0 && this.currentCigarElementsPos < this.cigarElements.size()) {
-				CigarElement element = this.cigarElements.get(this.currentCigarElementsPos);
-				this.repetitionsOfCurrentOperation = element.getLength();
-				this.currentOperator = element.getOperator();
+		/**
+		 * Returns the number of reads filtered out by any reason
+		 */
+		public long getFiltered() {
+			long total = 0;
+			for (long count : filtered) {
+				total += count;
 			}
+			return total;
 		}
-	}
 
-	protected enum MDTagOperator {
-		DELETION, SEQUENCE_MATCH, VARIANT
-	}
-
-	protected static abstract class MDTagOperation {
-		public abstract int getLength();
-
-		public abstract MDTagOperator getOperator();
-	}
-
-	protected static class SequenceMatchOperation extends MDTagOperation {
-		int length;
-
-		public SequenceMatchOperation(int length) {
-			this.length = length;
+		/**
+		 * Returns a number of reads relative to the processed ones
+		 */
+		public double getRatio(long reads) {
+			return (double) reads / (double) processed;
 		}
 
-		@Override
-		public int getLength() {
-			return length;
-		}
-
-		@Override
-		public MDTagOperator getOperator() {
-			return MDTagOperator.SEQUENCE_MATCH;
-		}
-	}
-
-	protected static class SequenceVariantOperation extends MDTagOperation {
-		private char allele;
-
-		public SequenceVariantOperation(char alelle) {
-			this.allele = allele;
-		}
-
-		@Override
-		public int getLength() {
-			return 1;
-		}
-
-		@Override
-		public MDTagOperator getOperator() {
-			return MDTagOperator.VARIANT;
+		/**
+		 * Writes the statistics as a metrics file, with a name and a value separated by a tab in each line
+		 */
+		public void write(File file) throws FileNotFoundException {
+			PrintStream out = new PrintStream(new FileOutputStream(file));
+			out.println("processed\t" + processed);
+			for (FilterReason reason : FilterReason.values()) {
+				out.println("filtered." + reason.name().toLowerCase() + "\t" + getFiltered(reason));
+			}
+			out.println("trimmed\t" + trimmed);
+			out.close();
 		}
 	}
 
-	protected static class DeletionOperation extends MDTagOperation {
-		private String deletedBases;
-
-		public DeletionOperation(String deletedBases) {
-			this.deletedBases = deletedBases;
-		}
-
-		public String getDeletedBases() {
-			return deletedBases;
-		}
-
-		@Override
-		public int getLength() {
-			return deletedBases.length();
-		}
-
-		@Override
-		public MDTagOperator getOperator() {
-			return MDTagOperator.DELETION;
-		}
+	/**
+	 * The counters of a thread. Only their thread writes them, so they need no synchronization while reads are
+	 * filtered.
+	 */
+	private static class Counters {
+		private long processed = 0;
+		private long trimmed = 0;
+		private final long[] filtered = new long[FilterReason.values().length];
+		private boolean frozen = false;
 	}
 
-	protected static class MDTagIterator implements Iterator<MDTagOperator> {
-		static final Pattern mdPat = Pattern.compile("\\G(?:([0-9]+)|([ACTGNactgn])|(\\^[ACTGNactgn]+))");
-
-		private final boolean reverse;
-		private List<MDTagOperation> mdOperations;
-		private int currentMDOperationsPos;
-
-		private int repetitionsOfCurrentOperation = 0;
-		private MDTagOperator currentOperator = null;
-
-		private List<MDTagOperation> decodeMDTag(String mdString) {
-			Matcher matcher = mdPat.matcher(mdString);
-
-			ArrayList result = new ArrayList<>();
-			while (matcher.find()) {
-				if (matcher.group(1) != null) {
-					// match
-					int length = Integer.parseInt(matcher.group(1));
-					if (length > 0) {
-						result.add(new SequenceMatchOperation(Integer.parseInt(matcher.group(1))));
-					}
-				} else if (matcher.group(2) != null) {
-					// variant
-					result.add(new SequenceVariantOperation(matcher.group(2).charAt(0)));
-				} else if (matcher.group(3) != null) {
-					// deletion
-					result.add(new DeletionOperation(matcher.group(3).substring(1)));
-				}
-			}
-
-			return result;
-		}
-
-		public MDTagIterator(String mdString, boolean reverse) {
-			this.mdOperations = decodeMDTag(mdString);
-			this.reverse = reverse;
-			this.currentMDOperationsPos = this.reverse ? mdOperations.size() : -1;
-			this.advanceMDOperation();
-		}
-
-		@Override
-		public boolean hasNext() {
-			return repetitionsOfCurrentOperation > 0
-					|| (this.currentMDOperationsPos >= 0 && this.currentMDOperationsPos < this.mdOperations.size());
-		}
-
-		@Override
-		public MDTagOperator next() {
-
-			MDTagOperator result = this.currentOperator;
-			this.repetitionsOfCurrentOperation--;
-			if (repetitionsOfCurrentOperation == 0 && (this.currentMDOperationsPos >= 0 && this
-					.currentMDOperationsPos < this.mdOperations.size())) {
-				advanceMDOperation();
-			}
-
-			return result;
-		}
-
-		private void advanceMDOperation() {
-			this.currentMDOperationsPos = this.currentMDOperationsPos + (this.reverse ? -1 : 1);
-			if (this.currentMDOperationsPos >= 0 && this.currentMDOperationsPos < this.mdOperations.size()) {
-				MDTagOperation element = this.mdOperations.get(this.currentMDOperationsPos);
-				this.repetitionsOfCurrentOperation = element.getLength();
-				this.currentOperator = element.getOperator();
-			}
-		}
+	/**
+	 * The counters of all threads since the last reset
+	 */
+	private static class CounterGeneration {
+		private final ThreadLocal<Counters> perThread = new ThreadLocal<>();
+		private final List<Counters> all = Collections.synchronizedList(new ArrayList<Counters>());
 	}
-
 }
@@ -0,0 +1,173 @@
+/*
+
+Copyright 2012 Daniel Gonzalez Peña, Osvaldo Graña
+
+
+This file is part of the bicycle Project. 
+
+bicycle Project is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+bicycle Project is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser Public License for more details.
+
+You should have received a copy of the GNU Lesser Public License
+along with bicycle Project.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package es.cnio.bioinfo.bicycle.gatk;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import es.cnio.bioinfo.bicycle.MethylationCall;
+
+/**
+ * Reads the methylation calls written by one or several {@link MethylationCallWriter}s.
+ *
+ * @author lipido
+ */
+public class MethylationCallReader implements Closeable {
+
+	private static final Context[] CONTEXTS = Context.values();
+
+	private final DataInputStream in;
+
+	private final List<String> contigs = new ArrayList<String>();
+	private String lastContig = null;
+	private long lastPosition = 0;
+
+	private byte[] buffer = new byte[256];
+
+	private final List<BEDAnnotationTrack> annotationTracks;
+
+	/**
+	 * Creates a new reader for files without annotations, or to inspect them. The annotations of the calls are given
+	 * as their identifiers.
+	 */
+	public MethylationCallReader(InputStream in) {
+		this(in, null);
+	}
+
+	/**
+	 * Creates a new reader
+	 *
+	 * @param annotationTracks the tracks the annotations of the calls were taken from, to resolve them
+	 */
+	public MethylationCallReader(InputStream in, List<BEDAnnotationTrack> annotationTracks) {
+		this.in = new DataInputStream(new BufferedInputStream(in, 65536));
+		this.annotationTracks = annotationTracks;
+	}
+
+	/**
+	 * Reads the next call
+	 *
+	 * @return the next call or null if there are no more calls
+	 */
+	public MethylationCall read() throws IOException {
+		int flags = in.read();
+		if (flags == -1) {
+			return null;
+		}
+
+		if ((flags & MethylationCallWriter.NEW_STREAM) != 0) {
+			contigs.clear();
+		}
+		if ((flags & MethylationCallWriter.CONTIG) != 0) {
+			int index = (int) readVarLong();
+			if (index == contigs.size()) {
+				contigs.add(readString());
+			} else if (index > contigs.size()) {
+				throw new IOException("Corrupted methylation file: unknown contig index " + index);
+			}
+			lastContig = contigs.get(index);
+			lastPosition = readVarLong();
+		} else {
+			if (lastContig == null) {
+				throw new IOException("Corrupted methylation file: first record without contig");
+			}
+			long delta = readVarLong();
+			lastPosition += (delta >>> 1) ^ -(delta & 1);
+		}
+
+		int depth = (int) readVarLong();
+		int CTdepth = (int) readVarLong();
+		int cytosines = (int) readVarLong();
+		double betaScore = in.readDouble();
+		double pval = in.readDouble();
+
+		String pileup = (flags & MethylationCallWriter.RAW_PILEUP) != 0 ? readString() : readPackedPileup();
+
+		int[] annotationIds = new int[(int) readVarLong()];
+		for (int i = 0; i < annotationIds.length; i++) {
+			annotationIds[i] = (int) readVarLong();
+		}
+		List<String> annotations;
+		if (this.annotationTracks != null) {
+			annotations = new Annotations(this.annotationTracks, annotationIds);
+		} else {
+			annotations = new ArrayList<String>(annotationIds.length);
+			for (int annotationId : annotationIds) {
+				annotations.add(Integer.toString(annotationId));
+			}
+		}
+
+		return new MethylationCall(lastContig, lastPosition, (flags & MethylationCallWriter.CRICK) != 0 ? Strand
+				.CRICK : Strand.WATSON, CONTEXTS[(flags >>> MethylationCallWriter.CONTEXT_SHIFT) & 0x03], pval,
+				depth, CTdepth, cytosines, pileup, (flags & MethylationCallWriter.CORRECTED_FROM_NON_CG) != 0,
+				(flags & MethylationCallWriter.ADDED_BY_CORRECTION) != 0, annotations, betaScore);
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+	private String readPackedPileup() throws IOException {
+		int length = (int) readVarLong();
+		char[] bases = new char[length];
+		int packed = 0;
+		for (int i = 0; i < length; i++) {
+			if ((i & 3) == 0) {
+				packed = in.readUnsignedByte();
+			}
+			bases[i] = (char) MethylationCallWriter.BASES[(packed >>> ((i & 3) * 2)) & 0x03];
+		}
+		return new String(bases);
+	}
+
+	private String readString() throws IOException {
+		int length = (int) readVarLong();
+		if (buffer.length < length) {
+			buffer = new byte[Math.max(length, buffer.length * 2)];
+		}
+		in.readFully(buffer, 0, length);
+		return new String(buffer, 0, length, StandardCharsets.UTF_8);
+	}
+
+	private long readVarLong() throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.read();
+			if (b == -1) {
+				throw new EOFException("Truncated methylation file");
+			}
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Corrupted methylation file: malformed variable-length integer");
+	}
+}
@@ -0,0 +1,209 @@
+/*
+
+Copyright 2012 Daniel Gonzalez Peña, Osvaldo Graña
+
+
+This file is part of the bicycle Project. 
+
+bicycle Project is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+bicycle Project is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser Public License for more details.
+
+You should have received a copy of the GNU Lesser Public License
+along with bicycle Project.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package es.cnio.bioinfo.bicycle.gatk;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import es.cnio.bioinfo.bicycle.MethylationCall;
+
+/**
+ * Writes methylation calls in the binary format of the intermediate .methylation files, read by
+ * {@link MethylationCallReader}.
+ * <p>
+ * Each record starts with a flags byte (strand, context, corrections and what follows). Contig names are written
+ * once and then referenced by their index in a dictionary, positions are written as variable-length deltas from the
+ * previous call, counts as variable-length integers, p-values and beta scores as doubles and pileups with 2 bits per
+ * base. The annotations of the calls must be {@link Annotations} (or empty), and only their identifiers are
+ * written.
+ * <p>
+ * The first record written by each writer resets the dictionary, so the output of several writers can be
+ * concatenated into one file.
+ *
+ * @author lipido
+ */
+public class MethylationCallWriter implements Closeable {
+
+	static final int NEW_STREAM = 0x01;
+	static final int CONTIG = 0x02;
+	static final int CRICK = 0x04;
+	static final int CORRECTED_FROM_NON_CG = 0x08;
+	static final int ADDED_BY_CORRECTION = 0x10;
+	static final int RAW_PILEUP = 0x20;
+	static final int CONTEXT_SHIFT = 6;
+
+	static final byte[] BASES = {'A', 'C', 'G', 'T'};
+	private static final byte[] BASE_CODES = new byte[128];
+
+	static {
+		for (int i = 0; i < BASE_CODES.length; i++) {
+			BASE_CODES[i] = -1;
+		}
+		for (int i = 0; i < BASES.length; i++) {
+			BASE_CODES[BASES[i]] = (byte) i;
+		}
+	}
+
+	private final DataOutputStream out;
+
+	private final Map<String, Integer> contigs = new HashMap<String, Integer>();
+	private String lastContig = null;
+	private long lastPosition = 0;
+	private boolean first = true;
+
+	public MethylationCallWriter(OutputStream out) {
+		this.out = new DataOutputStream(new BufferedOutputStream(out, 65536));
+	}
+
+	public void write(MethylationCall call) throws IOException {
+		String pileup = call.getPileup();
+		boolean rawPileup = !isPackable(pileup);
+		boolean contigChange = first || !call.getContig().equals(lastContig);
+
+		int flags = call.getContext().ordinal() << CONTEXT_SHIFT;
+		if (first) {
+			flags |= NEW_STREAM;
+		}
+		if (contigChange) {
+			flags |= CONTIG;
+		}
+		if (call.getStrand() == Strand.CRICK) {
+			flags |= CRICK;
+		}
+		if (call.isCorrectedFromNonCG()) {
+			flags |= CORRECTED_FROM_NON_CG;
+		}
+		if (call.isAddedByCorrection()) {
+			flags |= ADDED_BY_CORRECTION;
+		}
+		if (rawPileup) {
+			flags |= RAW_PILEUP;
+		}
+		out.write(flags);
+
+		if (contigChange) {
+			Integer index = contigs.get(call.getContig());
+			if (index == null) {
+				// new contigs are written with the next index, followed by their name
+				index = contigs.size();
+				contigs.put(call.getContig(), index);
+				writeVarLong(index);
+				writeString(call.getContig());
+			} else {
+				writeVarLong(index);
+			}
+			writeVarLong(call.getPosition());
+		} else {
+			writeVarLong(zigZag(call.getPosition() - lastPosition));
+		}
+		lastContig = call.getContig();
+		lastPosition = call.getPosition();
+		first = false;
+
+		writeVarLong(call.getDepth());
+		writeVarLong(call.getCTdepth());
+		writeVarLong(call.getCytosines());
+		out.writeDouble(call.getBetaScore());
+		out.writeDouble(call.getPval());
+
+		if (rawPileup) {
+			writeString(pileup);
+		} else {
+			writePackedPileup(pileup);
+		}
+
+		List<String> callAnnotations = call.getAnnotations();
+		if (callAnnotations.isEmpty()) {
+			writeVarLong(0);
+		} else if (callAnnotations instanceof Annotations) {
+			Annotations annotations = (Annotations) callAnnotations;
+			writeVarLong(annotations.size());
+			for (int i = 0; i < annotations.size(); i++) {
+				writeVarLong(annotations.getAnnotationId(i));
+			}
+		} else {
+			throw new IllegalArgumentException("Only the identifiers of the annotations are written, the annotations " +
+					"of the calls must be created with Annotations.annotate(), found: " + callAnnotations.getClass()
+					.getName());
+		}
+	}
+
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		out.close();
+	}
+
+	private static boolean isPackable(String pileup) {
+		for (int i = 0; i < pileup.length(); i++) {
+			char c = pileup.charAt(i);
+			if (c >= BASE_CODES.length || BASE_CODES[c] == -1) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void writePackedPileup(String pileup) throws IOException {
+		writeVarLong(pileup.length());
+		int packed = 0;
+		int i = 0;
+		for (; i < pileup.length(); i++) {
+			packed |= BASE_CODES[pileup.charAt(i)] << ((i & 3) * 2);
+			if ((i & 3) == 3) {
+				out.write(packed);
+				packed = 0;
+			}
+		}
+		if ((i & 3) != 0) {
+			out.write(packed);
+		}
+	}
+
+	private void writeString(String string) throws IOException {
+		byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+		writeVarLong(bytes.length);
+		out.write(bytes);
+	}
+
+	private void writeVarLong(long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.write((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+
+	private static long zigZag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+}
@@ -0,0 +1,491 @@
+/*
+
+Copyright 2012 Daniel Gonzalez Peña, Osvaldo Graña
+
+
+This file is part of the bicycle Project. 
+
+bicycle Project is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+bicycle Project is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser Public License for more details.
+
+You should have received a copy of the GNU Lesser Public License
+along with bicycle Project.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package es.cnio.bioinfo.bicycle.gatk;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.channels.FileChannel;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import es.cnio.bioinfo.bicycle.MethylationCall;
+import es.cnio.bioinfo.bicycle.RegionMethylation;
+
+/**
+ * Final stage of the methylation analysis, shared by the GATK walker and the native caller: computes the p-value
+ * cutoffs from the calls of both strands and writes the methylcytosines, VCF and summary files.
+ *
+ * @author lipido
+ */
+class MethylationResultsWriter {
+
+	private final List<String> sequenceNames;
+	private final List<BEDAnnotationTrack> annotationTracks;
+	private final List<String> annotationNames = new ArrayList<String>();
+	private final double FDR;
+	private final PrintStream out;
+
+	private HashMap<Strand, HashMap<Context, Double>> cutOffs = new HashMap<Strand, HashMap<Context, Double>>();
+
+	/**
+	 * Creates a new writer
+	 *
+	 * @param sequenceNames    the names of the sequences in the order of the sequence dictionary
+	 * @param annotationTracks the BED annotation tracks of the calls
+	 * @param FDR              the FDR threshold
+	 * @param out              where the progress messages are printed
+	 */
+	public MethylationResultsWriter(List<String> sequenceNames, List<BEDAnnotationTrack> annotationTracks, double
+			FDR, PrintStream out) {
+		this.sequenceNames = sequenceNames;
+		this.annotationTracks = annotationTracks;
+		for (BEDAnnotationTrack track : annotationTracks) {
+			this.annotationNames.add(track.getName());
+		}
+		this.FDR = FDR;
+		this.out = out;
+	}
+
+	public HashMap<Strand, HashMap<Context, Double>> getCutOffs() {
+		return cutOffs;
+	}
+
+	public String computePValCutOffs(final MethylationFilePair results) {
+
+
+		class CutOffThread extends Thread {
+			double[] cutoffs;
+			Strand strand;
+			Throwable error;
+			StringBuffer details = new StringBuffer();
+
+			public CutOffThread(Strand strand) {
+				this.strand = strand;
+			}
+
+			public void run() {
+				try {
+					cutoffs = computePValCutoffsFile(strand, results, details);
+					//System.out.println("cutoffs: "+cutoffs);
+				} catch (Exception e) {
+					e.printStackTrace();
+					this.error = e;
+				}
+			}
+		}
+		;
+
+		CutOffThread watsonT = new CutOffThread(Strand.WATSON);
+		CutOffThread crickT = new CutOffThread(Strand.CRICK);
+
+		watsonT.start();
+		crickT.start();
+
+		try {
+
+			for (CutOffThread thread : new CutOffThread[]{watsonT, crickT}) {
+				thread.join();
+				if (thread.error != null) {
+					throw new RuntimeException(thread.error);
+				}
+
+				out.println("p-val cutoffs computed for strand " + thread.strand + " : " + Arrays.toString(thread
+						.cutoffs));
+
+				HashMap<Context, Double> cutOffs = new HashMap<Context, Double>();
+
+				cutOffs.put(Context.CG, thread.cutoffs[0]);
+				cutOffs.put(Context.CHG, thread.cutoffs[1]);
+				cutOffs.put(Context.CHH, thread.cutoffs[2]);
+
+				this.cutOffs.put(thread.strand, cutOffs);
+
+
+			}
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+
+		return "WATSON\n" + watsonT.details + "\nCRICK\n" + crickT.details;
+	}
+
+	private double[] computePValCutoffsFile(Strand strand, MethylationFilePair results, StringBuffer computingDetails)
+			throws FileNotFoundException, IOException {
+		double[] positiveRate = {0d, 0d, 0d};
+		double[] cutoffs = {1, 1, 1};
+		boolean[] needAdjust = {true, true, true};
+
+		// the p-value distribution does not change while adjusting, so it is frozen once
+		long start = System.currentTimeMillis();
+		Context[] contexts = {Context.CG, Context.CHG, Context.CHH};
+		CumulativePValueHistogram[] pvals = new CumulativePValueHistogram[contexts.length];
+		for (int i = 0; i < contexts.length; i++) {
+			pvals[i] = new CumulativePValueHistogram(results.getPvals(strand, contexts[i]));
+		}
+		long sortTime = System.currentTimeMillis() - start;
+		computingDetails.append("Distinct p-values [CG, CHG, CHH]: [" + pvals[0].size() + ", " + pvals[1].size() +
+				", " + pvals[2].size() + "]\n");
+
+		long[] cCount = countCs(pvals);
+
+		int iteration = 0;
+		while (needAdjust[0] || needAdjust[1] || needAdjust[2]) {
+
+			iteration++;
+			long[] mcCount = countMCs(pvals, cutoffs);
+
+			double[] _positiveRate = {((double) mcCount[0] / (double) cCount[0]) * 100, ((double) mcCount[1] /
+					(double) cCount[1]) * 100, ((double) mcCount[2] / (double) cCount[2]) * 100};
+			computingDetails.append("Iteration " + iteration + ", M: " + Arrays.toString(cutoffs) + " mC: " + Arrays
+					.toString(mcCount) + "/" + Arrays.toString(cCount) + " %mC: " + Arrays.toString(_positiveRate) +
+					"\n");
+
+			if (Double.isNaN(_positiveRate[0])) {
+				cutoffs[0] = 0; // ??
+				needAdjust[0] = false;
+			} else if (_positiveRate[0] != positiveRate[0]) {
+				cutoffs[0] = FDR * _positiveRate[0] / (100d - _positiveRate[0]);
+				positiveRate[0] = _positiveRate[0];
+			} else {
+				needAdjust[0] = false;
+			}
+
+
+			if (Double.isNaN(_positiveRate[1])) {
+				cutoffs[1] = 0; // ??
+				needAdjust[1] = false;
+			} else if (_positiveRate[1] != positiveRate[1]) {
+				cutoffs[1] = FDR * _positiveRate[1] / (100d - _positiveRate[1]);
+				positiveRate[1] = _positiveRate[1];
+			} else {
+				needAdjust[1] = false;
+			}
+
+			if (Double.isNaN(_positiveRate[2])) {
+				cutoffs[2] = 0; // ??
+				needAdjust[2] = false;
+			} else if (_positiveRate[2] != positiveRate[2]) {
+				cutoffs[2] = FDR * _positiveRate[2] / (100d - _positiveRate[2]);
+				positiveRate[2] = _positiveRate[2];
+			} else {
+				needAdjust[2] = false;
+			}
+
+
+			computingDetails.append("\tneed Adjust: " + Arrays.toString(needAdjust) + "\n");
+		}
+
+		computingDetails.append("Finished p-value adjust after " + iteration + " iterations. Result " + Arrays
+				.toString(cutoffs) + "\n");
+		// the timings are not part of the details, which go to the summary file
+		out.println("p-values of strand " + strand + " sorted in " + sortTime + " ms, cutoffs adjusted in " + (System
+				.currentTimeMillis() - start) + " ms");
+		return cutoffs;
+	}
+
+	private long[] countMCs(CumulativePValueHistogram[] pvals, double[] cutoffs) {
+		long[] toret = new long[pvals.length];
+		for (int i = 0; i < pvals.length; i++) {
+			toret[i] = pvals[i].countBelow(cutoffs[i]);
+		}
+		return toret;
+	}
+
+	private long[] countCs(CumulativePValueHistogram[] pvals) {
+		long[] toret = new long[pvals.length];
+		for (int i = 0; i < pvals.length; i++) {
+			toret[i] = pvals[i].getTotal();
+		}
+		return toret;
+	}
+
+	/**
+	 * Merges the calls of both strands by position and writes them to the methylcytosines and VCF files. The
+	 * methylation of the regions of each annotation track is aggregated in the same pass and written next to the
+	 * methylcytosines file (see {@link RegionMethylation#getRegionsFile(File, String)}). The p-value cutoffs must
+	 * have been computed before.
+	 */
+	public GlobalMethylationStatistics writeMethylCytosines(File watsonFile, File crickFile, File methylcytosinesFile,
+															File vcfFile) throws FileNotFoundException {
+
+		PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(methylcytosinesFile)));
+		PrintStream outvcf = new PrintStream(new BufferedOutputStream(new FileOutputStream(vcfFile)));
+
+		try {
+			MethylationCallReader wReader = new MethylationCallReader(new FileInputStream(watsonFile),
+					this.annotationTracks);
+			MethylationCallReader cReader = new MethylationCallReader(new FileInputStream(crickFile),
+					this.annotationTracks);
+
+			Map<String, Integer> sequenceIndexes = new HashMap<String, Integer>();
+			for (String sequenceName : this.sequenceNames) {
+				sequenceIndexes.put(sequenceName, sequenceIndexes.size());
+			}
+
+			GlobalMethylationStatistics stats = new GlobalMethylationStatistics();
+
+			writeMethylcytosinesHeader(out);
+			writeVCFHeader(outvcf);
+
+			RegionMethylationAggregator[] regions = new RegionMethylationAggregator[this.annotationTracks.size()];
+			for (int i = 0; i < regions.length; i++) {
+				regions[i] = new RegionMethylationAggregator(this.annotationTracks.get(i));
+			}
+
+			// merge both strands by position, watson first in ties
+			MethylationCall wCall = wReader.read();
+			MethylationCall cCall = cReader.read();
+			while (wCall != null || cCall != null) {
+				MethylationCall call;
+				if (cCall == null || (wCall != null && compareByPosition(wCall, cCall, sequenceIndexes) <= 0)) {
+					call = wCall;
+					wCall = wReader.read();
+				} else {
+					call = cCall;
+					cCall = cReader.read();
+				}
+
+				writeMehylcytosinesRecord(out, call, stats);
+				writeVCFRecord(outvcf, call);
+
+				Annotations annotations = (Annotations) call.getAnnotations();
+				for (int i = 0; i < regions.length; i++) {
+					regions[i].add(call, annotations.getAnnotationId(i));
+				}
+			}
+			wReader.close();
+			cReader.close();
+			out.close();
+			outvcf.close();
+
+			for (int i = 0; i < regions.length; i++) {
+				String bedName = this.annotationTracks.get(i).getName();
+				this.out.println("Writing methylation of the regions annotated in " + bedName);
+				regions[i].write(RegionMethylation.getRegionsFile(methylcytosinesFile, bedName));
+			}
+			return stats;
+
+		} catch (FileNotFoundException e) {
+			throw new RuntimeException(e);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+
+	}
+
+	private static int compareByPosition(MethylationCall call1, MethylationCall call2, Map<String, Integer>
+			sequenceIndexes) {
+		if (!call1.getContig().equals(call2.getContig())) {
+			return sequenceIndexes.get(call1.getContig()).compareTo(sequenceIndexes.get(call2.getContig()));
+		}
+		return Long.compare(call1.getPosition(), call2.getPosition());
+	}
+
+	private void writeMethylcytosinesHeader(PrintStream out) {
+		out.print(MethylationCall.getMarshallHeader());
+		for (String annotationName : this.annotationNames) {
+			out.print("\t" + annotationName);
+		}
+		out.println("\tSTATUS");
+
+	}
+
+	private void writeMehylcytosinesRecord(PrintStream out, MethylationCall call,
+										   GlobalMethylationStatistics stats) {
+		double cutOff = this.cutOffs.get(call.getStrand()).get(call.getContext());
+		call.setCutOff(cutOff);
+		stats.add(call);
+
+		call.marshall(out);
+		if (call.getPval() < cutOff) {
+			out.println("\tMETHYLATED");
+		} else {
+			out.println("\tUNMETHYLATED");
+		}
+	}
+
+
+	private void writeVCFHeader(PrintStream out) {
+		//header
+		out.println("#fileformat=VCFv4.1");
+		out.println("##INFO=<ID=NS,Number=1,Type=Integer,Description=\"Number of Samples With Data\">");
+		out.println("##INFO=<ID=DP,Number=1,Type=Integer,Description=\"Total Depth\">");
+		out.println("##INFO=<ID=CTDP,Number=1,Type=Integer,Description=\"CorT Depth\">");
+		out.println("##INFO=<ID=CD,Number=1,Type=Integer,Description=\"Cytosine Depth\">");
+
+		//modified (osvaldo, 3jan2016)
+		//out.println("##INFO=<ID=PER,Number=1,Type=Float,Description=\"Methylation percentage\">");		
+		out.println("##INFO=<ID=BS,Number=1,Type=Float,Description=\"Beta Score\">");
+
+		out.println("##INFO=<ID=PU,Number=1,Type=Float,Description=\"Readed bases at this position\">");
+		out.println("##INFO=<ID=CO,Number=1,Type=Flag,Description=\"Corrected, i.e., this CG is derived from a non-GC " +
+				"to GC correction\">");
+		out.println("##INFO=<ID=AC,Number=1,Type=Flag,Description=\"Added by correction, i.e., this CG is added due to" +
+				" a correction from non-CG to CG in the opposite strand\">");
+		out.println("##INFO=<ID=STR,Number=1,Type=String,Description=\"Strand Aligment\">");
+
+		for (String annotationName : this.annotationNames) {
+			out.println("##INFO=<ID=" + annotationName + ",Number=1,Type=String,Description=\"" + annotationName
+					+ " annotation\">");
+		}
+
+		out.println("#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO");
+	}
+
+	private void writeVCFRecord(PrintStream out, MethylationCall call) {
+		double cutOff = this.cutOffs.get(call.getStrand()).get(call.getContext());
+
+		out.print(call.getContig() + "\t");
+		out.print(call.getPosition() + "\t");
+		out.print(call.getContext() + "\t");
+		out.print("C\t");
+		if (call.getPval() < cutOff) {
+			out.print("C\t");
+		} else {
+			out.print(".\t");
+		}
+		out.print(".\t.\t");
+
+		//info
+		out.print("NS=1;");
+		out.print("DP=" + call.getDepth() + ";");
+		out.print("CTDP=" + call.getCTdepth() + ";");
+		out.print("CD=" + call.getCytosines() + ";");
+
+		//modified (osvaldo, 3jan2016)
+		//out.print("PER="+new DecimalFormat("###.##").format(100*(double)call.getCytosines()/(double)call.getDepth())
+		// +";");
+		out.print("BS=" + new DecimalFormat("#.#######").format(call.getBetaScore()) + ";");
+
+		out.print("PU=" + call.getPileup() + ";");
+		if (call.isCorrectedFromNonCG()) {
+			out.print("CO;");
+		}
+		if (call.isAddedByCorrection()) {
+			out.print("AC;");
+		}
+
+		out.print("STR=" + (call.getStrand() == Strand.WATSON ? "+" : "-") + ";");
+
+		for (int i = 0; i < this.annotationNames.size(); i++) {
+			out.print(this.annotationNames.get(i) + "=" + call.getAnnotations().get(i) + ";");
+		}
+		out.println();
+	}
+
+	/**
+	 * Writes the summary of the analysis, and the metrics of the read filter next to it. The p-value cutoffs must
+	 * have been computed before.
+	 *
+	 * @param clonalDetails the clonal reads marked in the input files, or null if they were removed per locus
+	 * @param errorRate     the fixed error rate given by the user, or an empty string
+	 * @param controlGenome the contig where the error was computed, or an empty string
+	 */
+	public void printSummary(File summaryFile, GlobalMethylationStatistics stats, String cutoffDetails,
+							 boolean correctNonCG, ListerFilter listerFilter, boolean removeClonal, String clonalDetails,
+							 String errorRate, String controlGenome, ContigBisulfiteError error)
+			throws FileNotFoundException {
+		PrintStream summary = new PrintStream(new FileOutputStream(summaryFile));
+		summary.println("====METHYLATION RESULTS=======================================================");
+		summary.println("File: " + summaryFile.getName());
+		summary.println("Date: " + new Date());
+		summary.println();
+
+		summary.println("====ANALYSIS PARAMETERS=======================================================");
+		summary.println(" Correct non-CG: " + correctNonCG);
+
+
+		summary.println(" Filters:" + (listerFilter == null ? "\n" : "\n  " + listerFilter.toString().replace(",", "\n" +
+				" ")));
+		if (listerFilter != null) {
+			listerFilter.getStatistics().write(ListerFilter.getMetricsFile(summaryFile));
+		}
+		summary.println("  remove clonal reads: " + removeClonal + (removeClonal && clonalDetails != null ? " (" +
+				clonalDetails + ")" : ""));
+		summary.println(" FDR threshold: " + this.FDR);
+		summary.println();
+		summary.println("====ERROR ESTIMATION AND SIGNIFICANCE ADJUSTMENTS=============================");
+		//error rates
+		summary.print(" Error rates (");
+		if (!errorRate.equals("")) {
+			summary.println("fixed):");
+		} else if (!controlGenome.equals("")) {
+			summary.println("from control genome: " + controlGenome + "):");
+		}
+		summary.println("  " + error.toString().replaceAll("\n", "\n  "));
+		summary.println("  p-value cutoffs: " + this.cutOffs);
+		summary.println();
+		summary.println("====METHYLATION ANALYSIS RESULTS==============================================");
+		//statistics		
+		summary.println(stats);
+
+		//cut-off details
+		summary.println("Cut-off computation details:\n" + cutoffDetails);
+
+	}
+
+	/**
+	 * Joins the shard files into the output file and deletes them
+	 */
+	public static void concatenateFiles(List<File> shards, File outfile) throws IOException {
+		if (shards.size() == 1 && shards.get(0).renameTo(outfile)) {
+			return;
+		}
+
+		FileOutputStream out = new FileOutputStream(outfile);
+		try {
+			FileChannel outChannel = out.getChannel();
+			for (File shard : shards) {
+				FileInputStream in = new FileInputStream(shard);
+				try {
+					FileChannel inChannel = in.getChannel();
+					long size = inChannel.size();
+					long position = 0;
+					while (position < size) {
+						position += inChannel.transferTo(position, size - position, outChannel);
+					}
+				} finally {
+					in.close();
+				}
+			}
+		} finally {
+			out.close();
+		}
+
+		for (File shard : shards) {
+			if (!shard.delete()) {
+				throw new RuntimeException("Could no delete tempary file: " + shard);
+			}
+		}
+	}
+}
@@ -0,0 +1,496 @@
+/*
+
+Copyright 2012 Daniel Gonzalez Peña, Osvaldo Graña
+
+
+This file is part of the bicycle Project. 
+
+bicycle Project is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+bicycle Project is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser Public License for more details.
+
+You should have received a copy of the GNU Lesser Public License
+along with bicycle Project.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package es.cnio.bioinfo.bicycle.gatk;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.logging.Logger;
+
+import es.cnio.bioinfo.bicycle.MethylationCall;
+import net.sf.picard.filter.SamRecordFilter;
+import net.sf.picard.reference.IndexedFastaSequenceFile;
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMSequenceRecord;
+
+/**
+ * Methylation caller that works directly over the sorted and indexed Watson and Crick BAM files, without the GATK
+ * engine.
+ * <p>
+ * The genome is split in shards of consecutive positions of a contig that are called in parallel in a fork-join
+ * pool. Each shard streams the reads overlapping it in a {@link RollingPileup} of each strand, applying the same
+ * read filters, clonal removal, contexts and non-CG to CG correction as the {@link ListerMethylationWalker}, so the
+ * results are the same. The calls of each shard are written to their own intermediate files, which are joined in
+ * genome order at the end.
+ * <p>
+ * The parameters are public fields with the same names and defaults as the arguments of the walker.
+ *
+ * @author lipido
+ */
+public class NativeMethylationCaller {
+	private static final Logger logger = Logger.getLogger(NativeMethylationCaller.class.getSimpleName());
+
+	static final int SHARD_SIZE = 1000000;
+	// shards submitted to the pool and not joined yet, per thread. Each one has its own files and histograms
+	private static final int SHARDS_IN_FLIGHT_PER_THREAD = 2;
+	// distinct p-values expected in the histograms of a shard, they grow when needed
+	private static final int SHARD_PVALS = 64;
+
+	public String controlGenome = "";
+	public String errorRate = "";
+	public double FDR = 0.01;
+	public boolean correctNonCG = false;
+	public boolean removeClonal = false;
+	public boolean trim = false;
+	public int mindepth = 1;
+	public int pvaltabledepth = 200;
+	public List<File> beds = new ArrayList<File>();
+	/**
+	 * the {@link ContextTrack} of the reference, or null to compute the contexts from the FASTA file
+	 */
+	public File contexttrack = null;
+
+	public File outdir = new File("./");
+	public File methylationwatsonfile = null;
+	public File methylationcrickfile = null;
+	public File methylcytosinesfile = null;
+	public File methylcytosinesvcffile = null;
+	public File summaryfile = null;
+
+	private final File reference;
+	private final File watsonBAM;
+	private final File crickBAM;
+	private final ListerFilter listerFilter;
+	private final int nThreads;
+
+	private IndexedFastaSequenceFile referenceSequence;
+	private ContextTrack contextTrack;
+	private List<SAMSequenceRecord> sequences;
+	private List<BEDAnnotationTrack> annotationTracks;
+	private ContigBisulfiteError error;
+	private CytosineCaller caller;
+	// clonal reads are removed per locus, unless the input files have them marked as duplicates
+	private boolean removeClonalPerLocus;
+	private String clonalDetails;
+
+	/**
+	 * Creates a new caller
+	 *
+	 * @param reference    the indexed FASTA file of the reference
+	 * @param watsonBAM    the sorted and indexed BAM file of the reads aligned to the Watson strand
+	 * @param crickBAM     the sorted and indexed BAM file of the reads aligned to the Crick strand
+	 * @param listerFilter the read filter, or null to use only the default filters
+	 * @param nThreads     the number of shards called at the same time
+	 */
+	public NativeMethylationCaller(File reference, File watsonBAM, File crickBAM, ListerFilter listerFilter,
+								   int nThreads) {
+		if (nThreads < 1) {
+			throw new IllegalArgumentException("at least one thread is needed");
+		}
+		this.reference = reference;
+		this.watsonBAM = watsonBAM;
+		this.crickBAM = crickBAM;
+		this.listerFilter = listerFilter;
+		this.nThreads = nThreads;
+	}
+
+	public void run() throws IOException, InterruptedException {
+		if (this.methylationwatsonfile == null || this.methylationcrickfile == null || this.methylcytosinesfile ==
+				null || this.methylcytosinesvcffile == null || this.summaryfile == null) {
+			throw new IllegalArgumentException("all the output files must be set");
+		}
+		ListerFilter.trim = this.trim;
+		ListerFilter.mindepth = this.mindepth;
+		if (this.removeClonal) {
+			this.clonalDetails = ClonalReadMarker.describe(Arrays.asList(this.watsonBAM, this.crickBAM));
+		}
+		this.removeClonalPerLocus = this.removeClonal && this.clonalDetails == null;
+
+		SAMFileReader headerReader = new SAMFileReader(this.watsonBAM);
+		this.sequences = headerReader.getFileHeader().getSequenceDictionary().getSequences();
+		headerReader.close();
+
+		this.referenceSequence = new IndexedFastaSequenceFile(this.reference);
+		if (this.contexttrack != null) {
+			this.contextTrack = ContextTrack.open(this.contexttrack);
+		}
+		this.annotationTracks = new ArrayList<BEDAnnotationTrack>();
+		for (File bed : this.beds) {
+			this.annotationTracks.add(new BEDAnnotationTrack(bed));
+		}
+
+		ForkJoinPool pool = new ForkJoinPool(this.nThreads);
+		try {
+			this.error = computeError(pool);
+			logger.info("Error computed " + this.error);
+
+			this.caller = new CytosineCaller(new BinomialPValueTable(this.error, this.pvaltabledepth), this
+					.correctNonCG);
+
+			MethylationFilePair result = callShards(pool);
+
+			MethylationResultsWriter.concatenateFiles(result.getWatsonFiles(), this.methylationwatsonfile);
+			MethylationResultsWriter.concatenateFiles(result.getCrickFiles(), this.methylationcrickfile);
+
+			List<String> sequenceNames = new ArrayList<String>();
+			for (SAMSequenceRecord sequence : this.sequences) {
+				sequenceNames.add(sequence.getSequenceName());
+			}
+
+			MethylationResultsWriter resultsWriter = new MethylationResultsWriter(sequenceNames, this
+					.annotationTracks, this.FDR, System.out);
+			String details = resultsWriter.computePValCutOffs(result);
+			GlobalMethylationStatistics stats = resultsWriter.writeMethylCytosines(this.methylationwatsonfile, this
+					.methylationcrickfile, this.methylcytosinesfile, this.methylcytosinesvcffile);
+			resultsWriter.printSummary(this.summaryfile, stats, details, this.correctNonCG, this.listerFilter, this
+					.removeClonal, this.clonalDetails, this.errorRate, this.controlGenome, this.error);
+		} finally {
+			pool.shutdown();
+			if (this.contextTrack != null) {
+				this.contextTrack.close();
+			}
+		}
+	}
+
+	private ContigBisulfiteError computeError(ForkJoinPool pool) throws IOException, InterruptedException {
+		if (this.controlGenome.equals("") && this.errorRate.equals("")) {
+			throw new RuntimeException("Please provide at least --controlgenome or --erorrate");
+		}
+		if (!this.errorRate.equals("")) {
+			return FixedContigBisulfiteError.parse(this.errorRate);
+		}
+
+		logger.info("computing error");
+		List<ForkJoinTask<DefaultContigBisulfiteError>> tasks = new
+				ArrayList<ForkJoinTask<DefaultContigBisulfiteError>>();
+		for (SAMSequenceRecord sequence : this.sequences) {
+			if (sequence.getSequenceName().equals(this.controlGenome)) {
+				for (int start = 1; start <= sequence.getSequenceLength(); start += SHARD_SIZE) {
+					tasks.add(pool.submit(new ErrorShard(sequence, start, Math.min(sequence.getSequenceLength(),
+							start + SHARD_SIZE - 1))));
+				}
+			}
+		}
+		if (tasks.isEmpty()) {
+			throw new IllegalArgumentException("control genome not found in the alignments: " + this.controlGenome);
+		}
+
+		DefaultContigBisulfiteError error = new DefaultContigBisulfiteError();
+		for (ForkJoinTask<DefaultContigBisulfiteError> task : tasks) {
+			DefaultContigBisulfiteError shardError = getResult(task);
+			for (Strand strand : Strand.values()) {
+				for (Context context : Context.values()) {
+					error.addError(strand, context, shardError.getError(strand, context).getTotalReads(), shardError
+							.getError(strand, context).getErrorReads());
+				}
+			}
+		}
+
+		if (this.listerFilter != null) {
+			this.listerFilter.resetCounters();
+		}
+		return error;
+	}
+
+	private MethylationFilePair callShards(ForkJoinPool pool) throws IOException, InterruptedException {
+		List<CallShard> shards = new ArrayList<CallShard>();
+		for (SAMSequenceRecord sequence : this.sequences) {
+			if (sequence.getSequenceName().equals(this.controlGenome)) {
+				continue;
+			}
+			for (int start = 1; start <= sequence.getSequenceLength(); start += SHARD_SIZE) {
+				shards.add(new CallShard(sequence, start, Math.min(sequence.getSequenceLength(), start +
+						SHARD_SIZE - 1)));
+			}
+		}
+		logger.info("Calling methylation in " + shards.size() + " shards with " + this.nThreads + " threads");
+
+		// the shards are joined in genome order, the files are only concatenated at the end. Only a few shards
+		// are submitted ahead of the one being joined, so the files and histograms of the shards are not all
+		// alive at the same time
+		int maxInFlight = this.nThreads * SHARDS_IN_FLIGHT_PER_THREAD;
+		Deque<ForkJoinTask<MethylationFilePair>> inFlight = new ArrayDeque<ForkJoinTask<MethylationFilePair>>();
+		Iterator<CallShard> pending = shards.iterator();
+		MethylationFilePair result = null;
+		while (pending.hasNext() || !inFlight.isEmpty()) {
+			while (pending.hasNext() && inFlight.size() < maxInFlight) {
+				inFlight.add(pool.submit(pending.next()));
+			}
+			MethylationFilePair shardResult = getResult(inFlight.poll());
+			result = result == null ? shardResult : new MethylationFilePair(result, shardResult);
+		}
+		if (result == null) {
+			result = new MethylationFilePair(createShardFile(this.methylationwatsonfile), createShardFile(this
+					.methylationcrickfile));
+		}
+		return result;
+	}
+
+	private File createShardFile(File outfile) throws IOException {
+		File shardFile = new File(this.outdir + File.separator + outfile.getName() + UUID.randomUUID() +
+				".methylation");
+		shardFile.deleteOnExit();
+		new FileOutputStream(shardFile).close(); //touch
+		return shardFile;
+	}
+
+	private static <T> T getResult(ForkJoinTask<T> task) throws IOException, InterruptedException {
+		try {
+			return task.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	private byte[] getReferenceBases(String contig, int start, int end) {
+		byte[] bases;
+		synchronized (this.referenceSequence) {
+			bases = this.referenceSequence.getSubsequenceAt(contig, start, end).getBases();
+		}
+		for (int i = 0; i < bases.length; i++) {
+			if (bases[i] >= 'a' && bases[i] <= 'z') {
+				bases[i] -= 'a' - 'A';
+			}
+		}
+		return bases;
+	}
+
+	/**
+	 * Pileup of the reads of a strand in a shard
+	 */
+	private class ShardPileup extends RollingPileup {
+		private final int shardStart;
+		private final int shardEnd;
+
+		ShardPileup(Strand strand, File bam, int shardStart, int shardEnd) {
+			super(strand, Collections.singletonList(bam), Collections.<SamRecordFilter>emptyList(),
+					removeClonalPerLocus);
+			this.shardStart = shardStart;
+			this.shardEnd = shardEnd;
+		}
+
+		@Override
+		protected boolean filterOut(SAMRecord record) {
+			// default filters of the GATK walkers
+			if (record.getReadUnmappedFlag() || record.getNotPrimaryAlignmentFlag() || record
+					.getDuplicateReadFlag() || record.getReadFailsVendorQualityCheckFlag()) {
+				return true;
+			}
+			if (listerFilter == null) {
+				return false;
+			}
+			// each read is counted by the shard where it starts. The pileups also read the reads covering the
+			// positions around the shard, which belong to the previous and the next shards
+			boolean counted = record.getAlignmentStart() < shardStart || record.getAlignmentStart() > shardEnd;
+			if (counted) {
+				listerFilter.freezeCountersInThread();
+			}
+			try {
+				return listerFilter.filterOut(record);
+			} finally {
+				if (counted) {
+					listerFilter.unfreezeCountersInThread();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Walks the positions of a shard, visiting the cytosines of both strands covered by reads
+	 */
+	private abstract class Shard<T> implements Callable<T>, CytosineCaller.DownstreamPileups {
+		protected final SAMSequenceRecord sequence;
+		protected final int start;
+		protected final int end;
+		private ShardPileup watsonReads;
+		private ShardPileup crickReads;
+
+		Shard(SAMSequenceRecord sequence, int start, int end) {
+			this.sequence = sequence;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		public T call() throws Exception {
+			String contig = sequence.getSequenceName();
+			int contigLength = sequence.getSequenceLength();
+			int referenceStart = Math.max(1, start - 2);
+			ContextTrack.SequenceTrack track = null;
+			byte[] referenceBases = null;
+			if (contextTrack != null) {
+				track = contextTrack.getSequence(contig);
+				if (track == null) {
+					throw new IllegalArgumentException("sequence not found in the context track: " + contig);
+				}
+			} else {
+				referenceBases = getReferenceBases(contig, referenceStart, Math.min(contigLength, end + 2));
+			}
+
+			try {
+				this.watsonReads = new ShardPileup(Strand.WATSON, watsonBAM, start, end);
+				this.crickReads = new ShardPileup(Strand.CRICK, crickBAM, start, end);
+				for (int position = start; position <= end; position++) {
+					watsonReads.moveTo(contig, position);
+					crickReads.moveTo(contig, position);
+
+					Strand strand;
+					Context context = null;
+					if (track != null) {
+						strand = track.getStrand(position);
+						if (strand == null) {
+							continue;
+						}
+						context = track.getContext(position);
+					} else {
+						byte base = referenceBases[position - referenceStart];
+						if (base == Strand.WATSON.getCytosineBase()) {
+							strand = Strand.WATSON;
+						} else if (base == Strand.CRICK.getCytosineBase()) {
+							strand = Strand.CRICK;
+						} else {
+							continue;
+						}
+					}
+
+					byte[] bases = getStrandReads(strand).getPileup(contig, position);
+					if (bases == null) {
+						continue;
+					}
+
+					if (context == null) {
+						int windowStart = Math.max(1, position - 2);
+						int windowStop = Math.min(contigLength, position + 2);
+						byte[] window = Arrays.copyOfRange(referenceBases, windowStart - referenceStart, windowStop
+								- referenceStart + 1);
+						context = strand.getContext(contig, window, windowStart, windowStop, position);
+						if (context == null) {
+							continue;
+						}
+					}
+
+					visit(position, strand, context, bases);
+				}
+				return getResult();
+			} finally {
+				if (watsonReads != null) {
+					watsonReads.close();
+				}
+				if (crickReads != null) {
+					crickReads.close();
+				}
+			}
+		}
+
+		private RollingPileup getStrandReads(Strand strand) {
+			return strand == Strand.WATSON ? watsonReads : crickReads;
+		}
+
+		@Override
+		public byte[] getBases(Strand strand, String contig, int position) {
+			return getStrandReads(strand).getDownstreamPileup(contig, position);
+		}
+
+		protected abstract void visit(int position, Strand strand, Context context, byte[] bases) throws
+				IOException;
+
+		protected abstract T getResult() throws IOException;
+	}
+
+	private class CallShard extends Shard<MethylationFilePair> {
+		// created when the shard is called
+		private MethylationFilePair result;
+
+		CallShard(SAMSequenceRecord sequence, int start, int end) {
+			super(sequence, start, end);
+		}
+
+		@Override
+		public MethylationFilePair call() throws Exception {
+			this.result = new MethylationFilePair(createShardFile(methylationwatsonfile), createShardFile
+					(methylationcrickfile), SHARD_PVALS);
+			return super.call();
+		}
+
+		@Override
+		protected void visit(int position, Strand strand, Context context, byte[] bases) {
+			String contig = sequence.getSequenceName();
+			Annotations annotations = Annotations.annotate(annotationTracks, contig, position);
+
+			Strand oppositeStrand = strand == Strand.WATSON ? Strand.CRICK : Strand.WATSON;
+			for (MethylationCall call : caller.call(contig, position, strand, oppositeStrand, context, bases,
+					annotations, this)) {
+				result.pushCall(call);
+			}
+		}
+
+		@Override
+		protected MethylationFilePair getResult() {
+			result.close();
+			return result;
+		}
+	}
+
+	private class ErrorShard extends Shard<DefaultContigBisulfiteError> {
+		private final DefaultContigBisulfiteError result = new DefaultContigBisulfiteError();
+
+		ErrorShard(SAMSequenceRecord sequence, int start, int end) {
+			super(sequence, start, end);
+		}
+
+		@Override
+		protected void visit(int position, Strand strand, Context context, byte[] bases) {
+			int error = 0;
+			for (byte base : bases) {
+				if (base == strand.getCytosineBase()) {
+					error++;
+				}
+			}
+			result.addError(strand, context, bases.length, error);
+		}
+
+		@Override
+		protected DefaultContigBisulfiteError getResult() {
+			return result;
+		}
+	}
+}
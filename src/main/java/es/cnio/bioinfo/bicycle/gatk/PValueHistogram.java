@@ -0,0 +1,173 @@
+/*
+
+Copyright 2012 Daniel Gonzalez Peña, Osvaldo Graña
+
+
+This file is part of the bicycle Project. 
+
+bicycle Project is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+bicycle Project is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser Public License for more details.
+
+You should have received a copy of the GNU Lesser Public License
+along with bicycle Project.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package es.cnio.bioinfo.bicycle.gatk;
+
+/**
+ * Counts how many times each p-value appears, using primitive arrays with open addressing instead of boxed
+ * Double and Integer objects.
+ * <p>
+ * Histograms of different parts of the genome can be merged with {@link #addAll(PValueHistogram)}. This class is
+ * not thread-safe.
+ *
+ * @author lipido
+ */
+class PValueHistogram {
+
+	static final int DEFAULT_CAPACITY = 1024;
+
+	// the raw bits of each p-value and its count. A count of 0 means an empty slot
+	private long[] keys;
+	private long[] counts;
+	private int mask;
+
+	private int size = 0;
+	private long total = 0;
+
+	public PValueHistogram() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public PValueHistogram(int expectedDistinctValues) {
+		int capacity = Integer.highestOneBit(Math.max(4, expectedDistinctValues * 2 - 1)) << 1;
+		this.keys = new long[capacity];
+		this.counts = new long[capacity];
+		this.mask = capacity - 1;
+	}
+
+	public void add(double pval) {
+		add(pval, 1);
+	}
+
+	public void add(double pval, long count) {
+		if (count <= 0) {
+			if (count == 0) {
+				return;
+			}
+			throw new IllegalArgumentException("negative count: " + count);
+		}
+		long key = Double.doubleToLongBits(pval);
+		int slot = slot(key);
+		if (counts[slot] == 0) {
+			keys[slot] = key;
+			size++;
+		}
+		counts[slot] += count;
+		total += count;
+
+		if (size * 2 > keys.length) {
+			rehash(keys.length * 2);
+		}
+	}
+
+	/**
+	 * Adds all the counts of other histogram to this one
+	 */
+	public void addAll(PValueHistogram other) {
+		for (int i = 0; i < other.keys.length; i++) {
+			if (other.counts[i] != 0) {
+				add(Double.longBitsToDouble(other.keys[i]), other.counts[i]);
+			}
+		}
+	}
+
+	/**
+	 * Returns how many times a p-value has been added
+	 */
+	public long getCount(double pval) {
+		return counts[slot(Double.doubleToLongBits(pval))];
+	}
+
+	/**
+	 * Returns how many of the added p-values are lower than the given cutoff
+	 */
+	public long countBelow(double cutoff) {
+		long count = 0;
+		for (int i = 0; i < keys.length; i++) {
+			if (counts[i] != 0 && Double.longBitsToDouble(keys[i]) < cutoff) {
+				count += counts[i];
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the distinct p-values, in no particular order
+	 */
+	public double[] getPvals() {
+		double[] pvals = new double[size];
+		int position = 0;
+		for (int i = 0; i < keys.length; i++) {
+			if (counts[i] != 0) {
+				pvals[position++] = Double.longBitsToDouble(keys[i]);
+			}
+		}
+		return pvals;
+	}
+
+	/**
+	 * Returns the number of distinct p-values
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the number of added p-values
+	 */
+	public long getTotal() {
+		return total;
+	}
+
+	// returns the slot of the key, or the empty slot where it should be placed
+	private int slot(long key) {
+		int slot = hash(key) & mask;
+		while (counts[slot] != 0 && keys[slot] != key) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private void rehash(int capacity) {
+		long[] oldKeys = this.keys;
+		long[] oldCounts = this.counts;
+		this.keys = new long[capacity];
+		this.counts = new long[capacity];
+		this.mask = capacity - 1;
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldCounts[i] != 0) {
+				int slot = slot(oldKeys[i]);
+				keys[slot] = oldKeys[i];
+				counts[slot] = oldCounts[i];
+			}
+		}
+	}
+
+	private static int hash(long key) {
+		// murmur3 finalizer, p-values share many of their high bits
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return (int) key;
+	}
+}
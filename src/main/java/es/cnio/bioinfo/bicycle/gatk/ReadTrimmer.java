@@ -0,0 +1,244 @@
+/*
+
+Copyright 2012 Daniel Gonzalez Peña, Osvaldo Graña
+
+
+This file is part of the bicycle Project. 
+
+bicycle Project is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+bicycle Project is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser Public License for more details.
+
+You should have received a copy of the GNU Lesser Public License
+along with bicycle Project.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package es.cnio.bioinfo.bicycle.gatk;
+
+import java.util.List;
+
+import net.sf.samtools.CigarElement;
+import net.sf.samtools.CigarOperator;
+
+/**
+ * Finds where a read must be trimmed so it keeps less than a given number of mismatches, counting from its 5' end.
+ * <p>
+ * The CIGAR elements and the MD tag are walked in step in a single pass, in the direction of the read. The MD tag is
+ * parsed on the fly from its characters, forwards or backwards, so no regular expressions or objects per operation
+ * are needed. Only the longest prefix of the tag made of valid operations is used.
+ *
+ * @author lipido
+ */
+class ReadTrimmer {
+
+	private static final int MD_NONE = 0;
+	private static final int MD_MATCH = 1;
+	private static final int MD_VARIANT = 2;
+	private static final int MD_DELETION = 3;
+
+	private final String md;
+	private final boolean reverse;
+	// the MD operations are parsed in [0, mdEnd)
+	private final int mdEnd;
+	// next character to parse: the first one of the next operation, or the one after the last one in reverse
+	private int mdPosition;
+	private int mdRemaining = 0;
+	private int mdOperation = MD_NONE;
+
+	private ReadTrimmer(String md, boolean reverse) {
+		this.md = md;
+		this.reverse = reverse;
+		this.mdEnd = findParseableEnd(md);
+		this.mdPosition = reverse ? mdEnd : 0;
+	}
+
+	/**
+	 * Returns the trim point of a read: the number of bases kept from the start of the read (or the number of bases
+	 * trimmed from the start, in reverse reads), or -1 if the read must not be trimmed, because it has less
+	 * mismatches or its CIGAR has operations other than M, I and D.
+	 *
+	 * @param cigar          the CIGAR elements of the read
+	 * @param md             the MD tag of the read
+	 * @param reverse        if the read is aligned to the reverse strand, so its 5' end is at the end
+	 * @param readLength     the number of bases of the read
+	 * @param trimMismatches the mismatch where the read is trimmed
+	 */
+	static int findTrimPoint(List<CigarElement> cigar, String md, boolean reverse, int readLength, int
+			trimMismatches) {
+		ReadTrimmer mdTag = new ReadTrimmer(md, reverse);
+
+		int step = reverse ? -1 : 1;
+		int trimPoint = reverse ? readLength : 0;
+		int mismatches = 0;
+		int elements = cigar.size();
+		for (int e = 0; e < elements && mismatches < trimMismatches; e++) {
+			CigarElement element = cigar.get(reverse ? elements - 1 - e : e);
+			CigarOperator operator = element.getOperator();
+			for (int i = 0; i < element.getLength() && mismatches < trimMismatches; i++) {
+				switch (operator) {
+					case M:
+						int mdOperation = mdTag.next();
+						if (mdOperation == MD_VARIANT) {
+							mismatches++;
+							if (mismatches < trimMismatches) {
+								trimPoint += step;
+							}
+						} else if (mdOperation == MD_MATCH) {
+							trimPoint += step;
+						} else {
+							return -1;
+						}
+						break;
+					case I:
+						mismatches++;
+						if (mismatches < trimMismatches) {
+							trimPoint += step;
+						}
+						break;
+					case D:
+						mismatches++;
+						mdTag.next();
+						break;
+					default:
+						return -1;
+				}
+			}
+		}
+		return mismatches >= trimMismatches ? trimPoint : -1;
+	}
+
+	/**
+	 * Returns the MD operation of the next reference base. Once the tag is exhausted, the last operation is repeated.
+	 */
+	private int next() {
+		if (mdRemaining == 0) {
+			if (reverse) {
+				parsePrevious();
+			} else {
+				parseNext();
+			}
+		}
+		if (mdRemaining > 0) {
+			mdRemaining--;
+		}
+		return mdOperation;
+	}
+
+	private void parseNext() {
+		while (mdPosition < mdEnd) {
+			char c = md.charAt(mdPosition);
+			if (isDigit(c)) {
+				int length = 0;
+				while (mdPosition < mdEnd && isDigit(md.charAt(mdPosition))) {
+					length = length * 10 + (md.charAt(mdPosition) - '0');
+					mdPosition++;
+				}
+				if (length > 0) {
+					mdOperation = MD_MATCH;
+					mdRemaining = length;
+					return;
+				}
+			} else if (c == '^') {
+				int start = ++mdPosition;
+				while (mdPosition < mdEnd && isBase(md.charAt(mdPosition))) {
+					mdPosition++;
+				}
+				mdOperation = MD_DELETION;
+				mdRemaining = mdPosition - start;
+				return;
+			} else {
+				mdPosition++;
+				mdOperation = MD_VARIANT;
+				mdRemaining = 1;
+				return;
+			}
+		}
+	}
+
+	private void parsePrevious() {
+		while (mdPosition > 0) {
+			char c = md.charAt(mdPosition - 1);
+			if (isDigit(c)) {
+				int length = 0;
+				int multiplier = 1;
+				while (mdPosition > 0 && isDigit(md.charAt(mdPosition - 1))) {
+					length += (md.charAt(mdPosition - 1) - '0') * multiplier;
+					multiplier *= 10;
+					mdPosition--;
+				}
+				if (length > 0) {
+					mdOperation = MD_MATCH;
+					mdRemaining = length;
+					return;
+				}
+			} else {
+				// a run of bases is a deletion if it follows a ^, or a series of variants otherwise
+				int start = mdPosition - 1;
+				while (start > 0 && isBase(md.charAt(start - 1))) {
+					start--;
+				}
+				if (start > 0 && md.charAt(start - 1) == '^') {
+					mdOperation = MD_DELETION;
+					mdRemaining = mdPosition - start;
+					mdPosition = start - 1;
+				} else {
+					mdOperation = MD_VARIANT;
+					mdRemaining = 1;
+					mdPosition--;
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Returns the end of the longest prefix of the tag made of valid MD operations
+	 */
+	private static int findParseableEnd(String md) {
+		int position = 0;
+		int length = md.length();
+		while (position < length) {
+			char c = md.charAt(position);
+			if (isDigit(c) || isBase(c)) {
+				position++;
+			} else if (c == '^' && position + 1 < length && isBase(md.charAt(position + 1))) {
+				position += 2;
+				while (position < length && isBase(md.charAt(position))) {
+					position++;
+				}
+			} else {
+				break;
+			}
+		}
+		return position;
+	}
+
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+
+	private static boolean isBase(char c) {
+		switch (c) {
+			case 'A':
+			case 'C':
+			case 'G':
+			case 'T':
+			case 'N':
+			case 'a':
+			case 'c':
+			case 'g':
+			case 't':
+			case 'n':
+				return true;
+			default:
+				return false;
+		}
+	}
+}
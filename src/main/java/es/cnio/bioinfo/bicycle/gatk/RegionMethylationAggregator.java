@@ -0,0 +1,142 @@
+/*
+
+Copyright 2012 Daniel Gonzalez Peña, Osvaldo Graña
+
+
+This file is part of the bicycle Project. 
+
+bicycle Project is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+bicycle Project is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser Public License for more details.
+
+You should have received a copy of the GNU Lesser Public License
+along with bicycle Project.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package es.cnio.bioinfo.bicycle.gatk;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import es.cnio.bioinfo.bicycle.MethylationCall;
+import es.cnio.bioinfo.bicycle.RegionMethylation;
+
+/**
+ * Accumulates the methylated cytosines and the depth of the calls in each region of a BED annotation track, per
+ * strand and context, while the calls are written. A region is a feature name, so the features with the same name
+ * are aggregated together. The regions are kept in the order they are first found in the calls.
+ *
+ * @author lipido
+ */
+class RegionMethylationAggregator {
+
+	private static final int CONTEXTS = Context.values().length;
+	// methylated cytosines and depth of each strand and context
+	private static final int VALUES_PER_REGION = Strand.values().length * CONTEXTS * 2;
+	private static final int[] NO_REGIONS = new int[0];
+
+	private final BEDAnnotationTrack track;
+
+	// regions of each annotation identifier of the track, resolved the first time the identifier is seen
+	private int[][] annotationRegions = new int[16][];
+
+	private final List<String> regionNames = new ArrayList<String>();
+	private final Map<String, Integer> regionIds = new HashMap<String, Integer>();
+	private int[] values = new int[16 * VALUES_PER_REGION];
+
+	public RegionMethylationAggregator(BEDAnnotationTrack track) {
+		this.track = track;
+	}
+
+	/**
+	 * Adds a call to the regions of its annotation
+	 *
+	 * @param annotationId the identifier of the annotation of the call in the track
+	 */
+	public void add(MethylationCall call, int annotationId) {
+		int offset = (call.getStrand().ordinal() * CONTEXTS + call.getContext().ordinal()) * 2;
+		for (int region : getRegions(annotationId)) {
+			int index = region * VALUES_PER_REGION + offset;
+			values[index] += call.getCytosines();
+			values[index + 1] += call.getDepth();
+		}
+	}
+
+	/**
+	 * Writes the methylation of each region
+	 */
+	public void write(File file) throws IOException {
+		BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+		try {
+			writer.write(RegionMethylation.getMarshallHeader());
+			writer.newLine();
+			for (int region = 0; region < regionNames.size(); region++) {
+				writer.write(toRegionMethylation(region).marshall());
+				writer.newLine();
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+	private RegionMethylation toRegionMethylation(int region) {
+		int offset = region * VALUES_PER_REGION;
+		int crick = CONTEXTS * 2;
+		return new RegionMethylation(regionNames.get(region),
+				values[offset], values[offset + 1],
+				values[offset + 2], values[offset + 3],
+				values[offset + 4], values[offset + 5],
+				values[offset + crick], values[offset + crick + 1],
+				values[offset + crick + 2], values[offset + crick + 3],
+				values[offset + crick + 4], values[offset + crick + 5]);
+	}
+
+	private int[] getRegions(int annotationId) {
+		if (annotationId >= annotationRegions.length) {
+			annotationRegions = Arrays.copyOf(annotationRegions, Math.max(annotationId + 1, annotationRegions
+					.length * 2));
+		}
+		int[] regions = annotationRegions[annotationId];
+		if (regions == null) {
+			String annotation = track.getAnnotation(annotationId);
+			if (annotation.contains("N/A")) {
+				regions = NO_REGIONS;
+			} else {
+				String[] names = annotation.split("[|]");
+				regions = new int[names.length];
+				for (int i = 0; i < names.length; i++) {
+					regions[i] = getRegionId(names[i]);
+				}
+			}
+			annotationRegions[annotationId] = regions;
+		}
+		return regions;
+	}
+
+	private int getRegionId(String name) {
+		Integer id = regionIds.get(name);
+		if (id == null) {
+			id = regionNames.size();
+			regionNames.add(name);
+			regionIds.put(name, id);
+			if (values.length < regionNames.size() * VALUES_PER_REGION) {
+				values = Arrays.copyOf(values, values.length * 2);
+			}
+		}
+		return id;
+	}
+}
@@ -0,0 +1,329 @@
+/*
+
+Copyright 2012 Daniel Gonzalez Peña, Osvaldo Graña
+
+
+This file is part of the bicycle Project. 
+
+bicycle Project is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+bicycle Project is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser Public License for more details.
+
+You should have received a copy of the GNU Lesser Public License
+along with bicycle Project.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package es.cnio.bioinfo.bicycle.gatk;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import net.sf.picard.filter.SamRecordFilter;
+import net.sf.samtools.AlignmentBlock;
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMRecordIterator;
+
+/**
+ * Pileup of the reads of a strand around a position that moves forward through the genome.
+ * <p>
+ * The reads are streamed once from the sorted and indexed BAM files of the strand. Only the reads covering the
+ * current position and the positions next to it are kept, so the pileups of the positions at ±1 are always
+ * available. The pileups used by the non-CG to CG correction are kept in a rolling buffer of three positions, so
+ * each one is computed once even if it is requested by the cytosines at both sides.
+ * <p>
+ * Moving backwards, to another contig or far ahead reopens the files at the new position. The lookups reuse the
+ * buffers of the instance, so instances are not thread-safe, and they must be closed to release the files.
+ *
+ * @author lipido
+ */
+class RollingPileup {
+
+	// moving further than this streams less reads by querying the index
+	static final int REOPEN_DISTANCE = 10000;
+
+	private final Strand strand;
+	private final List<SamRecordFilter> filters;
+	private final boolean removeClonal;
+	private final FileReads[] files;
+
+	private String contig = null;
+	private int position = -1;
+
+	// rolling buffer of downstream pileups, indexed by position modulo its size
+	private final int[] bufferPositions = {-1, -1, -1};
+	private final byte[][] bufferPileups = new byte[3][];
+
+	// buffers reused by the lookups of every position
+	private final List<PileupRead> covering = new ArrayList<PileupRead>();
+	private byte[] bases = new byte[256];
+	private final HashMap<Integer, PileupRead> uniqueReads = new HashMap<Integer, PileupRead>();
+
+	/**
+	 * Creates a new pileup
+	 *
+	 * @param strand       the strand of the reads
+	 * @param bams         the sorted and indexed BAM files with the reads of the strand
+	 * @param filters      the filters the reads must pass
+	 * @param removeClonal if clonal reads must be removed
+	 */
+	public RollingPileup(Strand strand, List<File> bams, List<SamRecordFilter> filters, boolean removeClonal) {
+		this.strand = strand;
+		this.filters = filters;
+		this.removeClonal = removeClonal;
+		this.files = new FileReads[bams.size()];
+		for (int i = 0; i < files.length; i++) {
+			files[i] = new FileReads(bams.get(i));
+		}
+	}
+
+	/**
+	 * Moves the pileup to a position, keeping the reads covering it and the positions next to it
+	 */
+	public void moveTo(String contig, int position) {
+		if (!contig.equals(this.contig) || position < this.position - 1 || position > this.position +
+				REOPEN_DISTANCE) {
+			this.contig = contig;
+			for (FileReads file : files) {
+				file.open(contig, position);
+			}
+			Arrays.fill(bufferPositions, -1);
+		}
+		this.position = position;
+		for (FileReads file : files) {
+			file.advanceTo(position);
+		}
+	}
+
+	/**
+	 * Decides if a read is discarded before being added to the pileup. By default, it applies the filters.
+	 */
+	protected boolean filterOut(SAMRecord record) {
+		for (SamRecordFilter filter : filters) {
+			if (filter.filterOut(record)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the bases of a position as the walker sees them in its pileups, or null if the position is not
+	 * covered or does not reach the minimum depth. Clonal reads are removed by the sum of their base qualities.
+	 */
+	public byte[] getPileup(String contig, int position) {
+		moveTo(contig, position);
+
+		covering.clear();
+		for (FileReads file : files) {
+			for (PileupRead read : file.reads) {
+				int base = read.baseAt(position);
+				if (base != -1) {
+					if (covering.size() == bases.length) {
+						bases = Arrays.copyOf(bases, bases.length * 2);
+					}
+					bases[covering.size()] = (byte) base;
+					covering.add(read);
+				}
+			}
+		}
+		if (covering.isEmpty()) {
+			return null;
+		}
+
+		if (removeClonal) {
+			uniqueReads.clear();
+			for (PileupRead read : covering) {
+				int key = read.getClonalKey(strand);
+				PileupRead kept = uniqueReads.get(key);
+				if (kept == null || kept.qualitySum < read.qualitySum) {
+					uniqueReads.put(key, read);
+				}
+			}
+		}
+
+		// the bases kept are moved to the front of the buffer
+		int size = 0;
+		for (int i = 0; i < covering.size(); i++) {
+			PileupRead read = covering.get(i);
+			byte base = bases[i];
+			if (removeClonal && uniqueReads.get(read.getClonalKey(strand)) != read) {
+				continue;
+			}
+			if (ListerFilter.trim && base == ListerFilter.TRIMMED_BASE) {
+				continue;
+			}
+			bases[size++] = base;
+		}
+		if (size < ListerFilter.mindepth) {
+			return null;
+		}
+		return Arrays.copyOf(bases, size);
+	}
+
+	/**
+	 * Returns the bases of a position as the non-CG to CG correction sees them: clonal reads are removed by mapping
+	 * quality and trimmed bases are always removed
+	 */
+	public byte[] getDownstreamPileup(String contig, int position) {
+		moveTo(contig, position);
+
+		int slot = position % bufferPositions.length;
+		if (bufferPositions[slot] != position) {
+			bufferPileups[slot] = computeDownstreamPileup(position);
+			bufferPositions[slot] = position;
+		}
+		return bufferPileups[slot];
+	}
+
+	private byte[] computeDownstreamPileup(int position) {
+		covering.clear();
+		for (FileReads file : files) {
+			if (removeClonal) {
+				// a new map, since the order of its values depends on its capacity, and it is the order of the bases
+				// in the pileups of the corrected calls
+				HashMap<Integer, PileupRead> fileUniqueReads = new HashMap<Integer, PileupRead>();
+				for (PileupRead read : file.reads) {
+					if (read.baseAt(position) != -1) {
+						int key = read.getClonalKey(strand);
+						PileupRead kept = fileUniqueReads.get(key);
+						if (kept == null || kept.record.getMappingQuality() < read.record.getMappingQuality()) {
+							fileUniqueReads.put(key, read);
+						}
+					}
+				}
+				// keep the order of the map, as the Picard locus iterator path did
+				covering.addAll(fileUniqueReads.values());
+			} else {
+				for (PileupRead read : file.reads) {
+					if (read.baseAt(position) != -1) {
+						covering.add(read);
+					}
+				}
+			}
+		}
+
+		if (bases.length < covering.size()) {
+			bases = new byte[Math.max(bases.length * 2, covering.size())];
+		}
+		int size = 0;
+		for (PileupRead read : covering) {
+			byte base = (byte) read.baseAt(position);
+			if (base != ListerFilter.TRIMMED_BASE) {
+				bases[size++] = base;
+			}
+		}
+		return Arrays.copyOf(bases, size);
+	}
+
+	public void close() {
+		for (FileReads file : files) {
+			file.close();
+		}
+	}
+
+	/**
+	 * A read in the pileup, with its bases after the filters
+	 */
+	private static class PileupRead {
+		final SAMRecord record;
+		final byte[] bases;
+		final int start;
+		final int end;
+		final int qualitySum;
+		final List<AlignmentBlock> blocks;
+
+		PileupRead(SAMRecord record) {
+			this.record = record;
+			this.bases = record.getReadBases();
+			this.start = record.getAlignmentStart();
+			this.end = record.getAlignmentEnd();
+			int sum = 0;
+			for (byte quality : record.getBaseQualities()) {
+				sum += (int) quality;
+			}
+			this.qualitySum = sum;
+			this.blocks = record.getAlignmentBlocks();
+		}
+
+		/**
+		 * Returns the base aligned to a position, or -1 if the position is deleted, skipped or not covered
+		 */
+		int baseAt(int position) {
+			for (AlignmentBlock block : blocks) {
+				if (position < block.getReferenceStart()) {
+					return -1;
+				}
+				if (position < block.getReferenceStart() + block.getLength()) {
+					return bases[block.getReadStart() - 1 + position - block.getReferenceStart()];
+				}
+			}
+			return -1;
+		}
+
+		int getClonalKey(Strand strand) {
+			return strand.isNegative() ? end : start;
+		}
+	}
+
+	/**
+	 * The reads of a BAM file around the current position, in the order of the file
+	 */
+	private class FileReads {
+		private final SAMFileReader reader;
+		private SAMRecordIterator iterator;
+		private SAMRecord next;
+		private final List<PileupRead> reads = new ArrayList<PileupRead>();
+
+		FileReads(File bam) {
+			this.reader = new SAMFileReader(bam, true);
+			this.reader.setValidationStringency(SAMFileReader.ValidationStringency.SILENT);
+		}
+
+		void open(String contig, int position) {
+			if (iterator != null) {
+				iterator.close();
+			}
+			reads.clear();
+			// up to the end of the contig, including the reads covering the previous position
+			iterator = reader.queryOverlapping(contig, Math.max(1, position - 1), 0);
+			next = iterator.hasNext() ? iterator.next() : null;
+		}
+
+		void advanceTo(int position) {
+			while (next != null && next.getAlignmentStart() <= position + 1) {
+				if (!filterOut(next)) {
+					reads.add(new PileupRead(next));
+				}
+				next = iterator.hasNext() ? iterator.next() : null;
+			}
+
+			int kept = 0;
+			for (int i = 0; i < reads.size(); i++) {
+				PileupRead read = reads.get(i);
+				if (read.end >= position - 1) {
+					reads.set(kept++, read);
+				}
+			}
+			reads.subList(kept, reads.size()).clear();
+		}
+
+		void close() {
+			if (iterator != null) {
+				iterator.close();
+				iterator = null;
+			}
+			reader.close();
+		}
+	}
+}
@@ -40,11 +40,28 @@ public enum Strand {
 	}
 
 	public Context getContext(ReferenceContext ref, long pos) {
+		return getContext(ref.getLocus().getContig(), ref.getBases(), ref.getWindow().getStart(), ref.getWindow()
+				.getStop(), pos);
+	}
+
+	/**
+	 * Computes the context of a position from a window of reference bases around it
+	 *
+	 * @param contig      the contig of the position
+	 * @param window      the reference bases of the window, which spans from 2 bases before to 2 bases after the
+	 *                    position, truncated at the contig ends
+	 * @param windowStart the position of the first base of the window
+	 * @param windowStop  the position of the last base of the window
+	 * @param pos         the position
+	 * @return the context or null if the window is truncated on the side where the context is read
+	 */
+	public Context getContext(String contig, byte[] window, long windowStart, long windowStop, long pos) {
+		byte base = window[(int) (pos - windowStart)];
 		if (this == WATSON) {
-			if (ref.getBase() == 'C') {
-				if (ref.getWindow().getStop() - pos == 2) {
+			if (base == 'C') {
+				if (windowStop - pos == 2) {
 
-					byte[] downstream = ref.getBases();
+					byte[] downstream = window;
 
 					if (downstream[3] == 'G') {
 						return Context.CG;
@@ -54,17 +71,17 @@ public enum Strand {
 						return Context.CHH;
 					}
 				} else {
-					System.err.println("null context in " + ref.getLocus().getContig() + ":" + pos + " strand Watson");
+					System.err.println("null context in " + contig + ":" + pos + " strand Watson");
 					return null;
 				}
 			} else {
 				throw new IllegalArgumentException("Can't compute Watson context in a reference which is not C");
 			}
 		} else if (this == CRICK) {
-			if (ref.getBase() == 'G') {
-				if (pos - ref.getWindow().getStart() == 2) {
+			if (base == 'G') {
+				if (pos - windowStart == 2) {
 
-					byte[] bases = ref.getBases();
+					byte[] bases = window;
 					byte[] upstream = new byte[2];
 					System.arraycopy(bases, 0, upstream, 0, 2);
 
@@ -76,7 +93,7 @@ public enum Strand {
 						return Context.CHH;
 					}
 				} else {
-					System.err.println("null context in " + ref.getLocus().getContig() + ":" + pos + " strand Crick");
+					System.err.println("null context in " + contig + ":" + pos + " strand Crick");
 					return null;
 				}
 			} else {
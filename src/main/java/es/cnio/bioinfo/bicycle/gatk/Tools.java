@@ -26,55 +26,61 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 
 import org.broadinstitute.sting.gatk.GenomeAnalysisEngine;
 import org.broadinstitute.sting.gatk.contexts.AlignmentContext;
 import org.broadinstitute.sting.gatk.datasources.reads.SAMReaderID;
-import org.broadinstitute.sting.utils.pileup.PileupElement;
-import org.broadinstitute.sting.utils.pileup.PileupElementFilter;
 import org.broadinstitute.sting.utils.pileup.ReadBackedPileup;
-import org.broadinstitute.sting.utils.sam.GATKSAMRecord;
 
 import net.sf.picard.filter.SamRecordFilter;
-import net.sf.picard.util.SamLocusIterator.RecordAndOffset;
-import net.sf.samtools.SAMFileReader;
 
 
 public class Tools {
 
 
-	///cache files (readers are per thread, in order to avoid synchronization)
-	private ThreadLocal<Map<Strand, ArrayList<SAMFileReader>>> perThreadReaders = new ThreadLocal<>();
+	// pileups of the positions next to the current one (per thread, since each one follows its own traversal)
+	private volatile ThreadLocal<Map<Strand, RollingPileup>> perThreadPileups = new ThreadLocal<>();
+	// the pileups of all threads, to close them when the traversal is done
+	private final List<RollingPileup> openPileups = Collections.synchronizedList(new ArrayList<RollingPileup>());
 
-	public Collection<RecordAndOffset> getReadsForLocus(GenomeAnalysisEngine toolkit, Strand strand, String contig,
-														int pos, boolean filterDuplicates) {
-		Map<Strand, ArrayList<SAMFileReader>> perStrandReaders = perThreadReaders.get();
-
-		if (perStrandReaders == null) {
-
-			perStrandReaders = new HashMap<>();
-			perThreadReaders.set(perStrandReaders);
+	/**
+	 * Returns the bases read at a position in the reads of a strand, as needed by the non-CG to CG correction. The
+	 * positions requested by a thread are expected to move forward with the traversal, so the reads are streamed
+	 * once.
+	 */
+	public byte[] getDownstreamBases(GenomeAnalysisEngine toolkit, Strand strand, String contig, int pos, boolean
+			filterDuplicates) {
+		Map<Strand, RollingPileup> pileups = perThreadPileups.get();
+		if (pileups == null) {
+			pileups = new HashMap<>();
+			perThreadPileups.set(pileups);
 		}
 
-		ArrayList<SAMFileReader> readers = perStrandReaders.get(strand);
-		if (readers == null) {
+		RollingPileup pileup = pileups.get(strand);
+		if (pileup == null) {
+			pileup = new RollingPileup(strand, new ArrayList<File>(getFilesForStrand(toolkit, strand)), new
+					LinkedList<SamRecordFilter>(toolkit.getFilters()), filterDuplicates);
+			pileups.put(strand, pileup);
+			openPileups.add(pileup);
+		}
 
-			readers = new ArrayList<>();
-			for (File f : getFilesForStrand(toolkit, strand)) {
-				SAMFileReader reader = new SAMFileReader(f, true);
-				readers.add(reader);
+		return pileup.getDownstreamPileup(contig, pos);
+	}
 
+	/**
+	 * Closes the pileups of all threads and the BAM files they read. It must be called once the traversal is done.
+	 */
+	public void closePileups() {
+		synchronized (openPileups) {
+			for (RollingPileup pileup : openPileups) {
+				pileup.close();
 			}
-			perStrandReaders.put(strand, readers);
+			openPileups.clear();
 		}
-
-		LinkedList<SamRecordFilter> filters = new LinkedList<>(toolkit.getFilters());
-
-		return es.cnio.bioinfo.bicycle.Tools.getReadsForLocus(strand, contig, pos, filterDuplicates, readers,
-				filters, ListerFilter.TRIMMED_BASE);
+		perThreadPileups = new ThreadLocal<>();
 	}
 
 
@@ -107,13 +113,8 @@ public class Tools {
 		return null;
 	}
 
-	private int sumQuality(GATKSAMRecord read) {
-		int sum = 0;
-		for (byte b : read.getBaseQualities()) {
-			sum += (int) b;
-		}
-		return sum;
-	}
+	// clonal read filters of each strand (per thread, since each one follows its own traversal)
+	private ThreadLocal<Map<Strand, ClonalPileupFilter>> perThreadClonalFilters = new ThreadLocal<>();
 
 	public ReadBackedPileup getReadsForStrand(final Strand strand, final AlignmentContext alnContext, boolean
 			filterDuplicates) {
@@ -122,76 +123,24 @@ public class Tools {
 
 		if (strandGroup != null) {
 
-			if (filterDuplicates) {
+			ReadBackedPileup reads = alnContext.getBasePileup().getPileupForReadGroup(strandGroup);
 
-				ReadBackedPileup reads = alnContext.getBasePileup().getPileupForReadGroup(strandGroup);
-				final HashMap<Integer, PileupElement> uniqueReads = new HashMap<Integer, PileupElement>();
-
-				Iterator<PileupElement> it = reads.iterator();
-
-				while (it.hasNext()) {
-					PileupElement element = it.next();
-
-					if (strand.isNegative()) {
-						if (!uniqueReads.containsKey(element.getRead().getAlignmentEnd()) ||
-								sumQuality(uniqueReads.get(element.getRead().getAlignmentEnd()).getRead()) <
-										sumQuality(element.getRead())) {
-							uniqueReads.put(element.getRead().getAlignmentEnd(), element);
-						}
-						/*else{
-							System.err.println("REMOVING clonal: "+element.getRead());
-						}*/
-
-					} else {
-						if (!uniqueReads.containsKey(element.getRead().getAlignmentStart()) ||
-								sumQuality(uniqueReads.get(element.getRead().getAlignmentStart()).getRead()) <
-										sumQuality(element.getRead())) {
-							uniqueReads.put(element.getRead().getAlignmentStart(), element);
-						}/*else{
-							System.err.println("REMOVING clonal: "+element.getRead());
-						}*/
-					}
+			if (filterDuplicates) {
+				Map<Strand, ClonalPileupFilter> filters = perThreadClonalFilters.get();
+				if (filters == null) {
+					filters = new HashMap<>();
+					perThreadClonalFilters.set(filters);
 				}
-				return alnContext.getBasePileup().getFilteredPileup(new PileupElementFilter() {
-
-					@Override
-					public boolean allow(PileupElement arg0) {
-						//filter per read group
-						if (!arg0.getRead().getReadGroup().getId().equals(strandGroup)) {
-							return false;
-						}
-						if (strand.isNegative()) {
-							PileupElement value = uniqueReads.get(arg0.getRead().getAlignmentEnd());
-							if (value == arg0) {
-								return true;
-							} else {
-								return false;
-							}
-						} else {
-							PileupElement value = uniqueReads.get(arg0.getRead().getAlignmentStart());
-							if (value == arg0) {
-								return true;
-							} else {
-								return false;
-							}
-						}
-					}
-
-				});
-			} else {
 
+				ClonalPileupFilter filter = filters.get(strand);
+				if (filter == null) {
+					filter = new ClonalPileupFilter(strand);
+					filters.put(strand, filter);
+				}
 
-				return alnContext.getBasePileup().getFilteredPileup(new PileupElementFilter() {
-
-					@Override
-					public boolean allow(PileupElement arg0) {
-						if (arg0.getRead().getReadGroup().getId().equals(strandGroup)) {
-							return true;
-						}
-						return false;
-					}
-
-				});
+				return filter.filter(alnContext.getContig(), (int) alnContext.getPosition(), reads);
+			} else {
+				return reads;
 			}
 		} else {
 			return null;
@@ -0,0 +1,162 @@
+/*
+
+Copyright 2012 Daniel Gonzalez Peña, Osvaldo Graña
+
+
+This file is part of the bicycle Project. 
+
+bicycle Project is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+bicycle Project is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser Public License for more details.
+
+You should have received a copy of the GNU Lesser Public License
+along with bicycle Project.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package es.cnio.bioinfo.bicycle.gatk;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A file output stream with a large buffer that is written to disk in background (write-behind). When the buffer is
+ * full, it is handed to a writer thread and a second buffer is filled meanwhile, so the caller only waits for the
+ * disk if it produces data faster than it can be written. The file is kept open until the stream is closed.
+ *
+ * @author lipido
+ */
+class WriteBehindOutputStream extends OutputStream {
+
+	// each stream has at most one buffer being written, so a few threads are shared by all of them
+	private static final ExecutorService WRITERS = Executors.newFixedThreadPool(Runtime.getRuntime()
+			.availableProcessors(), new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "write-behind");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private final FileOutputStream file;
+	private final FileChannel channel;
+
+	private ByteBuffer current;
+	private ByteBuffer spare;
+	private Future<ByteBuffer> pending = null;
+	private boolean closed = false;
+	// the error of a failed write, the stream cannot be used after it
+	private IOException failure = null;
+
+	public WriteBehindOutputStream(File file, boolean append, int bufferSize) throws IOException {
+		this.file = new FileOutputStream(file, append);
+		this.channel = this.file.getChannel();
+		this.current = ByteBuffer.allocate(bufferSize);
+		this.spare = ByteBuffer.allocate(bufferSize);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		checkFailure();
+		if (!current.hasRemaining()) {
+			writeCurrent();
+		}
+		current.put((byte) b);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		checkFailure();
+		while (len > 0) {
+			if (!current.hasRemaining()) {
+				writeCurrent();
+			}
+			int count = Math.min(len, current.remaining());
+			current.put(b, off, count);
+			off += count;
+			len -= count;
+		}
+	}
+
+	/**
+	 * Writes all the buffered data to the file and waits for it
+	 */
+	@Override
+	public void flush() throws IOException {
+		checkFailure();
+		if (current.position() > 0) {
+			writeCurrent();
+		}
+		waitPending();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (!closed) {
+			closed = true;
+			try {
+				flush();
+			} finally {
+				file.close();
+			}
+		}
+	}
+
+	// hands the current buffer to a writer thread and continues with the spare one
+	private void writeCurrent() throws IOException {
+		waitPending();
+		final ByteBuffer toWrite = current;
+		toWrite.flip();
+		current = spare;
+		spare = null;
+		pending = WRITERS.submit(new Callable<ByteBuffer>() {
+			@Override
+			public ByteBuffer call() throws IOException {
+				while (toWrite.hasRemaining()) {
+					channel.write(toWrite);
+				}
+				toWrite.clear();
+				return toWrite;
+			}
+		});
+	}
+
+	private void waitPending() throws IOException {
+		if (pending != null) {
+			try {
+				spare = pending.get();
+			} catch (InterruptedException e) {
+				failure = new IOException("interrupted while writing", e);
+				throw failure;
+			} catch (ExecutionException e) {
+				failure = new IOException("error while writing", e.getCause());
+				throw failure;
+			} finally {
+				pending = null;
+			}
+		}
+	}
+
+	// the buffers are lost after a failed write, so the error is thrown again on every use of the stream
+	private void checkFailure() throws IOException {
+		if (failure != null) {
+			throw new IOException("a previous write failed", failure);
+		}
+	}
+}
@@ -23,20 +23,20 @@ package es.cnio.bioinfo.bicycle.operations;
 
 import static java.lang.Math.max;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.PrintStream;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import es.cnio.bioinfo.bicycle.FastqSplitter;
 import es.cnio.bioinfo.bicycle.Project;
@@ -129,31 +129,24 @@ public class BowtieAlignment {
 	}
 
 	interface AlignmentScoreFunction {
-		int getScore(String SAMLine);
+		int getScore(SAMLineTokenizer SAMLine);
 	}
 
 	private static class Bowtie2ScoreFunction implements AlignmentScoreFunction {
-		// AS: Alignment score (bowtie 2)
-		Pattern scorePattern = Pattern.compile("\\tAS:i:([^\\n\\t]+)");
 
+		// AS: Alignment score (bowtie 2)
 		@Override
-		public int getScore(String SAMLine) {
-			Matcher matcher = scorePattern.matcher(SAMLine);
-			matcher.find();
-			return Integer.parseInt(matcher.group(1));
+		public int getScore(SAMLineTokenizer SAMLine) {
+			return SAMLine.getIntTag("AS");
 		}
 	}
 
 	private static class Bowtie1ScoreFunction implements AlignmentScoreFunction {
 
 		// NM: edit distance (bowtie 1). The greater the worse, so the score is inverted
-		Pattern scorePattern = Pattern.compile("\\tNM:i:([^\\n\\t]+)");
-
 		@Override
-		public int getScore(String SAMLine) {
-			Matcher matcher = scorePattern.matcher(SAMLine);
-			matcher.find();
-			return -1 * Integer.parseInt(matcher.group(1));
+		public int getScore(SAMLineTokenizer SAMLine) {
+			return -1 * SAMLine.getIntTag("NM");
 		}
 	}
 
@@ -255,7 +248,18 @@ public class BowtieAlignment {
 
 	}
 
+	/**
+	 * Returns the coordinate-sorted and indexed BAM file with the alignments of a sample against one strand
+	 */
 	public File getAlignmentOutputFile(Strand strand, Sample s, Reference r) {
+		return new File(this.project.getOutputDirectory() + File.separator + "bisulfited_CT_" + s.getName() +
+				"_against_" + r.getReferenceFile().getName() + "_" + strand.name() + ".bam");
+	}
+
+	/**
+	 * Returns the unsorted SAM file that was generated by previous versions of the alignment
+	 */
+	public File getLegacyAlignmentOutputFile(Strand strand, Sample s, Reference r) {
 		return new File(this.project.getOutputDirectory() + File.separator + "bisulfited_CT_" + s.getName() +
 				"_against_" + r.getReferenceFile().getName() + "_" + strand.name() + ".sam");
 	}
@@ -654,61 +658,36 @@ public class BowtieAlignment {
 		int threads = threadsNumber / 2;
 		if (threads == 0) threads = 1;
 
-		List<BufferedReader> streamsWATSON = null;
-		List<BufferedReader> streamsCRICK = null;
+		// each chunk of reads is read once and sent to both the WATSON and CRICK alignments
+		List<ReadsFeeder> streams = new LinkedList<ReadsFeeder>();
 
 
 		if (!sample.isPaired()) {
-			if (!sample.isDirectional()) {
-				//non-directional (cokus)
-				streamsWATSON = new LinkedList<BufferedReader>();
-				for (BufferedReader reader : FastqSplitter.splitfastq(sample.getReadsFiles(), threads)) {
-					streamsWATSON.add(new GtoADuplicatorReader(new CtoTReader(sample, reader, skipUnconverted)));
-				}
-				streamsCRICK = new LinkedList<BufferedReader>();
-				for (BufferedReader reader : FastqSplitter.splitfastq(sample.getReadsFiles(), threads)) {
-					streamsCRICK.add(new GtoADuplicatorReader(new CtoTReader(sample, reader, skipUnconverted)));
-				}
-
-
-			} else {
-				//directional (lister)
-				streamsWATSON = new LinkedList<BufferedReader>();
-				for (BufferedReader reader : FastqSplitter.splitfastq(sample.getReadsFiles(), threads)) {
-					streamsWATSON.add(new CtoTReader(sample, reader, skipUnconverted));
-				}
-				streamsCRICK = new LinkedList<BufferedReader>();
-				for (BufferedReader reader : FastqSplitter.splitfastq(sample.getReadsFiles(), threads)) {
-					streamsCRICK.add(new CtoTReader(sample, reader, skipUnconverted));
-				}
-
+			//directional (lister) or non-directional (cokus)
+			for (InputStream reader : FastqSplitter.splitfastqStreams(sample.getReadsFiles(), threads, false)) {
+				streams.add(new SingleEndReadsFeeder(sample, reader, sample.isDirectional(), skipUnconverted));
 			}
 		} else {
 			//paired end
-
-			//streamsWATSON
-			streamsWATSON = new LinkedList<BufferedReader>();
-			List<BufferedReader> mate1Readers = FastqSplitter.splitfastq(sample.getReadsMate1Files(), threads);
-			List<BufferedReader> mate2Readers = FastqSplitter.splitfastq(sample.getReadsMate2Files(), threads);
-
-			for (int i = 0; i < mate1Readers.size(); i++) {
-				streamsWATSON.add(new PairedEndBowtieReader(sample, mate1Readers.get(i), mate2Readers.get(i), sample
-						.isDirectional(), skipUnconverted));
-			}
-
-			//streamsCRICK
-			streamsCRICK = new LinkedList<BufferedReader>();
-			mate1Readers = FastqSplitter.splitfastq(sample.getReadsMate1Files(), threads);
-			mate2Readers = FastqSplitter.splitfastq(sample.getReadsMate2Files(), threads);
+			List<InputStream> mate1Readers = FastqSplitter.splitfastqStreams(sample.getReadsMate1Files(), threads,
+					true);
+			List<InputStream> mate2Readers = FastqSplitter.splitfastqStreams(sample.getReadsMate2Files(), threads,
+					true);
 
 			for (int i = 0; i < mate1Readers.size(); i++) {
-				streamsCRICK.add(new PairedEndBowtieReader(sample, mate1Readers.get(i), mate2Readers.get(i), sample
+				streams.add(new PairedEndReadsFeeder(sample, mate1Readers.get(i), mate2Readers.get(i), sample
 						.isDirectional(), skipUnconverted));
 			}
 		}
 
 		abstract class LineProcessor {
 			public abstract void processLine(String line);
+
+			/**
+			 * Called when there are no more lines
+			 */
+			public void finish() {
+			}
 		}
 
 
@@ -716,12 +695,12 @@ public class BowtieAlignment {
 			File ref;
 			LineProcessor out;
 			private String logFileName;
-			private BufferedReader readsStream;
+			private ReadsFeeder readsStream;
 			private boolean nohead;
 			boolean shouldStop = false;
 			private Strand strand;
 
-			public AlignerThread(File ref, Strand strand, LineProcessor out, String logfileName, BufferedReader
+			public AlignerThread(File ref, Strand strand, LineProcessor out, String logfileName, ReadsFeeder
 					readsStream, boolean nohead) {
 				this.ref = ref;
 				this.out = out;
@@ -761,9 +740,9 @@ public class BowtieAlignment {
 					//thread to feed lines
 					new Thread() {
 						public void run() {
-							PrintStream ps = new PrintStream(process.getOutputStream());
+							PrintStream ps = new PrintStream(new BufferedOutputStream(process.getOutputStream(),
+									65536));
 
-							String readsLine = null;
 							logger.info("Start read feeding to alignment against " + ref.toString().replaceAll(project
 									.getWorkingDirectory() + File.separator, Project.WORKING_DIRECTORY) + ". Log " +
 									"file:" +
@@ -772,12 +751,11 @@ public class BowtieAlignment {
 									.replaceAll
 											(project.getOutputDirectory() + File.separator, Project.OUTPUT_DIRECTORY));
 							try {
-								while ((readsLine = readsStream.readLine()) != null && !shouldStop) {
-									ps.println(readsLine);
-
+								while (!shouldStop && readsStream.writeNext(ps)) {
 								}
 								ps.flush();
 								ps.close();
+								readsStream.close();
 
 								logger.info("Finished read feeding to alignment against " + ref.toString().replaceAll
 										(project
@@ -796,6 +774,8 @@ public class BowtieAlignment {
 						}
 					} catch (IOException e1) {
 						throw new RuntimeException(e1);
+					} finally {
+						out.finish();
 					}
 
 					shouldStop = true; //bowtie sends a null output, so the input feed should stop
@@ -806,8 +786,11 @@ public class BowtieAlignment {
 
 			}
 		}
-		final PrintStream outCT = new PrintStream(new FileOutputStream(alignmentOutputFileCT));
-		final PrintStream outGA = new PrintStream(new FileOutputStream(alignmentOutputFileGA));
+		// the merged SAM output is sorted and converted to an indexed BAM while it is being generated
+		final SortedBAMWriter bamWriterCT = new SortedBAMWriter(alignmentOutputFileCT, project.getWorkingDirectory());
+		final SortedBAMWriter bamWriterGA = new SortedBAMWriter(alignmentOutputFileGA, project.getWorkingDirectory());
+		final PrintStream outCT = new PrintStream(bamWriterCT.start());
+		final PrintStream outGA = new PrintStream(bamWriterGA.start());
 
 		class AlignerPostprocessor {
 			private final AlignmentScoreFunction scoreFunction;
@@ -821,19 +804,61 @@ public class BowtieAlignment {
 			StringBuilder outputBufferCT = new StringBuilder(100000);
 			StringBuilder outputBufferGA = new StringBuilder(100000);
 
-			private Pattern scorePattern;
+			// reused to tokenize the current CT and GA lines
+			private final SAMLineTokenizer CTRecord = new SAMLineTokenizer();
+			private final SAMLineTokenizer GARecord = new SAMLineTokenizer();
+
+			// lines of both aligners, paired by the merger thread
+			private final LineBatchPairer pairer = new LineBatchPairer();
+			private final Thread merger;
+			private volatile Throwable mergerError;
 
 			public AlignerPostprocessor(int id, AlignmentScoreFunction scoreFunction) {
 				this.id = id;
 				this.scoreFunction = scoreFunction;
+
+				this.merger = new Thread("aligner-postprocessor-" + id) {
+					public void run() {
+						try {
+							mergeBatches();
+						} catch (Throwable e) {
+							mergerError = e;
+						}
+					}
+				};
+				this.merger.start();
 			}
 
 			public void close() {
+				try {
+					merger.join();
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+				if (mergerError != null) {
+					throw new RuntimeException("Error merging alignments in aligner thread " + id, mergerError);
+				}
 				flushBuffer();
 				logger.info("Both alignments have finished. Ambigous reads: " + tagCount);
 
 			}
 
+			private void mergeBatches() throws InterruptedException {
+				boolean sameLength = pairer.pairAll(new LineBatchPairer.LinePairHandler() {
+					@Override
+					public void merge(String CTLine, String GALine) {
+						AlignerPostprocessor.this.CTLine = CTLine;
+						AlignerPostprocessor.this.GALine = GALine;
+						AlignerPostprocessor.this.merge();
+					}
+				});
+
+				if (!sameLength) {
+					logger.severe("BUG: CT and GA alignments of aligner thread " + id + " have a different number of " +
+							"lines");
+				}
+			}
+
 			// for single-end
 			private String directionalPreviousLineCT;
 			private boolean directionalPreviousLineCTWasAligned;
@@ -865,29 +890,27 @@ public class BowtieAlignment {
 
 			public void merge() {
 
-				CTLine = replaceOriginalRead(CTLine).trim();
-				GALine = replaceOriginalRead(GALine).trim();
+				CTRecord.parse(CTLine);
+				CTRecord.restoreOriginalRead();
+				GARecord.parse(GALine);
+				GARecord.restoreOriginalRead();
 
 				boolean ambiguous = false;
-				if (!CTLine.startsWith("@")) {
-					String[] tokensCT = CTLine.split("\t");
-					String[] tokensGA = GALine.split("\t");
+				if (!CTRecord.isHeader()) {
 
-					//System.out.println(tokensCT[0]+" = "+tokensGA[0]);
-					if (!sample.isPaired() && !tokensCT[0].equals(tokensGA[0])) {
+					if (!sample.isPaired() && !CTRecord.hasSameReadName(GARecord, false)) {
 						// Note: this does not happen when bowtie says "Exhausted best-first chunk memory for read"
 
 						logger.severe("BUG: reading two samrecords from CT and GA alignments with are a " +
-								"different read	CT:" + CTLine + "\nGA:" + GALine);
+								"different read	CT:" + CTRecord + "\nGA:" + GARecord);
 						System.exit(1);
-					} else if (sample.isPaired() && !tokensCT[0].substring(0, tokensCT[0].length() - 1).equals
-							(tokensGA[0].substring(0, tokensGA[0].length() - 1))) {
+					} else if (sample.isPaired() && !CTRecord.hasSameReadName(GARecord, true)) {
 						logger.severe("BUG: reading two samrecords from CT and GA alignments with are a different " +
-								"read (ignoring last character)\nCT:" + CTLine + "\nGA:" + GALine);
+								"read (ignoring last character)\nCT:" + CTRecord + "\nGA:" + GARecord);
 						System.exit(1);
 					}
 
-					if (!tokensCT[5].equals("*") && !tokensGA[5].equals("*")) {
+					if (CTRecord.isAligned() && GARecord.isAligned()) {
 						ambiguous = true;
 						tagCount++;
 					}
@@ -895,14 +918,16 @@ public class BowtieAlignment {
 					if (sample.isDirectional()) {
 						mergeDirectionalSAMLines(ambiguous);
 					} else {
-						mergeNonDirectionalSAMRecords(ambiguous, tokensCT, tokensGA);
+						CTLine = CTRecord.toString();
+						GALine = GARecord.toString();
+						mergeNonDirectionalSAMRecords(ambiguous);
 					}
 
 
 				} else {
 					// header line (starting with @)
-					outputBufferCT.append(CTLine + "\n");
-					outputBufferGA.append(GALine + "\n");
+					CTRecord.appendTo(outputBufferCT).append('\n');
+					GARecord.appendTo(outputBufferGA).append('\n');
 				}
 
 
@@ -919,19 +944,19 @@ public class BowtieAlignment {
 
 			}
 
-			private void mergeNonDirectionalSAMRecords(boolean ambiguous, String[] tokensCT, String[] tokensGA) {
+			private void mergeNonDirectionalSAMRecords(boolean ambiguous) {
 				//get score
 				int currentScore = Integer.MIN_VALUE;
 				boolean alignedInCT = false;
 				boolean alignedInGA = false;
-				if (!tokensCT[5].equals("*")) {
+				if (CTRecord.isAligned()) {
 					alignedInCT = true;
-					currentScore = scoreFunction.getScore(CTLine);
+					currentScore = scoreFunction.getScore(CTRecord);
 				}
 
-				if (!tokensGA[5].equals("*")) {
+				if (GARecord.isAligned()) {
 					alignedInGA = true;
-					int GAScore = scoreFunction.getScore(GALine);
+					int GAScore = scoreFunction.getScore(GARecord);
 					if (GAScore > currentScore) {
 						currentScore = GAScore;
 					}
@@ -1169,13 +1194,14 @@ public class BowtieAlignment {
 			}
 
 			private void mergeDirectionalSAMLines(boolean ambiguous) {
+				CTRecord.appendTo(outputBufferCT);
+				GARecord.appendTo(outputBufferGA);
 				if (ambiguous) {
-					outputBufferCT.append(CTLine + "\tZA:A:Y\tRG:Z:" + Strand.WATSON.name() + "\n");
-					outputBufferGA.append(GALine + "\tZA:A:Y\tRG:Z:" + Strand.CRICK.name() + "\n");
-				} else {
-					outputBufferCT.append(CTLine + "\tRG:Z:" + Strand.WATSON.name() + "\n");
-					outputBufferGA.append(GALine + "\tRG:Z:" + Strand.CRICK.name() + "\n");
+					outputBufferCT.append("\tZA:A:Y");
+					outputBufferGA.append("\tZA:A:Y");
 				}
+				outputBufferCT.append("\tRG:Z:").append(Strand.WATSON.name()).append('\n');
+				outputBufferGA.append("\tRG:Z:").append(Strand.CRICK.name()).append('\n');
 			}
 
 			private void flushBuffer() {
@@ -1191,64 +1217,30 @@ public class BowtieAlignment {
 
 			}
 
-			public LineProcessor CTProcessor = new LineProcessor() {
+			public LineProcessor CTProcessor = new BatchingLineProcessor(pairer.getCTBatcher());
 
-				@Override
-				public void processLine(String line) {
-					synchronized (AlignerPostprocessor.this) {
-						while (CTLine != null) {
-							try {
-								AlignerPostprocessor.this.wait(10000);
-								if (CTLine != null) {
-									logger.info("awaking, but CTLine is still not null (if you see this message " +
-											"continously, bowtie may be not responding), it is: " + CTLine +
-											"\nProcessing new CT line: " + line);
-								}
-							} catch (InterruptedException e) {
-								// TODO Auto-generated catch block
-								e.printStackTrace();
-							}
-						}
-						CTLine = line;
+			public LineProcessor GAProcessor = new BatchingLineProcessor(pairer.getGABatcher());
 
-						if (GALine != null) {
-							merge();
-							AlignerPostprocessor.this.notify();
-						}
-					}
+			/**
+			 * Sends the lines of an aligner to the merger thread in batches
+			 */
+			class BatchingLineProcessor extends LineProcessor {
+				private final LineBatchPairer.LineBatcher batcher;
 
+				BatchingLineProcessor(LineBatchPairer.LineBatcher batcher) {
+					this.batcher = batcher;
 				}
 
-			};
-
-			public LineProcessor GAProcessor = new LineProcessor() {
-
 				@Override
 				public void processLine(String line) {
-					synchronized (AlignerPostprocessor.this) {
-						while (GALine != null) {
-							try {
-								AlignerPostprocessor.this.wait(10000);
-								if (GALine != null) {
-									logger.info("awaking, but GALine is still not null, it is: " + GALine +
-											"\nProcessing new GA line: " + line);
-								}
-							} catch (InterruptedException e) {
-
-								e.printStackTrace();
-							}
-						}
-						GALine = line;
-
-						if (CTLine != null) {
-							merge();
-							AlignerPostprocessor.this.notify();
-						}
-					}
-
+					batcher.add(line);
 				}
 
-			};
+				@Override
+				public void finish() {
+					batcher.finish();
+				}
+			}
 		}
 
 		//write the header of the sam doing a "dummy alignment"
@@ -1256,10 +1248,10 @@ public class BowtieAlignment {
 		LineProcessor dummyctProcessor = dummyposprocessor.CTProcessor;
 		LineProcessor dummygaProcessor = dummyposprocessor.GAProcessor;
 		AlignerThread dummyThreadCT = new AlignerThread(refCT, Strand.WATSON, dummyctProcessor, alignmentOutputFileCT
-				+ "_p_head.log", new BufferedReader(new InputStreamReader(new ByteArrayInputStream(new byte[0]))),
+				+ "_p_head.log", new SingleEndReadsFeeder(sample, new ByteArrayInputStream(new byte[0]), true, false),
 				false);
 		AlignerThread dummyThreadGA = new AlignerThread(refGA, Strand.CRICK, dummygaProcessor, alignmentOutputFileGA +
-				"_p_head.log", new BufferedReader(new InputStreamReader(new ByteArrayInputStream(new byte[0]))),
+				"_p_head.log", new SingleEndReadsFeeder(sample, new ByteArrayInputStream(new byte[0]), true, false),
 				false);
 		dummyThreadCT.start();
 		dummyThreadGA.start();
@@ -1277,13 +1269,14 @@ public class BowtieAlignment {
 		List<Thread> alignerThreads = new LinkedList<Thread>();
 		List<AlignerPostprocessor> postprocessors = new LinkedList<AlignerPostprocessor>();
 
-		for (int i = 0; i < streamsWATSON.size(); i++) {
+		for (int i = 0; i < streams.size(); i++) {
 			AlignerPostprocessor postprocessor = new AlignerPostprocessor(i + 1, scoreFunction);
 			postprocessors.add(postprocessor);
 			LineProcessor ctProcessor = postprocessor.CTProcessor;
 			LineProcessor gaProcessor = postprocessor.GAProcessor;
-			BufferedReader streamCT = streamsWATSON.get(i);
-			BufferedReader streamGA = streamsCRICK.get(i);
+			List<? extends ReadsFeeder> feeders = new ReadsFanOut(streams.get(i), 2).getFeeders();
+			ReadsFeeder streamCT = feeders.get(0);
+			ReadsFeeder streamGA = feeders.get(1);
 			AlignerThread threadCT = new AlignerThread(refCT, Strand.WATSON, ctProcessor, alignmentOutputFileCT +
 					"_p_" + i + ".log", streamCT, true);
 			AlignerThread threadGA = new AlignerThread(refGA, Strand.CRICK, gaProcessor, alignmentOutputFileGA + "_p_"
@@ -1313,104 +1306,13 @@ public class BowtieAlignment {
 		outGA.flush();
 		outCT.close();
 		outGA.close();
+		bamWriterCT.waitFor();
+		bamWriterGA.waitFor();
 
 		logger.info("Alignment of sample " + sample.getName() + " OK");
 
 	}
 
-	private String getReverseComplementary(String sequence) {
-		StringBuilder complementaria = new StringBuilder("");
-
-		// 1ero construyo la complementaria
-		for (int i = 0; i < sequence.length(); i++) {
-			switch (sequence.charAt(i)) {
-				case 'A':
-					complementaria.append("T");
-					break;
-				case 'T':
-					complementaria.append("A");
-					break;
-				case 'C':
-					complementaria.append("G");
-					break;
-				case 'G':
-					complementaria.append("C");
-					break;
-				default:
-					complementaria.append(sequence.charAt(i));
-			}
-		}
-
-		//ahora la reversa
-		StringBuilder reversa = new StringBuilder("");
-		for (int i = complementaria.length() - 1; i > -1; i--) {
-			reversa.append(complementaria.charAt(i));
-		}
-
-		return (reversa.toString());
-	}
-
-	private String replaceOriginalRead(String samline) {
-		if (!samline.startsWith("@")) {
-			//System.out.println(samline);
-			final String[] tokens = samline.split("[\t]");
-			// recupero la secuencia inicial
-			final String[] firstColumn = tokens[0].split("[|][|]");
-			String originalRead = null;
-
-			int flag = Integer.parseInt(tokens[1]);
-			boolean mate1 = false;
-			boolean paired = false;
-			if ((flag & 0x0001) == 0x0001) {
-				//paired!
-				paired = true;
-				if ((flag & 0x0040) == 0x0040) {
-					//mate1
-					mate1 = true;
-					originalRead = firstColumn[1];
-				} else if ((flag & 0x0080) == 0x0080) {
-					//mate2
-					mate1 = false;
-					originalRead = firstColumn[2];
-				} else {
-					throw new RuntimeException("Malformed FLAG in SAM. It says that is a paired read, but it is not " +
-							"the first nor the second pair");
-				}
-			} else {
-				originalRead = firstColumn[1];
-			}
-			final StringBuilder lineModified = new StringBuilder();
-
-			if ((flag & 0x0010) == 0x0010) {
-				originalRead = getReverseComplementary(originalRead);
-			}
-
-
-			for (int j = 0; j < tokens.length; j++) {
-				// le adjunto la cabecera original de la read
-				if (j == 0) {
-					lineModified.append(firstColumn[0]);
-					if (paired) {
-						if (mate1) {
-							lineModified.append("/1");
-						} else {
-							lineModified.append("/2");
-						}
-					}
-					lineModified.append("\t");
-				}
-				// le adjunto la read original en lugar de la que tenia
-				else if (j == 9) lineModified.append(originalRead).append("\t");
-
-					//else if(j==tokens.length-1) lineModified=new StringBuilder(lineModified).append(tokens[j]);
-				else lineModified.append(tokens[j]).append("\t");
-
-			}
-			return lineModified.toString();
-		}//if(!thisLine.startsWith("@"))
-		return samline;
-	}
-
 
 }
 
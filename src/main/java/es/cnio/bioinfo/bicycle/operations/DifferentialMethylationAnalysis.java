@@ -352,22 +352,17 @@ public class DifferentialMethylationAnalysis {
 		long currentPos = -1;
 		Map<Sample, MethylationCall> currentBaseCalls = new HashMap<>();
 
-		String line = null;
+		MethylationCall call = null;
 
 		List<Double> pValues = new LinkedList<>();
 
 		logger.info("Computing DMCs...");
-		while ((line = reader.readLine()) != null) {
-			if (line.startsWith("#"))
-				continue;
-
-			MethylationCall call = MethylationCall.unmarshall(line);
+		while ((call = reader.readCall()) != null) {
 			if (!this.contexts.contains(call.getContext())) {
 				continue;
 			}
-			String[] tokens = line.split("\t");
-			String lineSeq = tokens[0];
-			long linePos = Long.parseLong(tokens[1]);
+			String lineSeq = reader.getLastContig();
+			long linePos = reader.getLastPosition();
 
 			if (currentSeq != null && (!lineSeq.equals(currentSeq) || linePos != currentPos)) {
 				processBase(currentSeq, currentPos, currentContext, treatmentSamples, controlSamples, currentBaseCalls,
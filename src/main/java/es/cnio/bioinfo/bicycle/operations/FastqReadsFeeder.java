@@ -0,0 +1,92 @@
+package es.cnio.bioinfo.bicycle.operations;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import es.cnio.bioinfo.bicycle.Sample;
+
+/**
+ * A {@link ReadsFeeder} that parses fastq files and writes their reads bisulfite-converted. Records are parsed and
+ * converted on reusable byte buffers, so no Strings are created per read.
+ *
+ * @author lipido
+ */
+public abstract class FastqReadsFeeder implements ReadsFeeder {
+
+	protected static final byte[] C_TO_T = conversionTable('C', 'T');
+	protected static final byte[] G_TO_A = conversionTable('G', 'A');
+	protected static final byte[] SPACE_TO_UNDERSCORE = conversionTable(' ', '_');
+	protected static final byte[] ORIGINAL_SEPARATOR = {'|', '|'};
+
+	private int barcodePosition = -1;
+	private Sample sample;
+	private boolean skipUnconverted;
+
+	private byte[] conversionBuffer = new byte[256];
+
+	public FastqReadsFeeder(Sample sample, boolean skipUnconverted) {
+		this.sample = sample;
+		this.skipUnconverted = skipUnconverted;
+	}
+
+	/**
+	 * Writes length bytes of src to out, replacing each byte through the conversion table
+	 */
+	protected void writeConverted(OutputStream out, byte[] src, int offset, int length, byte[] table) throws
+			IOException {
+		if (conversionBuffer.length < length) {
+			conversionBuffer = new byte[Math.max(length, conversionBuffer.length * 2)];
+		}
+		for (int i = 0; i < length; i++) {
+			conversionBuffer[i] = table[src[offset + i] & 0xff];
+		}
+		out.write(conversionBuffer, 0, length);
+	}
+
+	protected boolean shouldSkip(byte[] header, int length) {
+		return this.skipUnconverted && this.hasUnconvertedBarcode(new String(header, 0, length, StandardCharsets
+				.ISO_8859_1));
+	}
+
+	private int getBarcodePosition() {
+		if (barcodePosition == -1) {
+			File f = sample.getReadsFiles().get(0);
+			// obtengo el barcode del nombre del archivo, ejemplo: ES_LIF_s_8_TGtATT-sequence.txt
+			String barcode = new String((f.getName().split("-"))[0]);
+			String aux[] = barcode.split("_");
+			barcode = aux[aux.length - 1];
+
+			this.barcodePosition = -1; //inicializo
+			barcodePosition = barcode.indexOf("t");
+			if (barcodePosition == -1) {
+				throw new IllegalArgumentException("no 't' found on barcode. barcode " + barcode);
+			}
+		}
+
+		return barcodePosition;
+	}
+
+	public boolean hasUnconvertedBarcode(String readHeader) {
+		String[] tokens = readHeader.split("[#]");
+		if (tokens.length == 2) {
+			String thisReadBarcode = tokens[1];
+
+			if (thisReadBarcode.charAt(getBarcodePosition()) != 't' && thisReadBarcode.charAt(getBarcodePosition()) !=
+					'T') {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static byte[] conversionTable(char from, char to) {
+		byte[] table = new byte[256];
+		for (int i = 0; i < table.length; i++) {
+			table[i] = (byte) i;
+		}
+		table[from] = (byte) to;
+		return table;
+	}
+}
@@ -0,0 +1,102 @@
+package es.cnio.bioinfo.bicycle.operations;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Reads fastq records from a byte stream into reusable buffers. After a successful call to {@link #next()}, the
+ * four lines of the record are available (without end of line) until the next call.
+ *
+ * @author lipido
+ */
+class FastqRecordReader {
+
+	static final int HEADER = 0;
+	static final int SEQUENCE = 1;
+	static final int HEADER2 = 2;
+	static final int QUALITY = 3;
+
+	private final InputStream in;
+	private final byte[] buffer = new byte[65536];
+	private int position = 0;
+	private int limit = 0;
+
+	private final byte[][] lines = new byte[][]{new byte[256], new byte[256], new byte[256], new byte[256]};
+	private final int[] lengths = new int[4];
+
+	public FastqRecordReader(InputStream in) {
+		this.in = in;
+	}
+
+	/**
+	 * Reads the next record.
+	 *
+	 * @return false if there are no more complete records
+	 * @throws IOException
+	 */
+	public boolean next() throws IOException {
+		for (int i = 0; i < 4; i++) {
+			if (!readLine(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public byte[] getLine(int line) {
+		return lines[line];
+	}
+
+	public int getLength(int line) {
+		return lengths[line];
+	}
+
+	public void close() throws IOException {
+		in.close();
+	}
+
+	private boolean readLine(int line) throws IOException {
+		byte[] dest = lines[line];
+		int length = 0;
+		boolean readed = false;
+		while (true) {
+			if (position == limit) {
+				int n = in.read(buffer, 0, buffer.length);
+				if (n == -1) {
+					if (!readed) {
+						return false;
+					}
+					break;
+				}
+				position = 0;
+				limit = n;
+				continue;
+			}
+			readed = true;
+
+			// copy until the end of line or the end of the buffer
+			int start = position;
+			while (position < limit && buffer[position] != '\n') {
+				position++;
+			}
+			int count = position - start;
+			if (length + count > dest.length) {
+				dest = Arrays.copyOf(dest, Math.max(dest.length * 2, length + count));
+				lines[line] = dest;
+			}
+			System.arraycopy(buffer, start, dest, length, count);
+			length += count;
+
+			if (position < limit) {
+				position++; // skip '\n'
+				break;
+			}
+		}
+		if (length > 0 && dest[length - 1] == '\r') {
+			length--;
+		}
+		lengths[line] = length;
+		return true;
+	}
+}
@@ -0,0 +1,145 @@
+package es.cnio.bioinfo.bicycle.operations;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pairs the SAM lines of the CT and GA alignments of the same reads. Each aligner sends its lines in batches to its
+ * own bounded queue through a {@link LineBatcher}, and a single thread takes them in order and passes each pair of
+ * lines to a {@link LinePairHandler}.
+ * <p>
+ * Both aligners are fed by the same reads producer, so one of them cannot finish while the other is blocked. This is
+ * why the remaining lines are always drained from both queues at the same time.
+ *
+ * @author lipido
+ */
+class LineBatchPairer {
+
+	// SAM lines are passed from the aligners to the merger in batches of this size
+	static final int LINE_BATCH_SIZE = 1024;
+	static final int LINE_BATCHES = 16;
+	private static final String[] END_OF_LINES = new String[0];
+
+	private static final long DRAIN_POLL_MILLIS = 100;
+
+	interface LinePairHandler {
+		void merge(String CTLine, String GALine);
+	}
+
+	private final BlockingQueue<String[]> CTBatches = new ArrayBlockingQueue<String[]>(LINE_BATCHES);
+	private final BlockingQueue<String[]> GABatches = new ArrayBlockingQueue<String[]>(LINE_BATCHES);
+
+	private final LineBatcher CTBatcher = new LineBatcher(CTBatches);
+	private final LineBatcher GABatcher = new LineBatcher(GABatches);
+
+	public LineBatcher getCTBatcher() {
+		return CTBatcher;
+	}
+
+	public LineBatcher getGABatcher() {
+		return GABatcher;
+	}
+
+	/**
+	 * Takes the lines of both aligners until one of them finishes, passing each pair to the handler. If the
+	 * handler fails, the remaining lines of both aligners are consumed before the error is rethrown, so the aligners
+	 * can finish.
+	 *
+	 * @return false if the aligners sent a different number of lines
+	 */
+	public boolean pairAll(LinePairHandler handler) throws InterruptedException {
+		String[] CTBatch = null;
+		String[] GABatch = null;
+		int CTPosition = 0;
+		int GAPosition = 0;
+		try {
+			while (true) {
+				if (CTBatch == null || CTPosition == CTBatch.length) {
+					CTBatch = CTBatches.take();
+					CTPosition = 0;
+				}
+				if (GABatch == null || GAPosition == GABatch.length) {
+					GABatch = GABatches.take();
+					GAPosition = 0;
+				}
+				if (CTBatch == END_OF_LINES || GABatch == END_OF_LINES) {
+					break;
+				}
+				handler.merge(CTBatch[CTPosition++], GABatch[GAPosition++]);
+			}
+		} catch (RuntimeException | Error e) {
+			drain(CTBatch, GABatch);
+			throw e;
+		}
+
+		if (CTBatch != END_OF_LINES || GABatch != END_OF_LINES) {
+			drain(CTBatch, GABatch);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Takes batches from both queues alternately until both of them reach the end of the lines. A queue is never
+	 * waited for indefinitely, because its aligner may be waiting for the other one to be consumed.
+	 */
+	private void drain(String[] CTBatch, String[] GABatch) throws InterruptedException {
+		while (CTBatch != END_OF_LINES || GABatch != END_OF_LINES) {
+			if (CTBatch != END_OF_LINES) {
+				String[] batch = CTBatches.poll(DRAIN_POLL_MILLIS, TimeUnit.MILLISECONDS);
+				if (batch != null) {
+					CTBatch = batch;
+				}
+			}
+			if (GABatch != END_OF_LINES) {
+				String[] batch = GABatches.poll(DRAIN_POLL_MILLIS, TimeUnit.MILLISECONDS);
+				if (batch != null) {
+					GABatch = batch;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Collects the lines of one aligner and sends them to the pairer in batches
+	 */
+	static class LineBatcher {
+		private final BlockingQueue<String[]> batches;
+		private String[] batch = new String[LINE_BATCH_SIZE];
+		private int size = 0;
+
+		private LineBatcher(BlockingQueue<String[]> batches) {
+			this.batches = batches;
+		}
+
+		public void add(String line) {
+			batch[size++] = line;
+			if (size == batch.length) {
+				put(batch);
+				batch = new String[LINE_BATCH_SIZE];
+				size = 0;
+			}
+		}
+
+		/**
+		 * Sends the pending lines and marks the end of the lines of this aligner
+		 */
+		public void finish() {
+			if (size > 0) {
+				put(Arrays.copyOf(batch, size));
+				size = 0;
+			}
+			put(END_OF_LINES);
+		}
+
+		private void put(String[] lines) {
+			try {
+				batches.put(lines);
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+}
@@ -21,33 +21,33 @@ along with bicycle Project.  If not, see <http://www.gnu.org/licenses/>.
 
 package es.cnio.bioinfo.bicycle.operations;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.security.Permission;
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.LinkedHashMap;
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import es.cnio.bioinfo.bicycle.ErrorRateMode;
-import es.cnio.bioinfo.bicycle.MethylationCall;
 import es.cnio.bioinfo.bicycle.Project;
 import es.cnio.bioinfo.bicycle.Reference;
 import es.cnio.bioinfo.bicycle.RegionMethylation;
 import es.cnio.bioinfo.bicycle.Sample;
 import es.cnio.bioinfo.bicycle.StandardStreamsToLoggerRedirector;
-import es.cnio.bioinfo.bicycle.Tools;
+import es.cnio.bioinfo.bicycle.gatk.BadBisulfiteFilter;
+import es.cnio.bioinfo.bicycle.gatk.ClonalReadMarker;
+import es.cnio.bioinfo.bicycle.gatk.ListerFilter;
+import es.cnio.bioinfo.bicycle.gatk.NativeMethylationCaller;
 import es.cnio.bioinfo.bicycle.operations.BowtieAlignment.Strand;
 
 public class MethylationAnalysis {
@@ -55,10 +55,49 @@ public class MethylationAnalysis {
 
 	private Project project;
 
+	private boolean nativeCaller = false;
+	private boolean markClonalReads = true;
+	private int badBisulfiteThreshold = BadBisulfiteFilter.DEFAULT_THRESHOLD;
+
 	public MethylationAnalysis(Project p) {
 		this.project = p;
 	}
 
+	/**
+	 * Sets whether the methylation is called with the {@link NativeMethylationCaller} instead of the GATK walker.
+	 * Both produce the same results.
+	 */
+	public void setNativeCaller(boolean nativeCaller) {
+		this.nativeCaller = nativeCaller;
+	}
+
+	public boolean isNativeCaller() {
+		return nativeCaller;
+	}
+
+	/**
+	 * Sets whether the clonal reads are marked as duplicates in a pass over the BAM files before calling, or removed
+	 * by the callers at every locus. Both produce the same results.
+	 */
+	public void setMarkClonalReads(boolean markClonalReads) {
+		this.markClonalReads = markClonalReads;
+	}
+
+	public boolean isMarkClonalReads() {
+		return markClonalReads;
+	}
+
+	/**
+	 * Sets the number of cytosines out of the CpG context of the reads ignored as non-correctly bisulfite-converted
+	 */
+	public void setBadBisulfiteThreshold(int badBisulfiteThreshold) {
+		this.badBisulfiteThreshold = badBisulfiteThreshold;
+	}
+
+	public int getBadBisulfiteThreshold() {
+		return badBisulfiteThreshold;
+	}
+
 	public Project getProject() {
 		return project;
 	}
@@ -91,8 +130,7 @@ public class MethylationAnalysis {
 	}
 
 	public File getMethylatedRegionsFile(Reference reference, Sample sample, File bed) {
-		return new File(this.getMethylcytosinesFile(reference, sample).toString().replace("methylcytosines", "") + bed
-				.getName().replace("bed", "METHYLATEDregions.txt"));
+		return RegionMethylation.getRegionsFile(this.getMethylcytosinesFile(reference, sample), bed.getName());
 	}
 
 	public void analyzeWithErrorFromBarcodes(Reference reference,
@@ -176,6 +214,39 @@ public class MethylationAnalysis {
 						 double crickError,
 						 List<File> bedFiles) throws IOException, InterruptedException {
 
+		if (this.nativeCaller) {
+			logger.info("Starting methylation analysis of sample " + sample.getName() + " with the native caller");
+			callWithNativeCaller(reference, sample, trimreads, trimuntil, removeAmbiguous, onlyWithOneAlignment,
+					removeBad, removeClonal, correctNonCG, mindepth, fdr, nThreads, errorMode, controlGenome,
+					watsonError, crickError, bedFiles);
+		} else {
+			callWithGATK(reference, sample, trimreads, trimuntil, removeAmbiguous, onlyWithOneAlignment, removeBad,
+					removeClonal, correctNonCG, mindepth, fdr, nThreads, errorMode, controlGenome, watsonError,
+					crickError, bedFiles);
+		}
+
+		logger.info("Methylation analysis of sample " + sample.getName() + " OK");
+
+	}
+
+	private void callWithGATK(Reference reference,
+							  Sample sample,
+							  boolean trimreads,
+							  int trimuntil,
+							  boolean removeAmbiguous,
+							  boolean onlyWithOneAlignment,
+							  boolean removeBad,
+							  boolean removeClonal,
+							  boolean correctNonCG,
+							  int mindepth,
+							  double fdr,
+							  int nThreads,
+							  ErrorRateMode errorMode,
+							  String controlGenome,
+							  double watsonError,
+							  double crickError,
+							  List<File> bedFiles) throws IOException, InterruptedException {
+
 		final String command = prepareGATKCommand(reference, sample, trimreads, trimuntil, removeAmbiguous,
 				onlyWithOneAlignment, removeBad,
 				removeClonal, correctNonCG, mindepth, fdr, nThreads, errorMode, controlGenome, watsonError,
@@ -229,11 +300,66 @@ public class MethylationAnalysis {
 				f.delete();
 			}
 		}
+	}
 
-		writeRegionsMethylation(reference, sample, bedFiles);
+	private void callWithNativeCaller(Reference reference,
+									  Sample sample,
+									  boolean trimreads,
+									  int trimuntil,
+									  boolean removeAmbiguous,
+									  boolean onlyWithOneAlignment,
+									  boolean removeBad,
+									  boolean removeClonal,
+									  boolean correctNonCG,
+									  int mindepth,
+									  double fdr,
+									  int nThreads,
+									  ErrorRateMode errorMode,
+									  String controlGenome,
+									  double watsonError,
+									  double crickError,
+									  List<File> bedFiles) throws IOException, InterruptedException {
+
+		File[] bams = getSortedBAMs(new BowtieAlignment(this.project), sample, reference);
+		if (removeClonal && this.markClonalReads) {
+			ListerFilter.trim = trimreads;
+			bams = markClonalReads(bams, createListerFilter(trimreads, trimuntil, removeAmbiguous,
+					onlyWithOneAlignment, removeBad));
+		}
 
-		logger.info("Methylation analysis of sample " + sample.getName() + " OK");
+		ListerFilter filter = createListerFilter(trimreads, trimuntil, removeAmbiguous, onlyWithOneAlignment,
+				removeBad);
+
+		NativeMethylationCaller caller = new NativeMethylationCaller(reference.getReferenceFile(), bams[0],
+				bams[1], filter, nThreads);
+		caller.outdir = project.getOutputDirectory();
+		caller.FDR = fdr;
+		caller.correctNonCG = correctNonCG;
+		caller.removeClonal = removeClonal;
+		caller.trim = trimreads;
+		caller.mindepth = mindepth;
+		if (bedFiles != null) {
+			caller.beds = bedFiles;
+		}
+		caller.contexttrack = reference.getContextTrackFile();
+
+		caller.methylcytosinesfile = getMethylcytosinesFile(reference, sample);
+		caller.methylcytosinesvcffile = getMethylcytosinesVCFFile(reference, sample);
+		caller.summaryfile = getSummaryFile(reference, sample);
+		caller.methylationwatsonfile = getMethylationFile(Strand.WATSON, reference, sample);
+		caller.methylationcrickfile = getMethylationFile(Strand.CRICK, reference, sample);
+
+		if (errorMode == ErrorRateMode.from_barcodes) {
+			BarcodeErrorComputation bec = new BarcodeErrorComputation(sample);
+			double error = bec.computeErrorFromBarcodes();
+			caller.errorRate = error + "," + error;
+		} else if (errorMode == ErrorRateMode.from_control_genome) {
+			caller.controlGenome = controlGenome;
+		} else {
+			caller.errorRate = watsonError + "," + crickError;
+		}
 
+		caller.run();
 	}
 
 	private String prepareGATKCommand(Reference reference, Sample sample, boolean trimreads, int trimuntil,
@@ -246,22 +372,17 @@ public class MethylationAnalysis {
 			IOException {
 
 		BowtieAlignment ba = new BowtieAlignment(this.project);
-		File samFileCT = ba.getAlignmentOutputFile(Strand.WATSON, sample, reference);
-		File samFileGA = ba.getAlignmentOutputFile(Strand.CRICK, sample, reference);
 		File fasta = reference.getReferenceFile();
 
-
-		final PrintStream oldErr = System.err;
-		// capture SortSam output and redirect it to our logger
-
-		File sortedCT = new File(samFileCT.getAbsolutePath() + ".sorted.sam");
-		File sortedGA = new File(samFileGA.getAbsolutePath() + ".sorted.sam");
-
-		sortSAM(samFileCT, sortedCT);
-		sortSAM(samFileGA, sortedGA);
-
-		File outputBamFileCT = buildBAMAndIndex(sortedCT, this.project.getSamtoolsDirectory());
-		File outputBamFileGA = buildBAMAndIndex(sortedGA, this.project.getSamtoolsDirectory());
+		// the alignment generates sorted and indexed BAM files
+		File[] outputBamFiles = getSortedBAMs(ba, sample, reference);
+		if (removeClonal && this.markClonalReads) {
+			ListerFilter.trim = trimreads;
+			outputBamFiles = markClonalReads(outputBamFiles, createListerFilter(trimreads, trimuntil,
+					removeAmbiguous, onlyWithOneAlignment, removeBad));
+		}
+		File outputBamFileCT = outputBamFiles[0];
+		File outputBamFileGA = outputBamFiles[1];
 
 		// RuntimeMXBean runtimemxBean = ManagementFactory.getRuntimeMXBean();
 		// String command = "java -Xmx1024M -cp "+runtimemxBean.getClassPath()+"
@@ -282,7 +403,7 @@ public class MethylationAnalysis {
 
 		if (bedFiles != null)
 			for (File bedfile : bedFiles) {
-				command += " -annotation:" + bedfile.getName() + ",bed " + bedfile.getAbsolutePath();
+				command += " -annotation " + bedfile.getAbsolutePath();
 			}
 
 		if (errorMode == ErrorRateMode.from_barcodes) {
@@ -319,6 +440,7 @@ public class MethylationAnalysis {
 
 		if (removeBad) {
 			command += " --removebad";
+			command += " --badbisulfitethreshold " + this.badBisulfiteThreshold;
 		}
 
 		if (onlyWithOneAlignment) {
@@ -328,240 +450,6 @@ public class MethylationAnalysis {
 		return command;
 	}
 
-	private void writeRegionsMethylation(Reference reference, Sample sample, List<File> bedFiles) throws IOException {
-		// <---- Cytosine METHYLATION PER ANNOTATED REGION ---->
-		// IF BED FILES ARE AVAILABLE, then cytosine methylation per annotated
-		// region is also calculated
-		// added by osvaldo, 23Jan2016
-		if (!bedFiles.isEmpty()) {
-			// calculates methylation for each annotated region in each bed file
-			// for the methylcytosines file
-
-
-			// foreach bed file
-			for (File bed : bedFiles) {
-				logger.info("Checking methylation for regions annotated in " + bed.toString());
-				BufferedWriter w = null;
-				String annotationSet = bed.getName();
-				try {
-					// output file that will store methylation values for each
-					// annotated region
-					File outputFile = this.getMethylatedRegionsFile(reference, sample, bed);
-
-					FileWriter o = new FileWriter(outputFile);
-
-					w = new BufferedWriter(o);
-					w.write(RegionMethylation.getMarshallHeader());
-					w.newLine();
-					w.flush();
-
-
-					List<RegionMethylation> regionsMethylation =
-							computeRegionsMethylation(reference, sample, annotationSet);
-
-					for (RegionMethylation rM : regionsMethylation) {
-						w.append(rM.marshall());
-						w.newLine();
-					}
-
-				} catch (FileNotFoundException e) {
-					e.printStackTrace();
-
-				} catch (IOException e) {
-					e.printStackTrace();
-
-				} finally {
-					if (w != null)
-						w.close();
-				}
-
-			}
-		} // if(!bedFiles.isEmpty())
-	}
-
-	public List<RegionMethylation> computeRegionsMethylation(Reference reference, Sample sample, String annotationSet)
-			throws FileNotFoundException, IOException {
-		File methylcytosinesFile = this.getMethylcytosinesFile(reference, sample);
-		logger.info("Calculating methylation per annotated region for: " + methylcytosinesFile.toString().replaceAll
-				(project.getOutputDirectory() + File.separator, Project.OUTPUT_DIRECTORY));
-
-		List<RegionMethylation> regionsMethylation = new LinkedList<>();
-
-		// each hash table contains separated values for Watson and
-		// Crick
-		Map<String, Map<String, Integer>> mCG = new LinkedHashMap<>();
-		Map<String, Map<String, Integer>> mCHG = new LinkedHashMap<>();
-		Map<String, Map<String, Integer>> mCHH = new LinkedHashMap<>();
-		Map<String, Map<String, Integer>> depthCG = new LinkedHashMap<>();
-		Map<String, Map<String, Integer>> depthCHG = new LinkedHashMap<>();
-		Map<String, Map<String, Integer>> depthCHH = new LinkedHashMap<>();
-
-
-		boolean firstLine = true;
-		int columnOfInterest = -1;
-
-		// opens the methylcytosine file
-		FileReader f = new FileReader(methylcytosinesFile);
-		BufferedReader b = new BufferedReader(f);
-		String line;
-
-		// for each line in the methylcytosines file (starting from
-		// line 0, i.e., first line)
-		while ((line = b.readLine()) != null) {
-
-			String tokens[] = line.split("\t");
-
-
-			// if positioned in first (header) line (line 0), it
-			// finds out the column number that contains
-			// the genomic annotations for the current bed file
-			if (firstLine) {
-				// checks all first line headers
-				for (int pos = 0; pos < tokens.length; pos++) {
-					if (tokens[pos].equals(annotationSet)) {
-						// the current bed file is in column 'pos'
-						columnOfInterest = pos;
-						break;
-					}
-				}
-
-				firstLine = false;
-
-			} // if(firstLine)
-			else {// not in first line (not header line)
-				MethylationCall call = MethylationCall.unmarshall(line);
-				if (!tokens[columnOfInterest].contains("N/A")) {
-					List<String> regions = Arrays.asList(tokens[columnOfInterest].split("[|]"));
-
-
-					for (String region : regions) {
-						if (!mCG.containsKey(region)) {
-							// initialization
-							mCG.put(region, new HashMap<String, Integer>());
-							mCG.get(region).put("WATSON", 0);
-							mCG.get(region).put("CRICK", 0);
-
-							mCHG.put(region, new HashMap<String, Integer>());
-							mCHG.get(region).put("WATSON", 0);
-							mCHG.get(region).put("CRICK", 0);
-
-							mCHH.put(region, new HashMap<String, Integer>());
-							mCHH.get(region).put("WATSON", 0);
-							mCHH.get(region).put("CRICK", 0);
-
-							depthCG.put(region, new HashMap<String, Integer>());
-							depthCG.get(region).put("WATSON", 0);
-							depthCG.get(region).put("CRICK", 0);
-
-							depthCHG.put(region, new HashMap<String, Integer>());
-							depthCHG.get(region).put("WATSON", 0);
-							depthCHG.get(region).put("CRICK", 0);
-
-							depthCHH.put(region, new HashMap<String, Integer>());
-							depthCHH.get(region).put("WATSON", 0);
-							depthCHH.get(region).put("CRICK", 0);
-						}
-
-						// value accumulation
-						// accumulates methylated cytosines
-
-						String strand = call.getStrand().name();//tokens[2];
-						String methylationContext = call.getContext().name();//tokens[3];
-						int depth = call.getDepth();//Integer.parseInt(tokens[4]);
-						int methylation = call.getCytosines();// Integer.parseInt(tokens[6]);
-
-						// accumulates new values for the current
-						// annotated region
-						switch (methylationContext) {
-							case "CG":
-								mCG.get(region).put(strand, mCG.get(region).get(strand) + methylation);
-								depthCG.get(region).put(strand, depthCG.get(region).get(strand) + depth);
-								break;
-
-							case "CHG":
-								mCHG.get(region).put(strand, mCHG.get(region).get(strand) + methylation);
-								depthCHG.get(region).put(strand, depthCHG.get(region).get(strand) + depth);
-								break;
-
-							case "CHH":
-								mCHH.get(region).put(strand, mCHH.get(region).get(strand) + methylation);
-								depthCHH.get(region).put(strand, depthCHH.get(region).get(strand) + depth);
-								break;
-
-							default:
-								System.out.print("[Invalid methylation context]: ");
-								System.out.println(line);
-						}
-
-					}
-				} // if(!tokens[columnOfInterest].equals("N/A")
-
-			} // else{// not in first line (not header line)
-
-		} // while((line=b.readLine())!=null)
-		b.close();
-
-		for (String region : mCG.keySet()) {
-			regionsMethylation.add(
-					new RegionMethylation(
-							region,
-							mCG.get(region).get("WATSON").intValue(),
-							depthCG.get(region).get("WATSON").intValue(),
-							mCHG.get(region).get("WATSON").intValue(),
-							depthCHG.get(region).get("WATSON").intValue(),
-							mCHH.get(region).get("WATSON").intValue(),
-							depthCHH.get(region).get("WATSON").intValue(),
-							mCG.get(region).get("CRICK").intValue(),
-							depthCG.get(region).get("CRICK").intValue(),
-							mCHG.get(region).get("CRICK").intValue(),
-							depthCHG.get(region).get("CRICK").intValue(),
-							mCHH.get(region).get("CRICK").intValue(),
-							depthCHH.get(region).get("CRICK").intValue()
-
-					));
-
-		}
-
-		return regionsMethylation;
-	}
-
-
-	private void sortSAM(File sam, File output) throws InterruptedException, IOException {
-		//sort the sam
-
-		if (new File(output.getAbsolutePath()).exists() && new File(output.getAbsolutePath()).lastModified() > sam
-				.lastModified()) {
-			//System.out.println("skipping. found the corresponding sorted file, older than the unsorted input file");
-			return;
-		}
-		logger.info("Sorting " + sam.getAbsolutePath().replaceAll(project.getOutputDirectory() + File.separator,
-				Project.OUTPUT_DIRECTORY));
-		String outfile = sam.getAbsolutePath() + ".sorted.sam";
-
-		StandardStreamsToLoggerRedirector redirector = null;
-		try {
-			forbidSystemExitCall();
-			redirector = new StandardStreamsToLoggerRedirector(logger, Level.INFO,
-					new StandardStreamsToLoggerRedirector.MessageFilter() {
-						@Override
-						public String filter(String msg) {
-							if (!msg.contains("INFO")) return ""; //skip non INFO lines
-							if (msg.contains("INPUT=")) return ""; //skip hello message
-							return "SortSam (Picard): " + msg.replaceAll("INFO.*SortSam\\s+", "");
-						}
-					});
-			redirector.redirectStreams();
-			net.sf.picard.sam.SortSam.main(new String[]{"I=" + sam.getAbsolutePath(), "O=" + outfile, "SO=coordinate",
-					"TMP_DIR=" + sam.getAbsoluteFile().getParentFile().getAbsolutePath()});
-		} catch (ExitTrappedException e) {
-			//SortSam seems to have a System.exit(0) at the end!
-		} finally {
-			enableSystemExitCall();
-			redirector.restoreStreams();
-		}
-
-	}
-
 	private static PrintStream err;
 
 	private static void disableSystemErr(PrintStream originalStdErr) {
@@ -622,44 +510,111 @@ public class MethylationAnalysis {
 		enableSystemErr();
 	}
 
-	private File buildBAMAndIndex(File samCT, File samtoolsDirectory) {
-		File bam = new File(samCT.getAbsolutePath() + ".bam");
-		String samtoolsPath = (samtoolsDirectory != null ? samtoolsDirectory.getAbsolutePath() + File
-				.separator : "") + "samtools";
-		if (bam.exists() && bam.lastModified() > samCT.lastModified()) {
-			//	System.out.println("bam exists and is older. Skip");
-
-		} else {
-			logger.info("Building BAM for " + samCT.toString().replaceAll(project.getOutputDirectory() + File
-					.separator, ""));
-
-			Tools.executeProcessWait(samtoolsPath + " view -S -b -o " + bam.getAbsolutePath() + " " + samCT
-					.getAbsolutePath());
-			logger.info("BAM built for " + samCT.toString().replaceAll(project.getOutputDirectory() + File.separator,
-					""));
+	/**
+	 * Creates the read filter of the callers with the given options
+	 */
+	private ListerFilter createListerFilter(boolean trimreads, int trimuntil, boolean removeAmbiguous, boolean
+			onlyWithOneAlignment, boolean removeBad) {
+		ListerFilter filter = new ListerFilter();
+		filter.removeAmbiguous = removeAmbiguous;
+		filter.onlyWithOneAlignment = onlyWithOneAlignment;
+		filter.removeBad = removeBad;
+		filter.badBisulfiteThreshold = this.badBisulfiteThreshold;
+		if (trimreads) {
+			filter.trimUntil = trimuntil;
 		}
+		return filter;
+	}
 
+	/**
+	 * Writes copies of the sorted Watson and Crick BAM files with the clonal reads marked as duplicates, so the
+	 * callers do not need to remove them at every locus. Only the reads that pass the given filter are considered,
+	 * as the callers do, and {@link ListerFilter#trim} must be already set. The copies marked by a previous analysis
+	 * are reused if they are newer than the sorted BAM files. Both strands are marked at the same time.
+	 */
+	private File[] markClonalReads(final File[] bams, final ListerFilter filter) throws IOException,
+			InterruptedException {
+		final es.cnio.bioinfo.bicycle.gatk.Strand[] strands = {es.cnio.bioinfo.bicycle.gatk.Strand.WATSON, es.cnio
+				.bioinfo.bicycle.gatk.Strand.CRICK};
 
-		File bai = new File(bam.getAbsolutePath() + ".bai");
-
-		if (bai.exists() && bam.exists() && bai.lastModified() > bam.lastModified()) {
-			//	System.out.println("bai exists and is older. Skip");
-
-		} else {
-			logger.info("Building index for " + samCT.toString().replaceAll(project.getOutputDirectory() + File
-					.separator, Project.OUTPUT_DIRECTORY));
+		final File[] marked = new File[bams.length];
+		List<Future<?>> markings = new ArrayList<Future<?>>();
+		ExecutorService executor = Executors.newFixedThreadPool(bams.length);
+		try {
+			for (int i = 0; i < bams.length; i++) {
+				marked[i] = new File(bams[i].getAbsolutePath().replaceAll("\\.bam$", "") + ".clonal.bam");
+				if (ClonalReadMarker.getMetrics(marked[i]) != null && marked[i].lastModified() >= bams[i]
+						.lastModified()) {
+					logger.info("Reusing the clonal reads marked in " + marked[i].getName());
+					continue;
+				}
 
-			Tools.executeProcessWait(samtoolsPath + " index " + bam.getAbsolutePath());
-			logger.info("Index built for " + samCT.toString().replaceAll(project.getOutputDirectory() + File
-					.separator, Project.OUTPUT_DIRECTORY));
+				final int strand = i;
+				markings.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws IOException {
+						logger.info("Marking clonal reads of " + bams[strand].getName());
+						new ClonalReadMarker(strands[strand], filter).mark(bams[strand], marked[strand]);
+						return null;
+					}
+				}));
+			}
+			for (Future<?> marking : markings) {
+				marking.get();
+			}
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		} finally {
+			executor.shutdownNow();
 		}
-
-
-		return bam;
-
-
+		return marked;
 	}
 
+	/**
+	 * Returns the sorted BAM files of the WATSON and CRICK alignments, in this order. Unsorted SAM files left by
+	 * previous versions of the alignment are converted, both strands at the same time.
+	 */
+	private File[] getSortedBAMs(BowtieAlignment ba, Sample sample, Reference reference) throws IOException {
+		Strand[] strands = {Strand.WATSON, Strand.CRICK};
+		File[] bams = new File[strands.length];
+		SortedBAMWriter[] writers = new SortedBAMWriter[strands.length];
+		InputStream[] samTexts = new InputStream[strands.length];
+		try {
+			for (int i = 0; i < strands.length; i++) {
+				bams[i] = ba.getAlignmentOutputFile(strands[i], sample, reference);
+				File sam = ba.getLegacyAlignmentOutputFile(strands[i], sample, reference);
+
+				if (sam.exists() && (!bams[i].exists() || bams[i].lastModified() < sam.lastModified())) {
+					logger.info("Building sorted BAM for " + sam.getAbsolutePath().replaceAll(project
+							.getOutputDirectory() + File.separator, Project.OUTPUT_DIRECTORY));
+					samTexts[i] = new FileInputStream(sam);
+					writers[i] = new SortedBAMWriter(bams[i], project.getWorkingDirectory());
+					writers[i].start(samTexts[i]);
+				} else if (!bams[i].exists()) {
+					throw new IllegalArgumentException("Cannot find alignment file " + bams[i] + ". Perform the " +
+							"alignment first.");
+				}
+			}
+			for (SortedBAMWriter writer : writers) {
+				if (writer != null) {
+					writer.waitFor();
+				}
+			}
+		} finally {
+			for (InputStream samText : samTexts) {
+				if (samText != null) {
+					samText.close();
+				}
+			}
+		}
+		return bams;
+	}
 
 }
 
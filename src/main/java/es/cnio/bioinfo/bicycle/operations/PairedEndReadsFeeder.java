@@ -0,0 +1,84 @@
+package es.cnio.bioinfo.bicycle.operations;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import es.cnio.bioinfo.bicycle.Sample;
+
+
+/**
+ * Takes two streams from two fastq files (mate1 mate2) and feeds a bowtie process in paired-end mode with the
+ * --12 - input.
+ * <p>
+ * This input must be one line per mate following the format:
+ * read name |tab| sequence mate 1 |tab| quality mate 1 |tab| sequence mate 2 |tab| quality mate 2
+ * <p>
+ * In non-directional samples, a second line is written for each pair, with the G to A conversion of mate 1 and
+ * the C to T conversion of mate 2.
+ *
+ * @author lipido
+ */
+class PairedEndReadsFeeder extends FastqReadsFeeder {
+
+	private FastqRecordReader mate1;
+	private FastqRecordReader mate2;
+	private boolean isDirectional;
+
+	public PairedEndReadsFeeder(Sample sample, InputStream mate1fastq, InputStream mate2fastq, boolean
+			isDirectional, boolean skipUnconverted) {
+		super(sample, skipUnconverted);
+		this.mate1 = new FastqRecordReader(mate1fastq);
+		this.mate2 = new FastqRecordReader(mate2fastq);
+		this.isDirectional = isDirectional;
+	}
+
+	@Override
+	public boolean writeNext(OutputStream out) throws IOException {
+		do {
+			//try to read a record from each stream
+			if (!mate1.next() || !mate2.next()) {
+				return false;
+			}
+		} while (shouldSkip(mate1.getLine(FastqRecordReader.HEADER), mate1.getLength(FastqRecordReader.HEADER))
+				|| shouldSkip(mate2.getLine(FastqRecordReader.HEADER), mate2.getLength(FastqRecordReader.HEADER)));
+
+		writeLine(out, C_TO_T, G_TO_A);
+		if (!this.isDirectional) {
+			writeLine(out, G_TO_A, C_TO_T);
+		}
+		return true;
+	}
+
+	private void writeLine(OutputStream out, byte[] mate1Conversion, byte[] mate2Conversion) throws IOException {
+		byte[] m1Sequence = mate1.getLine(FastqRecordReader.SEQUENCE);
+		int m1SequenceLength = mate1.getLength(FastqRecordReader.SEQUENCE);
+		byte[] m2Sequence = mate2.getLine(FastqRecordReader.SEQUENCE);
+		int m2SequenceLength = mate2.getLength(FastqRecordReader.SEQUENCE);
+
+		// read name without '@'
+		writeConverted(out, mate1.getLine(FastqRecordReader.HEADER), 1, mate1.getLength(FastqRecordReader.HEADER) -
+				1, SPACE_TO_UNDERSCORE);
+		out.write(ORIGINAL_SEPARATOR);
+		out.write(m1Sequence, 0, m1SequenceLength);
+		out.write(ORIGINAL_SEPARATOR);
+		out.write(m2Sequence, 0, m2SequenceLength);
+		out.write('\t');
+
+		writeConverted(out, m1Sequence, 0, m1SequenceLength, mate1Conversion);
+		out.write('\t');
+		out.write(mate1.getLine(FastqRecordReader.QUALITY), 0, mate1.getLength(FastqRecordReader.QUALITY));
+		out.write('\t');
+
+		writeConverted(out, m2Sequence, 0, m2SequenceLength, mate2Conversion);
+		out.write('\t');
+		out.write(mate2.getLine(FastqRecordReader.QUALITY), 0, mate2.getLength(FastqRecordReader.QUALITY));
+		out.write('\n');
+	}
+
+	@Override
+	public void close() throws IOException {
+		mate1.close();
+		mate2.close();
+	}
+}
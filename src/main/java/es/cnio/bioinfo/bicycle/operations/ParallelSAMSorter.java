@@ -0,0 +1,384 @@
+package es.cnio.bioinfo.bicycle.operations;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import net.sf.samtools.BAMRecordCodec;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMRecordCoordinateComparator;
+import net.sf.samtools.util.CloseableIterator;
+
+/**
+ * External merge sort of SAM records by coordinate.
+ * <p>
+ * Records are collected in runs that are sorted in parallel by a pool of threads and spilled to deflate-compressed
+ * temporary files. Once all the records have been added, the runs are merged with a k-way merge. If there are too
+ * many runs to be opened at the same time, groups of them are first merged in parallel into bigger runs.
+ * <p>
+ * The memory used is bounded by maxRecordsInRam records, plus one run being filled.
+ *
+ * @author lipido
+ */
+class ParallelSAMSorter {
+	private static final Logger logger = Logger.getLogger(ParallelSAMSorter.class.getSimpleName());
+
+	static final int MAX_OPEN_RUNS = 128;
+
+	static final int MIN_RUN_SIZE = 10000;
+	private static final int IO_BUFFER_SIZE = 65536;
+
+	private final SAMFileHeader header;
+	private final File tmpDir;
+	private final int runSize;
+
+	private final ExecutorService executor;
+	private final Semaphore runsInMemory;
+	private final List<Future<File>> spilledRuns = new ArrayList<Future<File>>();
+	private final List<File> runFiles = new LinkedList<File>();
+
+	private SAMRecord[] currentRun;
+	private int currentRunSize = 0;
+	private boolean doneAdding = false;
+
+	/**
+	 * Creates a new sorter
+	 *
+	 * @param header          the header of the records to sort
+	 * @param maxRecordsInRam the maximum number of records waiting to be sorted and spilled
+	 * @param tmpDir          the directory where the runs are spilled
+	 * @param threads         the number of threads used to sort and spill runs
+	 */
+	public ParallelSAMSorter(SAMFileHeader header, int maxRecordsInRam, File tmpDir, int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("at least one thread is needed");
+		}
+		this.header = header;
+		this.tmpDir = tmpDir;
+		this.runSize = Math.max(MIN_RUN_SIZE, maxRecordsInRam / threads);
+		this.runsInMemory = new Semaphore(threads);
+		this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private int count = 0;
+
+			@Override
+			public synchronized Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "sam-sorter-" + (count++));
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.currentRun = new SAMRecord[runSize];
+	}
+
+	public void add(SAMRecord record) throws IOException {
+		if (doneAdding) {
+			throw new IllegalStateException("cannot add records after doneAdding()");
+		}
+		currentRun[currentRunSize++] = record;
+		if (currentRunSize == runSize) {
+			spill(currentRun, currentRunSize);
+			currentRun = new SAMRecord[runSize];
+			currentRunSize = 0;
+		}
+	}
+
+	/**
+	 * Waits for all the runs to be spilled. The last run is sorted and kept in memory.
+	 */
+	public void doneAdding() throws IOException {
+		doneAdding = true;
+		Arrays.sort(currentRun, 0, currentRunSize, new SAMRecordCoordinateComparator());
+		for (Future<File> run : spilledRuns) {
+			runFiles.add(getResult(run));
+		}
+		spilledRuns.clear();
+
+		// reduce the number of runs so all of them can be opened at once
+		while (runFiles.size() > MAX_OPEN_RUNS) {
+			List<Future<File>> merged = new ArrayList<Future<File>>();
+			while (!runFiles.isEmpty()) {
+				final List<File> group = new ArrayList<File>();
+				while (!runFiles.isEmpty() && group.size() < MAX_OPEN_RUNS) {
+					group.add(runFiles.remove(0));
+				}
+				merged.add(executor.submit(new Callable<File>() {
+					@Override
+					public File call() throws IOException {
+						return mergeRuns(group);
+					}
+				}));
+			}
+			for (Future<File> run : merged) {
+				runFiles.add(getResult(run));
+			}
+		}
+		logger.fine("Merging " + runFiles.size() + " spilled runs and " + currentRunSize + " records in memory");
+	}
+
+	/**
+	 * Returns the records in coordinate order. Can only be called after {@link #doneAdding()}.
+	 */
+	public CloseableIterator<SAMRecord> iterator() throws IOException {
+		if (!doneAdding) {
+			throw new IllegalStateException("doneAdding() must be called before iterating");
+		}
+		List<RunIterator> runs = new ArrayList<RunIterator>();
+		for (File runFile : runFiles) {
+			runs.add(new FileRunIterator(runFile));
+		}
+		runs.add(new MemoryRunIterator(currentRun, currentRunSize));
+		return new MergingIterator(runs);
+	}
+
+	/**
+	 * Stops the sorting threads and deletes the temporary files
+	 */
+	public void cleanup() {
+		executor.shutdownNow();
+		for (Future<File> run : spilledRuns) {
+			try {
+				run.get().delete();
+			} catch (Exception e) {
+				// the run was not written
+			}
+		}
+		for (File runFile : runFiles) {
+			runFile.delete();
+		}
+		currentRun = null;
+	}
+
+	private void spill(final SAMRecord[] run, final int size) throws IOException {
+		try {
+			runsInMemory.acquire();
+		} catch (InterruptedException e) {
+			throw new IOException("interrupted while waiting for a sorting thread", e);
+		}
+		spilledRuns.add(executor.submit(new Callable<File>() {
+			@Override
+			public File call() throws IOException {
+				try {
+					Arrays.sort(run, 0, size, new SAMRecordCoordinateComparator());
+					File runFile = createRunFile();
+					RunWriter writer = new RunWriter(runFile);
+					try {
+						for (int i = 0; i < size; i++) {
+							writer.write(run[i]);
+						}
+					} finally {
+						writer.close();
+					}
+					return runFile;
+				} finally {
+					runsInMemory.release();
+				}
+			}
+		}));
+	}
+
+	private File mergeRuns(List<File> runFiles) throws IOException {
+		List<RunIterator> runs = new ArrayList<RunIterator>();
+		for (File runFile : runFiles) {
+			runs.add(new FileRunIterator(runFile));
+		}
+		MergingIterator merged = new MergingIterator(runs);
+		File mergedFile = createRunFile();
+		RunWriter writer = new RunWriter(mergedFile);
+		try {
+			while (merged.hasNext()) {
+				writer.write(merged.next());
+			}
+		} finally {
+			writer.close();
+			merged.close();
+		}
+		for (File runFile : runFiles) {
+			runFile.delete();
+		}
+		return mergedFile;
+	}
+
+	private File createRunFile() throws IOException {
+		File runFile = File.createTempFile("sortrun", ".tmp", tmpDir);
+		runFile.deleteOnExit();
+		return runFile;
+	}
+
+	private static File getResult(Future<File> run) throws IOException {
+		try {
+			return run.get();
+		} catch (InterruptedException e) {
+			throw new IOException("interrupted while sorting", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("error while sorting", e.getCause());
+		}
+	}
+
+	private class RunWriter {
+		private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		private final DeflaterOutputStream out;
+		private final BAMRecordCodec codec = new BAMRecordCodec(header);
+
+		RunWriter(File runFile) throws IOException {
+			this.out = new DeflaterOutputStream(new BufferedOutputStream(new FileOutputStream(runFile),
+					IO_BUFFER_SIZE), deflater, IO_BUFFER_SIZE);
+			this.codec.setOutputStream(out);
+		}
+
+		void write(SAMRecord record) {
+			codec.encode(record);
+		}
+
+		void close() throws IOException {
+			try {
+				out.close();
+			} finally {
+				deflater.end();
+			}
+		}
+	}
+
+	private static abstract class RunIterator {
+		// the order of the run, used to break ties so equal records keep their input order
+		int order;
+		SAMRecord current;
+
+		// moves to the next record, leaving null in current at the end of the run
+		abstract void advance() throws IOException;
+
+		void close() throws IOException {
+		}
+	}
+
+	private class FileRunIterator extends RunIterator {
+		private final Inflater inflater = new Inflater();
+		private final InflaterInputStream in;
+		private final BAMRecordCodec codec = new BAMRecordCodec(header);
+
+		FileRunIterator(File runFile) throws IOException {
+			this.in = new InflaterInputStream(new BufferedInputStream(new FileInputStream(runFile), IO_BUFFER_SIZE),
+					inflater, IO_BUFFER_SIZE);
+			this.codec.setInputStream(in);
+		}
+
+		@Override
+		void advance() {
+			current = codec.decode();
+		}
+
+		@Override
+		void close() throws IOException {
+			try {
+				in.close();
+			} finally {
+				inflater.end();
+			}
+		}
+	}
+
+	private static class MemoryRunIterator extends RunIterator {
+		private final SAMRecord[] records;
+		private final int size;
+		private int position = 0;
+
+		MemoryRunIterator(SAMRecord[] records, int size) {
+			this.records = records;
+			this.size = size;
+		}
+
+		@Override
+		void advance() {
+			current = position < size ? records[position++] : null;
+		}
+	}
+
+	private static class MergingIterator implements CloseableIterator<SAMRecord> {
+		private final List<RunIterator> runs;
+		private final PriorityQueue<RunIterator> queue;
+
+		MergingIterator(List<RunIterator> runs) throws IOException {
+			this.runs = runs;
+			final SAMRecordCoordinateComparator comparator = new SAMRecordCoordinateComparator();
+			this.queue = new PriorityQueue<RunIterator>(Math.max(1, runs.size()), new Comparator<RunIterator>() {
+				@Override
+				public int compare(RunIterator o1, RunIterator o2) {
+					int result = comparator.compare(o1.current, o2.current);
+					return result != 0 ? result : o1.order - o2.order;
+				}
+			});
+			for (int i = 0; i < runs.size(); i++) {
+				RunIterator run = runs.get(i);
+				run.order = i;
+				run.advance();
+				if (run.current != null) {
+					queue.add(run);
+				}
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return !queue.isEmpty();
+		}
+
+		@Override
+		public SAMRecord next() {
+			RunIterator run = queue.poll();
+			if (run == null) {
+				throw new NoSuchElementException();
+			}
+			SAMRecord record = run.current;
+			try {
+				run.advance();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			if (run.current != null) {
+				queue.add(run);
+			}
+			return record;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void close() {
+			for (RunIterator run : runs) {
+				try {
+					run.close();
+				} catch (IOException e) {
+					logger.warning("Could not close sorting run: " + e);
+				}
+			}
+		}
+	}
+}
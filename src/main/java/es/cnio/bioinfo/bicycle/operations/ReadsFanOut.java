@@ -0,0 +1,123 @@
+package es.cnio.bioinfo.bicycle.operations;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads a {@link ReadsFeeder} once and sends its output to several aligners. The source is consumed in a
+ * background thread that writes batches of converted reads to a bounded queue per aligner, so the reads are
+ * parsed and converted only once, and a slow aligner only delays the others when its queue is full.
+ *
+ * @author lipido
+ */
+class ReadsFanOut {
+
+	private static final int BATCH_SIZE = 65536;
+	private static final int QUEUE_CAPACITY = 16;
+
+	private static final byte[] END = new byte[0];
+
+	private final ReadsFeeder source;
+	private final List<QueueFeeder> outputs = new ArrayList<QueueFeeder>();
+	private volatile IOException error;
+
+	public ReadsFanOut(ReadsFeeder source, int outputs) {
+		this.source = source;
+		for (int i = 0; i < outputs; i++) {
+			this.outputs.add(new QueueFeeder());
+		}
+
+		Thread producer = new Thread("reads-fan-out") {
+			@Override
+			public void run() {
+				produce();
+			}
+		};
+		producer.setDaemon(true);
+		producer.start();
+	}
+
+	/**
+	 * Returns one feeder per aligner. Each one gives the whole output of the source.
+	 */
+	public List<? extends ReadsFeeder> getFeeders() {
+		return outputs;
+	}
+
+	private void produce() {
+		try {
+			ByteArrayOutputStream batch = new ByteArrayOutputStream(BATCH_SIZE + 1024);
+			while (source.writeNext(batch)) {
+				if (batch.size() >= BATCH_SIZE) {
+					put(batch.toByteArray());
+					batch.reset();
+				}
+			}
+			if (batch.size() > 0) {
+				put(batch.toByteArray());
+			}
+			put(END);
+		} catch (IOException e) {
+			error = e;
+		} catch (InterruptedException e) {
+			error = new IOException("reads fan-out interrupted", e);
+		} finally {
+			try {
+				source.close();
+			} catch (IOException e) {
+				if (error == null) {
+					error = e;
+				}
+			}
+		}
+	}
+
+	private void put(byte[] batch) throws InterruptedException {
+		for (QueueFeeder output : outputs) {
+			// closed outputs do not consume any more, do not wait for them
+			while (!output.closed && !output.queue.offer(batch, 1, TimeUnit.SECONDS)) {
+			}
+		}
+	}
+
+	private class QueueFeeder implements ReadsFeeder {
+		private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<byte[]>(QUEUE_CAPACITY);
+		private volatile boolean closed = false;
+		private boolean finished = false;
+
+		@Override
+		public boolean writeNext(OutputStream out) throws IOException {
+			byte[] batch = null;
+			while (!finished && batch == null) {
+				try {
+					batch = queue.poll(1, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					throw new IOException("interrupted while waiting for reads", e);
+				}
+				if (batch == null && error != null) {
+					throw new IOException("error while reading reads", error);
+				}
+				if (batch == END) {
+					finished = true;
+				}
+			}
+			if (finished) {
+				return false;
+			}
+			out.write(batch);
+			return true;
+		}
+
+		@Override
+		public void close() {
+			closed = true;
+			queue.clear();
+		}
+	}
+}
@@ -0,0 +1,23 @@
+package es.cnio.bioinfo.bicycle.operations;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes reads in the input format of bowtie, directly into the stdin of the aligner.
+ *
+ * @author lipido
+ */
+public interface ReadsFeeder {
+
+	/**
+	 * Writes the next read (or pair of reads) to the given stream.
+	 *
+	 * @param out the stream to write to, usually the stdin of a bowtie process
+	 * @return false if there are no more reads
+	 * @throws IOException
+	 */
+	boolean writeNext(OutputStream out) throws IOException;
+
+	void close() throws IOException;
+}
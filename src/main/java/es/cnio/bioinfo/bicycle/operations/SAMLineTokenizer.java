@@ -0,0 +1,277 @@
+package es.cnio.bioinfo.bicycle.operations;
+
+import java.util.Arrays;
+
+/**
+ * Splits SAM lines coming from the bisulfite alignments into fields over a reusable char buffer, and restores the
+ * original read that was stored in the read name (name||read or name||mate1read||mate2read) before the alignment.
+ * <p>
+ * Field offsets are computed once per line, so the merge decisions (read name, CIGAR, scores) do not need to split
+ * the line again.
+ *
+ * @author lipido
+ */
+class SAMLineTokenizer {
+
+	private static final int QNAME = 0;
+	private static final int FLAG = 1;
+	private static final int CIGAR = 5;
+	private static final int SEQ = 9;
+
+	private static final char[] COMPLEMENT = new char[128];
+
+	static {
+		for (char c = 0; c < COMPLEMENT.length; c++) {
+			COMPLEMENT[c] = c;
+		}
+		COMPLEMENT['A'] = 'T';
+		COMPLEMENT['T'] = 'A';
+		COMPLEMENT['C'] = 'G';
+		COMPLEMENT['G'] = 'C';
+	}
+
+	private char[] chars = new char[512];
+	private int length = 0;
+
+	// start of each field, the field ends one char before the start of the next one
+	private int[] fieldStarts = new int[32];
+	private int fieldCount = 0;
+
+	// buffer where restored lines are built, swapped with chars
+	private char[] scratch = new char[512];
+
+	private String string;
+
+	/**
+	 * Sets the current line, removing leading and trailing whitespace
+	 */
+	public void parse(String line) {
+		int start = 0;
+		int end = line.length();
+		while (start < end && line.charAt(start) <= ' ') {
+			start++;
+		}
+		while (end > start && line.charAt(end - 1) <= ' ') {
+			end--;
+		}
+		length = end - start;
+		if (chars.length < length) {
+			chars = new char[Math.max(length, chars.length * 2)];
+		}
+		line.getChars(start, end, chars, 0);
+		tokenize();
+		string = start == 0 && end == line.length() ? line : null;
+	}
+
+	public boolean isHeader() {
+		return length > 0 && chars[0] == '@';
+	}
+
+	/**
+	 * Replaces the sequence of the line with the original read stored in the read name, reverse-complemented if the
+	 * read is aligned to the reverse strand, and leaves only the original read name, followed by /1 or /2 in paired
+	 * reads. Header lines are not modified.
+	 */
+	public void restoreOriginalRead() {
+		if (isHeader()) {
+			return;
+		}
+		// recupero la secuencia inicial
+		int nameEnd = fieldEnd(QNAME);
+		int separator1 = indexOfSeparator(0, nameEnd);
+		if (separator1 == -1) {
+			throw new IllegalArgumentException("Cannot find the original read in the read name: " + this);
+		}
+		int separator2 = indexOfSeparator(separator1 + 2, nameEnd);
+
+		int flag = getFlag();
+		int readStart = separator1 + 2;
+		int readEnd = separator2 == -1 ? nameEnd : separator2;
+		char mateSuffix = 0;
+		if ((flag & 0x0001) == 0x0001) {
+			//paired!
+			if ((flag & 0x0040) == 0x0040) {
+				//mate1
+				mateSuffix = '1';
+			} else if ((flag & 0x0080) == 0x0080) {
+				//mate2
+				mateSuffix = '2';
+				if (separator2 == -1) {
+					throw new IllegalArgumentException("Cannot find the original mate 2 read in the read name: " +
+							this);
+				}
+				readStart = separator2 + 2;
+				int separator3 = indexOfSeparator(readStart, nameEnd);
+				readEnd = separator3 == -1 ? nameEnd : separator3;
+			} else {
+				throw new RuntimeException("Malformed FLAG in SAM. It says that is a paired read, but it is not " +
+						"the first nor the second pair");
+			}
+		}
+		boolean reverse = (flag & 0x0010) == 0x0010;
+
+		int readLength = readEnd - readStart;
+		int maxLength = length + readLength + 2;
+		if (scratch.length < maxLength) {
+			scratch = new char[Math.max(maxLength, scratch.length * 2)];
+		}
+
+		// le adjunto la cabecera original de la read
+		int position = 0;
+		System.arraycopy(chars, 0, scratch, 0, separator1);
+		position += separator1;
+		if (mateSuffix != 0) {
+			scratch[position++] = '/';
+			scratch[position++] = mateSuffix;
+		}
+
+		for (int field = 1; field < fieldCount; field++) {
+			scratch[position++] = '\t';
+			if (field == SEQ) {
+				// le adjunto la read original en lugar de la que tenia
+				if (reverse) {
+					for (int i = readEnd - 1; i >= readStart; i--) {
+						char c = chars[i];
+						scratch[position++] = c < COMPLEMENT.length ? COMPLEMENT[c] : c;
+					}
+				} else {
+					System.arraycopy(chars, readStart, scratch, position, readLength);
+					position += readLength;
+				}
+			} else {
+				int fieldLength = fieldEnd(field) - fieldStarts[field];
+				System.arraycopy(chars, fieldStarts[field], scratch, position, fieldLength);
+				position += fieldLength;
+			}
+		}
+
+		char[] swap = chars;
+		chars = scratch;
+		scratch = swap;
+		length = position;
+		tokenize();
+		string = null;
+	}
+
+	public int getFieldCount() {
+		return fieldCount;
+	}
+
+	public int getFlag() {
+		return parseInt(fieldStarts[FLAG], fieldEnd(FLAG));
+	}
+
+	/**
+	 * Returns true if the CIGAR of the line is not '*'
+	 */
+	public boolean isAligned() {
+		int start = fieldStarts[CIGAR];
+		return !(fieldEnd(CIGAR) - start == 1 && chars[start] == '*');
+	}
+
+	/**
+	 * Compares the read name of this line with another one.
+	 *
+	 * @param ignoreLastChar if true, the last char of both names is ignored (the mate number in paired reads)
+	 */
+	public boolean hasSameReadName(SAMLineTokenizer other, boolean ignoreLastChar) {
+		int thisLength = this.fieldEnd(QNAME);
+		int otherLength = other.fieldEnd(QNAME);
+		if (ignoreLastChar) {
+			thisLength--;
+			otherLength--;
+		}
+		if (thisLength != otherLength) {
+			return false;
+		}
+		for (int i = 0; i < thisLength; i++) {
+			if (this.chars[i] != other.chars[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the value of an integer tag (for example AS:i:-12) of this line
+	 *
+	 * @throws IllegalArgumentException if the line does not contain the tag
+	 */
+	public int getIntTag(String tag) {
+		for (int field = 1; field < fieldCount; field++) {
+			int start = fieldStarts[field];
+			int end = fieldEnd(field);
+			if (end - start > 5 && chars[start] == tag.charAt(0) && chars[start + 1] == tag.charAt(1)
+					&& chars[start + 2] == ':' && chars[start + 3] == 'i' && chars[start + 4] == ':') {
+				return parseInt(start + 5, end);
+			}
+		}
+		throw new IllegalArgumentException("Cannot find tag " + tag + " in SAM line: " + this);
+	}
+
+	/**
+	 * Appends the current line to the given builder, without creating a String
+	 */
+	public StringBuilder appendTo(StringBuilder builder) {
+		return builder.append(chars, 0, length);
+	}
+
+	@Override
+	public String toString() {
+		if (string == null) {
+			string = new String(chars, 0, length);
+		}
+		return string;
+	}
+
+	private void tokenize() {
+		fieldCount = 0;
+		addField(0);
+		for (int i = 0; i < length; i++) {
+			if (chars[i] == '\t') {
+				addField(i + 1);
+			}
+		}
+	}
+
+	private void addField(int start) {
+		if (fieldCount == fieldStarts.length) {
+			fieldStarts = Arrays.copyOf(fieldStarts, fieldCount * 2);
+		}
+		fieldStarts[fieldCount++] = start;
+	}
+
+	private int fieldEnd(int field) {
+		if (field >= fieldCount) {
+			throw new IllegalArgumentException("SAM line has only " + fieldCount + " fields: " + this);
+		}
+		return field + 1 < fieldCount ? fieldStarts[field + 1] - 1 : length;
+	}
+
+	private int indexOfSeparator(int from, int to) {
+		for (int i = from; i < to - 1; i++) {
+			if (chars[i] == '|' && chars[i + 1] == '|') {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private int parseInt(int start, int end) {
+		if (start == end) {
+			throw new NumberFormatException("Empty integer in SAM line: " + this);
+		}
+		boolean negative = chars[start] == '-';
+		int i = negative || chars[start] == '+' ? start + 1 : start;
+		int value = 0;
+		for (; i < end; i++) {
+			char c = chars[i];
+			if (c < '0' || c > '9') {
+				throw new NumberFormatException("Invalid integer '" + new String(chars, start, end - start) + "' in " +
+						"SAM line: " + this);
+			}
+			value = value * 10 + (c - '0');
+		}
+		return negative ? -value : value;
+	}
+}
@@ -27,9 +27,12 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.List;
 import java.util.logging.Logger;
 
 import es.cnio.bioinfo.bicycle.Sample;
+import es.cnio.bioinfo.bicycle.gatk.BadBisulfiteFilter;
+import es.cnio.bioinfo.bicycle.gatk.Strand;
 
 public class SampleBisulfitation {
 	private static final Logger logger = Logger.getLogger(SampleBisulfitation.class.getSimpleName());
@@ -40,106 +43,186 @@ public class SampleBisulfitation {
 	}
 
 	public void computeSampleBisulfitation(boolean removeReadsWithUnconvertedBarCodes) throws IOException {
-		for (File f : this.sample.getReadsFiles()) {
-			logger.info("Performing CtoT in-silico bisulfitation for " + f + "...... ");
+		computeSampleBisulfitation(removeReadsWithUnconvertedBarCodes, null);
+	}
+
+	/**
+	 * Performs the in-silico bisulfitation of the reads of the sample
+	 *
+	 * @param removeReadsWithUnconvertedBarCodes if the reads with unconverted barcodes must be removed
+	 * @param badBisulfiteFilter                 the filter of the bad bisulfited reads, which are written to the
+	 *                                           unconverted reads file instead, or null to keep them. The reads of
+	 *                                           the mate 2 files are checked as reads of the Crick strand, and the
+	 *                                           mates of a pair are kept or removed together.
+	 */
+	public void computeSampleBisulfitation(boolean removeReadsWithUnconvertedBarCodes, BadBisulfiteFilter
+			badBisulfiteFilter) throws IOException {
+		if (this.sample.isPaired()) {
+			List<File> mate1Files = this.sample.getReadsMate1Files();
+			List<File> mate2Files = this.sample.getReadsMate2Files();
+			for (int i = 0; i < mate1Files.size(); i++) {
+				logger.info("Performing CtoT in-silico bisulfitation for " + mate1Files.get(i) + " and " +
+						mate2Files.get(i) + "...... ");
+				computeFilesBisulfitation(new File[]{mate1Files.get(i), mate2Files.get(i)}, new Strand[]{Strand
+						.WATSON, Strand.CRICK}, removeReadsWithUnconvertedBarCodes, badBisulfiteFilter);
+			}
+		} else {
+			for (File f : this.sample.getReadsFiles()) {
+				logger.info("Performing CtoT in-silico bisulfitation for " + f + "...... ");
+				computeFilesBisulfitation(new File[]{f}, new Strand[]{Strand.WATSON},
+						removeReadsWithUnconvertedBarCodes, badBisulfiteFilter);
+			}
+		}
+		logger.info("[OK]");
 
-			File outputFile = getBisulfitedFile(f);
-			File unconvertedReadsFile = getUnconvertedReads(f);
+	}
 
-			if (outputFile.exists()) {
-				logger.info("Removing existent file: " + outputFile);
-				outputFile.delete();
+	/**
+	 * Bisulfites files whose records go together, that is, the mate files of a paired sample or a single reads file.
+	 * The records at the same position in the files are kept or removed together.
+	 */
+	private void computeFilesBisulfitation(File[] files, Strand[] readsStrands, boolean
+			removeReadsWithUnconvertedBarCodes, BadBisulfiteFilter badBisulfiteFilter) throws IOException {
+		BufferedReader[] readers = new BufferedReader[files.length];
+		BufferedWriter[] writers = new BufferedWriter[files.length];
+		BufferedWriter[] unconvertedWriters = new BufferedWriter[files.length];
+		try {
+			for (int i = 0; i < files.length; i++) {
+				File outputFile = getBisulfitedFile(files[i]);
+				if (outputFile.exists()) {
+					logger.info("Removing existent file: " + outputFile);
+					outputFile.delete();
+				}
+				readers[i] = new BufferedReader(new FileReader(files[i]));
+				writers[i] = new BufferedWriter(new FileWriter(outputFile));
+				unconvertedWriters[i] = new BufferedWriter(new FileWriter(getUnconvertedReads(files[i])));
 			}
 
-			BufferedWriter wr = new BufferedWriter(new FileWriter(outputFile));
-			BufferedWriter unConvertedReads = new BufferedWriter(new FileWriter(unconvertedReadsFile));
-			BufferedReader br = new BufferedReader(new FileReader(f));
-			String lineModified;
-			String thisLine = null;
-			while ((thisLine = br.readLine()) != null) {
-				if (thisLine.startsWith("@")) {
-					// primero adjunto en la cabecera fasta la read original
-
-					// leo la secuencia de la read
-					String originalSequence = br.readLine();
-					boolean useRead = true;
-
-					if (removeReadsWithUnconvertedBarCodes) {
-						// obtengo el barcode del nombre del archivo, ejemplo: ES_LIF_s_8_TGtATT-sequence.txt
-						String barcode = new String((f.getName().split("-"))[0]);
-						String aux[] = barcode.split("_");
-						barcode = aux[aux.length - 1];
-						// localizo la posicion de la 't' en el barcode, posicion que vendria de una c no metilada
-						int barcodePosition = -1; //inicializo
-						barcodePosition = barcode.indexOf("t");
-						String[] tokens = thisLine.split("[#]");
-						if (tokens.length == 2) {
-							String thisReadBarcode = (thisLine.split("[#]"))[1];
-
-							if (thisReadBarcode.charAt(barcodePosition) != 't' && thisReadBarcode.charAt
-									(barcodePosition) != 'T')
-								useRead = false;
-
-
-							if (barcodePosition == -1) {
-								String error = "[ERROR]: no barcodes defined with --barcodes";
-								logger.severe(error);
-								throw new RuntimeException(error);
+			String[][] records = new String[files.length][];
+			while (true) {
+				for (int i = 0; i < files.length; i++) {
+					records[i] = readRecord(readers[i]);
+				}
+				if (records[0] == null) {
+					for (int i = 1; i < files.length; i++) {
+						if (records[i] != null) {
+							throw new IOException("mate file " + files[i] + " has more reads than " + files[0]);
+						}
+					}
+					break;
+				}
+				for (int i = 1; i < files.length; i++) {
+					if (records[i] == null) {
+						throw new IOException("mate file " + files[0] + " has more reads than " + files[i]);
+					}
+				}
+
+				boolean useRead = true;
+				if (removeReadsWithUnconvertedBarCodes) {
+					for (int i = 0; i < files.length; i++) {
+						if (hasUnconvertedBarcode(files[i], records[i][0])) {
+							useRead = false;
+						}
+					}
+				}
+
+				// en caso de que quiera comprobar si la read está mal bisulfitada y eliminarla, entonces voy por
+				// aquí
+				if (useRead && badBisulfiteFilter != null) {
+					boolean bad = false;
+					for (int i = 0; i < files.length; i++) {
+						if (badBisulfiteFilter.isBad(readsStrands[i], records[i][1].getBytes())) {
+							bad = true;
+						}
+					}
+					if (bad) {
+						// apunto la read (y su pareja) en el fichero de las que estan mal convertidas por el
+						// bisulfito
+						for (int i = 0; i < files.length; i++) {
+							for (String line : records[i]) {
+								unconvertedWriters[i].write(line);
+								unconvertedWriters[i].newLine();
 							}
 						}
-					}//if(removeReadsWithUnconvertedBarCodes)
-
-					// en caso de que quiera comprobar si la read está mal bisulfitada y eliminarla, entonces voy por
-					// aquí
-					 /*	if(removeUnconvertedReads){
-		        	 		if(originalSequence.matches(".*[Cc][^Gg].*[Cc][^Gg].*[Cc][^Gg].*[Cc][^Gg].*")){// apunto
-		        	 		esta read en el fichero de las que estan mal convertidas por el bisulfito
-		        	 			unConvertedReads.write(thisLine);
-		        	 			unConvertedReads.newLine();
-		        	 			unConvertedReads.write(originalSequence);
-		        	 			unConvertedReads.newLine();
-		        	 			// por ultimo copio las dos ultimas lineas del fastQ
-		        	 			unConvertedReads.write(br.readLine());
-		        	 			unConvertedReads.newLine();
-		        	 			unConvertedReads.write(br.readLine());
-		        	 			unConvertedReads.newLine();
-		        	 			
-		        	 			useRead=false;
-		        	 		}
-		        	 		
-		        	 	}*/
-
-					if (useRead) {//que no quiere comprobar si la read está mal bisulfitada y pasa de eliminarla,
-						// vamos por aquí
-						//genero la nueva cabecera fasta
-						lineModified = (new StringBuilder(thisLine.replace(' ', '_'))).append("||").append
-								(originalSequence).toString();
-						// la escribo
-						wr.write(lineModified);
-						wr.newLine();
-
-
-						// ahora bisulfito la secuencia
-						lineModified = originalSequence.replace('C', 'T');
-						lineModified = lineModified.replace('c', 't');
-						// escribo la nueva secuencia
-						wr.write(lineModified);
-						wr.newLine();
-						// por ultimo copio las dos ultimas lineas del fastQ
-						wr.write(br.readLine());
-						wr.newLine();
-						wr.write(br.readLine());
-						wr.newLine();
+						useRead = false;
+					}
+				}
+
+				if (useRead) {
+					for (int i = 0; i < files.length; i++) {
+						writeBisulfitedRecord(writers[i], records[i]);
 					}
 				}
+			}
+		} finally {
+			for (int i = 0; i < files.length; i++) {
+				if (readers[i] != null) {
+					readers[i].close();
+				}
+				if (writers[i] != null) {
+					writers[i].close();
+				}
+				if (unconvertedWriters[i] != null) {
+					unconvertedWriters[i].close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads the four lines of the next fastq record, skipping the lines before its header
+	 *
+	 * @return the lines of the record or null if there are no more records
+	 */
+	private static String[] readRecord(BufferedReader br) throws IOException {
+		String thisLine;
+		while ((thisLine = br.readLine()) != null) {
+			if (thisLine.startsWith("@")) {
+				String[] record = {thisLine, br.readLine(), br.readLine(), br.readLine()};
+				if (record[3] == null) {
+					throw new IOException("truncated fastq record: " + thisLine);
+				}
+				return record;
+			}
+		}
+		return null;
+	}
 
-			} // end while
-			wr.close();
-			br.close();
+	private static boolean hasUnconvertedBarcode(File f, String header) {
+		// obtengo el barcode del nombre del archivo, ejemplo: ES_LIF_s_8_TGtATT-sequence.txt
+		String barcode = new String((f.getName().split("-"))[0]);
+		String aux[] = barcode.split("_");
+		barcode = aux[aux.length - 1];
+		// localizo la posicion de la 't' en el barcode, posicion que vendria de una c no metilada
+		int barcodePosition = -1; //inicializo
+		barcodePosition = barcode.indexOf("t");
+		String[] tokens = header.split("[#]");
+		if (tokens.length == 2) {
+			if (barcodePosition == -1) {
+				String error = "[ERROR]: no barcodes defined with --barcodes";
+				logger.severe(error);
+				throw new RuntimeException(error);
+			}
 
+			String thisReadBarcode = tokens[1];
+			return thisReadBarcode.charAt(barcodePosition) != 't' && thisReadBarcode.charAt(barcodePosition) != 'T';
 		}
-		logger.info("[OK]");
+		return false;
+	}
 
+	private static void writeBisulfitedRecord(BufferedWriter wr, String[] record) throws IOException {
+		// primero adjunto en la cabecera fasta la read original
+		wr.write((new StringBuilder(record[0].replace(' ', '_'))).append("||").append(record[1]).toString());
+		wr.newLine();
+
+		// ahora bisulfito la secuencia
+		wr.write(record[1].replace('C', 'T').replace('c', 't'));
+		wr.newLine();
+		// por ultimo copio las dos ultimas lineas del fastQ
+		wr.write(record[2]);
+		wr.newLine();
+		wr.write(record[3]);
+		wr.newLine();
 	}
 
 	public File getBisulfitedFile(File file) {
@@ -0,0 +1,67 @@
+package es.cnio.bioinfo.bicycle.operations;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import es.cnio.bioinfo.bicycle.Sample;
+
+/**
+ * Feeds a bowtie process with the C to T conversion of single-end reads in fastq format. The original sequence is
+ * appended to the read name (header||sequence), so it can be restored after the alignment.
+ * <p>
+ * In non-directional samples, each read is written twice: the C to T conversion and the G to A conversion.
+ *
+ * @author lipido
+ */
+public class SingleEndReadsFeeder extends FastqReadsFeeder {
+
+	private FastqRecordReader reader;
+	private boolean isDirectional;
+
+	public SingleEndReadsFeeder(Sample sample, InputStream fastq, boolean isDirectional, boolean skipUnconverted) {
+		super(sample, skipUnconverted);
+		this.reader = new FastqRecordReader(fastq);
+		this.isDirectional = isDirectional;
+	}
+
+	@Override
+	public boolean writeNext(OutputStream out) throws IOException {
+		do {
+			if (!reader.next()) {
+				return false;
+			}
+		} while (shouldSkip(reader.getLine(FastqRecordReader.HEADER), reader.getLength(FastqRecordReader.HEADER)));
+
+		writeRecord(out, C_TO_T);
+		if (!this.isDirectional) {
+			writeRecord(out, G_TO_A);
+		}
+		return true;
+	}
+
+	private void writeRecord(OutputStream out, byte[] conversion) throws IOException {
+		byte[] sequence = reader.getLine(FastqRecordReader.SEQUENCE);
+		int sequenceLength = reader.getLength(FastqRecordReader.SEQUENCE);
+
+		writeConverted(out, reader.getLine(FastqRecordReader.HEADER), 0, reader.getLength(FastqRecordReader.HEADER),
+				SPACE_TO_UNDERSCORE);
+		out.write(ORIGINAL_SEPARATOR);
+		out.write(sequence, 0, sequenceLength);
+		out.write('\n');
+
+		writeConverted(out, sequence, 0, sequenceLength, conversion);
+		out.write('\n');
+
+		out.write(reader.getLine(FastqRecordReader.HEADER2), 0, reader.getLength(FastqRecordReader.HEADER2));
+		out.write('\n');
+
+		out.write(reader.getLine(FastqRecordReader.QUALITY), 0, reader.getLength(FastqRecordReader.QUALITY));
+		out.write('\n');
+	}
+
+	@Override
+	public void close() throws IOException {
+		reader.close();
+	}
+}
@@ -0,0 +1,207 @@
+package es.cnio.bioinfo.bicycle.operations;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.logging.Logger;
+
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMFileWriter;
+import net.sf.samtools.SAMFileWriterFactory;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.util.CloseableIterator;
+
+/**
+ * Converts SAM text into a coordinate-sorted and indexed BAM file in one pass. Records are sorted with a
+ * {@link ParallelSAMSorter} that uses all the available processors and spills compressed runs to a temporary
+ * directory.
+ * <p>
+ * The SAM text can be given as an InputStream, or written to the OutputStream returned by {@link #start()}. The
+ * start methods run the conversion in a background thread, so several files can be converted at the same time.
+ *
+ * @author lipido
+ */
+class SortedBAMWriter {
+	private static final Logger logger = Logger.getLogger(SortedBAMWriter.class.getSimpleName());
+
+	static final int MAX_RECORDS_IN_RAM = 500000;
+
+	private static final int PIPE_CHUNKS = 64;
+	private static final int PIPE_CHUNK_SIZE = 1 << 20;
+	private static final byte[] END = new byte[0];
+
+	private final File bam;
+	private final File tmpDir;
+
+	private Thread converter;
+	private volatile Throwable error;
+
+	public SortedBAMWriter(File bam, File tmpDir) {
+		this.bam = bam;
+		this.tmpDir = tmpDir;
+	}
+
+	/**
+	 * Starts the conversion in a background thread.
+	 *
+	 * @return the stream where the SAM text should be written. The BAM is finished once this stream is closed and
+	 * {@link #waitFor()} returns.
+	 */
+	public OutputStream start() {
+		final BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<byte[]>(PIPE_CHUNKS);
+
+		final InputStream samText = new InputStream() {
+			private byte[] current = null;
+			private int position = 0;
+
+			@Override
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				int readed = this.read(b, 0, 1);
+				return readed == -1 ? -1 : (b[0] & 0xff);
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (len == 0) {
+					return 0;
+				}
+				while (current != END && (current == null || position == current.length)) {
+					try {
+						current = chunks.take();
+						position = 0;
+					} catch (InterruptedException e) {
+						throw new IOException(e);
+					}
+				}
+				if (current == END) {
+					return -1;
+				}
+				int readed = Math.min(len, current.length - position);
+				System.arraycopy(current, position, b, off, readed);
+				position += readed;
+				return readed;
+			}
+		};
+
+		start(samText);
+
+		return new BufferedOutputStream(new OutputStream() {
+			private boolean closed = false;
+
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[]{(byte) b}, 0, 1);
+			}
+
+			@Override
+			public synchronized void write(byte[] b, int off, int len) throws IOException {
+				if (len > 0) {
+					put(Arrays.copyOfRange(b, off, off + len));
+				}
+			}
+
+			@Override
+			public synchronized void close() throws IOException {
+				if (!closed) {
+					closed = true;
+					put(END);
+				}
+			}
+
+			private void put(byte[] chunk) throws IOException {
+				try {
+					chunks.put(chunk);
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+			}
+		}, PIPE_CHUNK_SIZE);
+	}
+
+	/**
+	 * Starts the conversion of the given SAM text in a background thread. The stream is not closed.
+	 *
+	 * @see #waitFor()
+	 */
+	public void start(final InputStream samText) {
+		this.converter = new Thread("sorted-bam-writer-" + bam.getName()) {
+			public void run() {
+				try {
+					write(samText);
+				} catch (Throwable e) {
+					error = e;
+					// keep consuming, so writers do not block forever
+					try {
+						byte[] buffer = new byte[PIPE_CHUNK_SIZE];
+						while (samText.read(buffer) != -1) {
+						}
+					} catch (IOException e1) {
+					}
+				}
+			}
+		};
+		this.converter.start();
+	}
+
+	/**
+	 * Waits for the background conversion started with one of the start methods to finish
+	 *
+	 * @throws IOException if the conversion failed
+	 */
+	public void waitFor() throws IOException {
+		try {
+			converter.join();
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		}
+		if (error != null) {
+			throw new IOException("Error building " + bam, error);
+		}
+	}
+
+	/**
+	 * Reads the SAM text, sorts it and writes the indexed BAM file
+	 */
+	public void write(InputStream samText) throws IOException {
+		SAMFileReader reader = new SAMFileReader(samText);
+		reader.setValidationStringency(SAMFileReader.ValidationStringency.SILENT);
+
+		SAMFileHeader header = reader.getFileHeader();
+		header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+
+		ParallelSAMSorter sorter = new ParallelSAMSorter(header, MAX_RECORDS_IN_RAM, tmpDir, Runtime.getRuntime()
+				.availableProcessors());
+		try {
+			long count = 0;
+			for (SAMRecord record : reader) {
+				sorter.add(record);
+				count++;
+			}
+			reader.close();
+			sorter.doneAdding();
+			logger.info("Writing " + count + " sorted records to " + bam.getName());
+
+			SAMFileWriterFactory factory = new SAMFileWriterFactory();
+			factory.setCreateIndex(true);
+			SAMFileWriter writer = factory.makeBAMWriter(header, true, bam);
+			CloseableIterator<SAMRecord> sorted = sorter.iterator();
+			try {
+				while (sorted.hasNext()) {
+					writer.addAlignment(sorted.next());
+				}
+			} finally {
+				sorted.close();
+				writer.close();
+			}
+		} finally {
+			sorter.cleanup();
+		}
+	}
+}
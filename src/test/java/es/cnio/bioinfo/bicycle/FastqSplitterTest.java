@@ -0,0 +1,131 @@
+package es.cnio.bioinfo.bicycle;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Test;
+
+import net.sf.samtools.util.BlockCompressedOutputStream;
+
+public class FastqSplitterTest {
+
+	private static final int RECORDS = 10000;
+
+	@Test
+	public void testSplitPlain() throws IOException {
+		List<String> records = createRecords();
+		File f = writeFastq(records, new FileOutputStreamFactory());
+
+		assertEquals(sorted(records), sorted(readRecords(FastqSplitter.splitfastq(Arrays.asList(f), 5))));
+	}
+
+	@Test
+	public void testSplitGzip() throws IOException {
+		List<String> records = createRecords();
+		File f = writeFastq(records, new GzipOutputStreamFactory());
+
+		assertEquals(sorted(records), sorted(readRecords(FastqSplitter.splitfastq(Arrays.asList(f), 5))));
+	}
+
+	@Test
+	public void testSplitBGZF() throws IOException {
+		List<String> records = createRecords();
+		File f = writeFastq(records, new BGZFOutputStreamFactory());
+
+		List<BufferedReader> readers = FastqSplitter.splitfastq(Arrays.asList(f, f), 5);
+		assertTrue(readers.size() > 1);
+
+		List<String> expected = new ArrayList<String>(records);
+		expected.addAll(records);
+		assertEquals(sorted(expected), sorted(readRecords(readers)));
+	}
+
+	@Test
+	public void testSplitKeepingRecordOrder() throws IOException {
+		List<String> records = createRecords();
+		File f1 = writeFastq(records, new BGZFOutputStreamFactory());
+		File f2 = writeFastq(records, new GzipOutputStreamFactory());
+
+		List<BufferedReader> mate1 = FastqSplitter.splitfastq(Arrays.asList(f1), 3, true);
+		List<BufferedReader> mate2 = FastqSplitter.splitfastq(Arrays.asList(f2), 3, true);
+		assertEquals(mate1.size(), mate2.size());
+		for (int i = 0; i < mate1.size(); i++) {
+			assertEquals(readRecords(Arrays.asList(mate1.get(i))), readRecords(Arrays.asList(mate2.get(i))));
+		}
+	}
+
+	private List<String> createRecords() {
+		List<String> toret = new ArrayList<String>();
+		for (int i = 0; i < RECORDS; i++) {
+			// quality lines starting with @ and +
+			String quality = (i % 2 == 0 ? "@" : "+") + "IIIIHHHGGG#";
+			toret.add("@read" + i + " desc\nACGTACGTNN" + (i % 10) + "\n+\n" + quality);
+		}
+		return toret;
+	}
+
+	private List<String> readRecords(List<BufferedReader> readers) throws IOException {
+		List<String> toret = new ArrayList<String>();
+		for (BufferedReader reader : readers) {
+			String line = null;
+			while ((line = reader.readLine()) != null) {
+				assertTrue(line.startsWith("@"));
+				String record = line + "\n" + reader.readLine() + "\n" + reader.readLine() + "\n" + reader.readLine();
+				assertTrue(record.split("\n")[2].startsWith("+"));
+				toret.add(record);
+			}
+		}
+		return toret;
+	}
+
+	private List<String> sorted(List<String> records) {
+		List<String> toret = new ArrayList<String>(records);
+		Collections.sort(toret);
+		return toret;
+	}
+
+	private File writeFastq(List<String> records, OutputStreamFactory factory) throws IOException {
+		File f = File.createTempFile("fastqsplitter", ".fastq");
+		f.deleteOnExit();
+		PrintStream out = new PrintStream(factory.create(f));
+		for (String record : records) {
+			out.println(record);
+		}
+		out.close();
+		return f;
+	}
+
+	private interface OutputStreamFactory {
+		OutputStream create(File f) throws IOException;
+	}
+
+	private static class FileOutputStreamFactory implements OutputStreamFactory {
+		public OutputStream create(File f) throws IOException {
+			return new FileOutputStream(f);
+		}
+	}
+
+	private static class GzipOutputStreamFactory implements OutputStreamFactory {
+		public OutputStream create(File f) throws IOException {
+			return new GZIPOutputStream(new FileOutputStream(f));
+		}
+	}
+
+	private static class BGZFOutputStreamFactory implements OutputStreamFactory {
+		public OutputStream create(File f) throws IOException {
+			return new BlockCompressedOutputStream(f);
+		}
+	}
+}
@@ -0,0 +1,59 @@
+package es.cnio.bioinfo.bicycle.gatk;
+
+import static junit.framework.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class BEDAnnotationTrackTest {
+
+	@Test
+	public void testAnnotate() throws IOException {
+		File bed = File.createTempFile("genes", ".bed");
+		bed.deleteOnExit();
+
+		FileWriter writer = new FileWriter(bed);
+		writer.write("track name=genes\nchr1\t9\t20\tgeneA\nchr1\t14\t30\tgeneB\nchr1\t40\t50\tgeneA\n" +
+				"chr2\t0\t5\tgeneC\n");
+		writer.close();
+
+		BEDAnnotationTrack track = new BEDAnnotationTrack(bed);
+		assertEquals(bed.getName(), track.getName());
+
+		// BED starts are 0-based, positions are 1-based
+		assertEquals("N/A", track.annotate("chr1", 9));
+		assertEquals("geneA", track.annotate("chr1", 10));
+		assertEquals("geneA", track.annotate("chr1", 14));
+		assertEquals("geneA|geneB", track.annotate("chr1", 15));
+		assertEquals("geneA|geneB", track.annotate("chr1", 20));
+		assertEquals("geneB", track.annotate("chr1", 21));
+		assertEquals("N/A", track.annotate("chr1", 31));
+		assertEquals("geneC", track.annotate("chr2", 1));
+		assertEquals("N/A", track.annotate("chr3", 1));
+
+		// the same annotation has the same identifier in every feature
+		assertEquals(track.getAnnotationId("chr1", 10), track.getAnnotationId("chr1", 45));
+		assertEquals(BEDAnnotationTrack.NO_FEATURES, track.getAnnotationId("chr1", 35));
+	}
+
+	@Test
+	public void testAnnotations() throws IOException {
+		File bed = File.createTempFile("genes", ".bed");
+		bed.deleteOnExit();
+
+		FileWriter writer = new FileWriter(bed);
+		writer.write("chr1\t9\t20\tgeneA\n");
+		writer.close();
+
+		List<BEDAnnotationTrack> tracks = Arrays.asList(new BEDAnnotationTrack(bed, "first"), new
+				BEDAnnotationTrack(bed, "second"));
+
+		assertEquals(Arrays.asList("geneA", "geneA"), Annotations.annotate(tracks, "chr1", 10));
+		assertEquals(Arrays.asList("N/A", "N/A"), Annotations.annotate(tracks, "chr1", 30));
+	}
+}
@@ -0,0 +1,41 @@
+package es.cnio.bioinfo.bicycle.gatk;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+public class BadBisulfiteFilterTest {
+
+	@Test
+	public void testOverlappingCytosines() {
+		BadBisulfiteFilter filter = new BadBisulfiteFilter(2);
+		assertFalse(filter.isBad(Strand.WATSON, "CCCG".getBytes()));
+		assertTrue(filter.isBad(Strand.WATSON, "CCCA".getBytes()));
+		assertFalse(filter.isBad(Strand.CRICK, "CGGG".getBytes()));
+		assertTrue(filter.isBad(Strand.CRICK, "AGGG".getBytes()));
+	}
+
+	@Test
+	public void testSameAsListerRegularExpressions() {
+		Pattern watson = Pattern.compile(".*[Cc][^Gg].*[Cc][^Gg].*[Cc][^Gg].*[Cc][^Gg].*");
+		Pattern crick = Pattern.compile(".*[^Cc][Gg].*[^Cc][Gg].*[^Cc][Gg].*[^Cc][Gg].*");
+		BadBisulfiteFilter filter = new BadBisulfiteFilter();
+
+		Random random = new Random(1);
+		for (int i = 0; i < 10000; i++) {
+			StringBuilder read = new StringBuilder();
+			int length = random.nextInt(20);
+			for (int j = 0; j < length; j++) {
+				read.append("ACGTcgN".charAt(random.nextInt(7)));
+			}
+			String bases = read.toString();
+			assertEquals(bases, watson.matcher(bases).find(), filter.isBad(Strand.WATSON, bases.getBytes()));
+			assertEquals(bases, crick.matcher(bases).find(), filter.isBad(Strand.CRICK, bases.getBytes()));
+		}
+	}
+}
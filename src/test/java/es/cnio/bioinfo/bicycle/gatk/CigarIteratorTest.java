@@ -7,7 +7,7 @@ import java.io.IOException;
 
 import org.junit.Test;
 
-import es.cnio.bioinfo.bicycle.gatk.ListerFilter.CigarIterator;
+import es.cnio.bioinfo.bicycle.gatk.IteratorReadTrimmer.CigarIterator;
 import net.sf.samtools.CigarOperator;
 
 public class CigarIteratorTest {
@@ -0,0 +1,245 @@
+package es.cnio.bioinfo.bicycle.gatk;
+
+import static junit.framework.Assert.assertEquals;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.broadinstitute.sting.utils.pileup.PileupElement;
+import org.broadinstitute.sting.utils.pileup.PileupElementFilter;
+import org.broadinstitute.sting.utils.pileup.ReadBackedPileup;
+import org.junit.Test;
+
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMRecord;
+
+public class ClonalPileupFilterTest {
+
+	private final SAMFileHeader header = new SAMFileHeader();
+
+	@Test
+	public void testEqualStartGroup() {
+		// quality sums: a 200, b 250, c 200 (tied with a), d 5
+		SAMRecord a = createRead("a", 10, 20, 10);
+		SAMRecord b = createRead("b", 10, 5, 50);
+		SAMRecord c = createRead("c", 10, 10, 20);
+		SAMRecord d = createRead("d", 12, 5, 1);
+		List<SAMRecord> reads = Arrays.asList(a, b, c, d);
+
+		ClonalPileupFilter filter = new ClonalPileupFilter(Strand.WATSON);
+		for (int position = 10; position <= 30; position++) {
+			List<String> kept = assertSameAsLocusRule(filter, Strand.WATSON, "chr1", position, elementsAt(reads,
+					position));
+			if (position == 12) {
+				assertEquals(Arrays.asList("b", "d"), kept);
+			} else if (position == 15) {
+				// b has left the group, and a is kept over c because it was seen first
+				assertEquals(Arrays.asList("a", "d"), kept);
+			} else if (position == 19) {
+				assertEquals(Arrays.asList("a"), kept);
+			}
+		}
+	}
+
+	@Test
+	public void testEqualEndGroup() {
+		// all end at 20, with quality sums: a 160, b 160 (tied with a), c 180
+		SAMRecord a = createRead("a", 5, 16, 10);
+		SAMRecord e = createRead("e", 8, 5, 40);
+		SAMRecord b = createRead("b", 13, 8, 20);
+		SAMRecord c = createRead("c", 15, 6, 30);
+		List<SAMRecord> reads = Arrays.asList(a, e, b, c);
+
+		ClonalPileupFilter filter = new ClonalPileupFilter(Strand.CRICK);
+		for (int position = 5; position <= 25; position++) {
+			List<String> kept = assertSameAsLocusRule(filter, Strand.CRICK, "chr1", position, elementsAt(reads,
+					position));
+			if (position == 10) {
+				assertEquals(Arrays.asList("a", "e"), kept);
+			} else if (position == 14) {
+				assertEquals(Arrays.asList("a"), kept);
+			} else if (position == 16) {
+				assertEquals(Arrays.asList("c"), kept);
+			}
+		}
+	}
+
+	@Test
+	public void testBackwardsAndContigMoves() {
+		SAMRecord x = createRead("x", 10, 10, 10);
+		SAMRecord y = createRead("y", 10, 10, 10);
+		SAMRecord z = createRead("z", 10, 10, 10);
+
+		ClonalPileupFilter filter = new ClonalPileupFilter(Strand.WATSON);
+		for (int position = 10; position <= 15; position++) {
+			assertEquals(Arrays.asList("x"), assertSameAsLocusRule(filter, Strand.WATSON, "chr1", position,
+					elementsAt(Arrays.asList(x, y), position)));
+		}
+
+		// the reads are still tracked, but the tie is decided again in the order of the pileups after the move
+		for (int position = 12; position <= 19; position++) {
+			assertEquals(Arrays.asList("y"), assertSameAsLocusRule(filter, Strand.WATSON, "chr1", position,
+					elementsAt(Arrays.asList(y, x), position)));
+		}
+
+		// the same reads and positions in another contig
+		for (int position = 10; position <= 19; position++) {
+			assertEquals(Arrays.asList("z"), assertSameAsLocusRule(filter, Strand.WATSON, "chr2", position,
+					elementsAt(Arrays.asList(z, x, y), position)));
+		}
+	}
+
+	@Test
+	public void testRandomTraversals() {
+		for (Strand strand : Strand.values()) {
+			Random random = new Random(11);
+			for (int i = 0; i < 200; i++) {
+				// few starts, lengths and qualities, so there are many groups and ties
+				List<List<SAMRecord>> contigs = new ArrayList<List<SAMRecord>>();
+				for (int contig = 0; contig < 2; contig++) {
+					List<SAMRecord> reads = new ArrayList<SAMRecord>();
+					for (int j = 0; j < 60; j++) {
+						reads.add(createRead("r" + contig + "_" + j, 1 + random.nextInt(60), 1 + random.nextInt(12),
+								1 + random.nextInt(3)));
+					}
+					Collections.sort(reads, new StartComparator());
+					contigs.add(reads);
+				}
+
+				ClonalPileupFilter filter = new ClonalPileupFilter(strand);
+				// the first contig is traversed again after the second one
+				for (int contig : new int[]{0, 1, 0}) {
+					List<SAMRecord> reads = contigs.get(contig);
+					for (int position = 1; position <= 75; position++) {
+						if (random.nextInt(20) == 0) {
+							// a new shard, where the engine hands out the same reads as new records
+							reads = copy(reads);
+						}
+						if (random.nextInt(30) == 0) {
+							position = Math.max(1, position - random.nextInt(20));
+						}
+						assertSameAsLocusRule(filter, strand, "chr" + contig, position, elementsAt(reads, position));
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Filters a pileup and checks that the kept reads are the ones kept by the former per-locus rule: among the reads
+	 * of the pileup with the same start (or end, in the negative strand), the first one with the highest quality sum
+	 *
+	 * @return the names of the kept reads
+	 */
+	private static List<String> assertSameAsLocusRule(ClonalPileupFilter filter, Strand strand, String contig, int
+			position, List<PileupElement> elements) {
+		Map<Integer, PileupElement> uniqueReads = new HashMap<Integer, PileupElement>();
+		for (PileupElement element : elements) {
+			int key = strand.isNegative() ? element.getRead().getAlignmentEnd() : element.getRead()
+					.getAlignmentStart();
+			if (!uniqueReads.containsKey(key) || sumQuality(uniqueReads.get(key).getRead()) < sumQuality(element
+					.getRead())) {
+				uniqueReads.put(key, element);
+			}
+		}
+		List<String> expected = new ArrayList<String>();
+		for (PileupElement element : elements) {
+			int key = strand.isNegative() ? element.getRead().getAlignmentEnd() : element.getRead()
+					.getAlignmentStart();
+			if (uniqueReads.get(key) == element) {
+				expected.add(element.getRead().getReadName());
+			}
+		}
+
+		List<String> kept = new ArrayList<String>();
+		for (PileupElement element : filter.filter(contig, position, createPileup(elements))) {
+			kept.add(element.getRead().getReadName());
+		}
+		assertEquals(strand + " " + contig + ":" + position, expected, kept);
+		return kept;
+	}
+
+	private static int sumQuality(SAMRecord read) {
+		int sum = 0;
+		for (byte b : read.getBaseQualities()) {
+			sum += (int) b;
+		}
+		return sum;
+	}
+
+	private SAMRecord createRead(String name, int start, int length, int quality) {
+		SAMRecord record = new SAMRecord(header);
+		record.setReadName(name);
+		record.setAlignmentStart(start);
+		record.setCigarString(length + "M");
+		byte[] qualities = new byte[length];
+		Arrays.fill(qualities, (byte) quality);
+		record.setBaseQualities(qualities);
+		return record;
+	}
+
+	private List<SAMRecord> copy(List<SAMRecord> reads) {
+		List<SAMRecord> copies = new ArrayList<SAMRecord>();
+		for (SAMRecord read : reads) {
+			copies.add(createRead(read.getReadName(), read.getAlignmentStart(), read.getBaseQualities().length, read
+					.getBaseQualities()[0]));
+		}
+		return copies;
+	}
+
+	/**
+	 * Returns the elements of the reads covering a position, in the order of the reads
+	 */
+	private static List<PileupElement> elementsAt(List<SAMRecord> reads, int position) {
+		List<PileupElement> elements = new ArrayList<PileupElement>();
+		for (SAMRecord read : reads) {
+			if (read.getAlignmentStart() <= position && position <= read.getAlignmentEnd()) {
+				elements.add(new PileupElement(read, position - read.getAlignmentStart()));
+			}
+		}
+		return elements;
+	}
+
+	/**
+	 * Creates a pileup that only supports the iteration and the filtering of its elements
+	 */
+	private static ReadBackedPileup createPileup(final List<PileupElement> elements) {
+		return (ReadBackedPileup) Proxy.newProxyInstance(ReadBackedPileup.class.getClassLoader(), new Class<?>[]{
+				ReadBackedPileup.class}, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if (method.getName().equals("iterator")) {
+					return elements.iterator();
+				} else if (method.getName().equals("getFilteredPileup")) {
+					List<PileupElement> filtered = new ArrayList<PileupElement>();
+					for (PileupElement element : elements) {
+						if (((PileupElementFilter) args[0]).allow(element)) {
+							filtered.add(element);
+						}
+					}
+					return createPileup(filtered);
+				} else if (method.getName().equals("toString")) {
+					return elements.toString();
+				}
+				throw new UnsupportedOperationException(method.getName());
+			}
+		});
+	}
+
+	private static class StartComparator implements Comparator<SAMRecord> {
+		@Override
+		public int compare(SAMRecord o1, SAMRecord o2) {
+			return o1.getAlignmentStart() < o2.getAlignmentStart() ? -1 : (o1.getAlignmentStart() == o2
+					.getAlignmentStart() ? 0 : 1);
+		}
+	}
+}
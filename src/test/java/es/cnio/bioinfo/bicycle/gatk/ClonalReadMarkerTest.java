@@ -0,0 +1,156 @@
+package es.cnio.bioinfo.bicycle.gatk;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMFileWriter;
+import net.sf.samtools.SAMFileWriterFactory;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMSequenceRecord;
+
+public class ClonalReadMarkerTest {
+
+	@Test
+	public void testMarkWatson() throws IOException {
+		Map<String, Boolean> clonal = markReads(Strand.WATSON, 2);
+
+		// reads with the same start: the one with the highest quality sum is kept
+		assertTrue(clonal.get("a"));
+		assertFalse(clonal.get("b"));
+		assertFalse(clonal.get("e"));
+		assertFalse(clonal.get("c"));
+		assertTrue(clonal.get("d"));
+	}
+
+	@Test
+	public void testMarkCrick() throws IOException {
+		Map<String, Boolean> clonal = markReads(Strand.CRICK, 3);
+
+		// reads with the same end: the one with the highest quality sum is kept
+		assertTrue(clonal.get("a"));
+		assertFalse(clonal.get("b"));
+		assertTrue(clonal.get("e"));
+		assertFalse(clonal.get("c"));
+		assertTrue(clonal.get("d"));
+	}
+
+	@Test
+	public void testMarkPaired() throws IOException {
+		SAMFileHeader header = createHeader();
+		List<SAMRecord> reads = new ArrayList<SAMRecord>();
+		reads.add(createMate(header, "a", 10, 50, true, 'I'));
+		reads.add(createMate(header, "b", 10, 50, true, 'J'));
+		reads.add(createMate(header, "c", 10, 60, true, 'I'));
+		reads.add(createMate(header, "a", 50, 10, false, 'J'));
+		reads.add(createMate(header, "b", 50, 10, false, 'I'));
+		reads.add(createMate(header, "c", 60, 10, false, 'I'));
+
+		Map<String, Boolean> clonal = markReads(Strand.WATSON, header, reads, 6, 2);
+
+		// pairs with the same start, mate start and mate number: both mates of the lower quality one are marked,
+		// whatever the qualities of the second mates
+		assertTrue(clonal.get("a/1"));
+		assertTrue(clonal.get("a/2"));
+		assertFalse(clonal.get("b/1"));
+		assertFalse(clonal.get("b/2"));
+		// a different mate start is not clonal
+		assertFalse(clonal.get("c/1"));
+		assertFalse(clonal.get("c/2"));
+	}
+
+	private Map<String, Boolean> markReads(Strand strand, int expectedClonal) throws IOException {
+		SAMFileHeader header = createHeader();
+		List<SAMRecord> reads = new ArrayList<SAMRecord>();
+		reads.add(createRead(header, "a", 10, 10, 'I'));
+		reads.add(createRead(header, "b", 10, 10, 'J'));
+		reads.add(createRead(header, "e", 12, 8, 'J'));
+		reads.add(createRead(header, "c", 15, 10, 'J'));
+		reads.add(createRead(header, "d", 15, 5, 'I'));
+		return markReads(strand, header, reads, 5, expectedClonal);
+	}
+
+	private Map<String, Boolean> markReads(Strand strand, SAMFileHeader header, List<SAMRecord> reads,
+			int expectedReads, int expectedClonal) throws IOException {
+		File input = File.createTempFile("clonal", ".bam");
+		File output = File.createTempFile("clonal", ".marked.bam");
+		input.deleteOnExit();
+		output.deleteOnExit();
+		ClonalReadMarker.getMetricsFile(output).deleteOnExit();
+
+		SAMFileWriter writer = new SAMFileWriterFactory().makeBAMWriter(header, true, input);
+		for (SAMRecord read : reads) {
+			writer.addAlignment(read);
+		}
+		writer.close();
+
+		ClonalReadMarker.Metrics metrics = new ClonalReadMarker(strand, null).mark(input, output);
+		assertEquals(expectedReads, metrics.getReads());
+		assertEquals(expectedClonal, metrics.getClonal());
+		assertTrue(ClonalReadMarker.isMarked(Collections.singletonList(output)));
+
+		// paired reads are named after their mate number
+		Map<String, Boolean> clonal = new HashMap<String, Boolean>();
+		SAMFileReader reader = new SAMFileReader(output);
+		for (SAMRecord record : reader) {
+			String name = record.getReadName();
+			if (record.getReadPairedFlag()) {
+				name += record.getFirstOfPairFlag() ? "/1" : "/2";
+			}
+			clonal.put(name, record.getDuplicateReadFlag());
+		}
+		reader.close();
+		return clonal;
+	}
+
+	private SAMFileHeader createHeader() {
+		SAMFileHeader header = new SAMFileHeader();
+		header.addSequence(new SAMSequenceRecord("chr1", 1000));
+		header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+		return header;
+	}
+
+	private SAMRecord createMate(SAMFileHeader header, String name, int start, int mateStart, boolean first,
+			char quality) {
+		SAMRecord record = createRead(header, name, start, 10, quality);
+		record.setReadPairedFlag(true);
+		record.setProperPairFlag(true);
+		record.setFirstOfPairFlag(first);
+		record.setSecondOfPairFlag(!first);
+		record.setMateReferenceName("chr1");
+		record.setMateAlignmentStart(mateStart);
+		record.setMateNegativeStrandFlag(first);
+		record.setReadNegativeStrandFlag(!first);
+		return record;
+	}
+
+	private SAMRecord createRead(SAMFileHeader header, String name, int start, int length, char quality) {
+		StringBuilder bases = new StringBuilder();
+		StringBuilder qualities = new StringBuilder();
+		for (int i = 0; i < length; i++) {
+			bases.append('A');
+			qualities.append(quality);
+		}
+		SAMRecord record = new SAMRecord(header);
+		record.setReadName(name);
+		record.setReferenceName("chr1");
+		record.setAlignmentStart(start);
+		record.setCigarString(length + "M");
+		record.setReadString(bases.toString());
+		record.setBaseQualityString(qualities.toString());
+		record.setMappingQuality(255);
+		return record;
+	}
+}
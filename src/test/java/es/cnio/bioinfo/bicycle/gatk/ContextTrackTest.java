@@ -0,0 +1,56 @@
+package es.cnio.bioinfo.bicycle.gatk;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class ContextTrackTest {
+
+	@Test
+	public void testContexts() throws IOException {
+		File fasta = File.createTempFile("reference", ".fa");
+		File trackFile = File.createTempFile("reference", ContextTrack.EXTENSION);
+		fasta.deleteOnExit();
+		trackFile.deleteOnExit();
+
+		FileWriter writer = new FileWriter(fasta);
+		writer.write(">chr1 first\nGCGAC\ncTGGc\n>chr2\nCAGG\n");
+		writer.close();
+
+		ContextTrack.build(fasta, trackFile);
+		ContextTrack track = ContextTrack.open(trackFile);
+		try {
+			assertEquals(2, track.getSequenceNames().size());
+
+			ContextTrack.SequenceTrack chr1 = track.getSequence("chr1");
+			assertEquals(10, chr1.getLength());
+			// the G at 1 has no upstream context
+			assertNull(chr1.getStrand(1));
+			assertEquals(Strand.WATSON, chr1.getStrand(2));
+			assertEquals(Context.CG, chr1.getContext(2));
+			assertEquals(Strand.CRICK, chr1.getStrand(3));
+			assertEquals(Context.CG, chr1.getContext(3));
+			assertNull(chr1.getStrand(4));
+			assertEquals(Context.CHH, chr1.getContext(5));
+			assertEquals(Context.CHG, chr1.getContext(6));
+			assertEquals(Context.CHG, chr1.getContext(8));
+			assertEquals(Strand.CRICK, chr1.getStrand(9));
+			assertEquals(Context.CHH, chr1.getContext(9));
+			// the C at 10 has no downstream context
+			assertNull(chr1.getStrand(10));
+
+			ContextTrack.SequenceTrack chr2 = track.getSequence("chr2");
+			assertEquals(4, chr2.getLength());
+			assertEquals(Context.CHG, chr2.getContext(1));
+			assertEquals(Context.CHG, chr2.getContext(3));
+			assertEquals(Context.CHH, chr2.getContext(4));
+		} finally {
+			track.close();
+		}
+	}
+}
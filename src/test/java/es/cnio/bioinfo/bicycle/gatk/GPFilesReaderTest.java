@@ -0,0 +1,35 @@
+package es.cnio.bioinfo.bicycle.gatk;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class GPFilesReaderTest {
+
+	@Test
+	public void testMerge() throws IOException {
+		GPFilesReader reader = new GPFilesReader(Arrays.asList("chr2", "chr1"),
+				new BufferedReader(new StringReader("#SEQ\tPOS\nchr2\t5\ta\nchr2\t10\tb\nchr1\t3\tc\n")),
+				new BufferedReader(new StringReader("chr2\t5\td\nchr1\t1\te\n")));
+
+		assertEquals("chr2\t5\ta", reader.readLine());
+		assertEquals(0, reader.getLastLineReaderIndex());
+		// same position, in the order of the inputs
+		assertEquals("chr2\t5\td", reader.readLine());
+		assertEquals(1, reader.getLastLineReaderIndex());
+		assertEquals("chr2\t10\tb", reader.readLine());
+		assertEquals("chr2", reader.getLastContig());
+		assertEquals(10, reader.getLastPosition());
+		// sequences in the order of the dictionary
+		assertEquals("chr1\t1\te", reader.readLine());
+		assertEquals("chr1\t3\tc", reader.readLine());
+		assertNull(reader.readLine());
+		assertEquals(-1, reader.getLastLineReaderIndex());
+	}
+}
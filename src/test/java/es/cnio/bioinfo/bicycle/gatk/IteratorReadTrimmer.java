@@ -0,0 +1,245 @@
+package es.cnio.bioinfo.bicycle.gatk;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import net.sf.samtools.CigarElement;
+import net.sf.samtools.CigarOperator;
+import net.sf.samtools.TextCigarCodec;
+
+/**
+ * The former read trimming of {@link ListerFilter}, which walked the read with a {@link CigarIterator} and a
+ * {@link MDTagIterator}. It is kept as the reference that {@link ReadTrimmer} is compared with.
+ */
+public class IteratorReadTrimmer {
+
+	/**
+	 * Returns the trim point of a read, as {@link ReadTrimmer#findTrimPoint(List, String, boolean, int, int)} does
+	 */
+	static int findTrimPoint(String cigar, String md, boolean isReverse, int readLength, int trimMismatches) {
+		int currentMismatches = 0;
+		int trimPoint = isReverse ? readLength : 0;
+
+		CigarIterator cigarIterator = new CigarIterator(cigar, isReverse);
+		MDTagIterator mdIterator = new MDTagIterator(md, isReverse);
+
+		while (cigarIterator.hasNext() && currentMismatches < trimMismatches) {
+			CigarOperator operator = cigarIterator.next();
+
+			switch (operator) {
+				case M:
+					MDTagOperator mdOperator = mdIterator.next();
+					if (mdOperator == MDTagOperator.VARIANT) {
+						currentMismatches++;
+						if (currentMismatches < trimMismatches) {
+							trimPoint = trimPoint + (isReverse ? -1 : 1);
+						}
+					} else if (mdOperator == MDTagOperator.SEQUENCE_MATCH) {
+						trimPoint = trimPoint + (isReverse ? -1 : 1);
+					} else {
+						return -1;
+					}
+					break;
+				case I:
+					currentMismatches++;
+					if (currentMismatches < trimMismatches) {
+						trimPoint = trimPoint + (isReverse ? -1 : 1);
+					}
+					break;
+				case D:
+					currentMismatches++;
+					mdIterator.next();
+					break;
+				default:
+					return -1;
+			}
+		}
+
+		return currentMismatches >= trimMismatches ? trimPoint : -1;
+	}
+
+	protected static class CigarIterator implements Iterator<CigarOperator> {
+
+		private final boolean reverse;
+		private List<CigarElement> cigarElements;
+		private int currentCigarElementsPos;
+
+		private int repetitionsOfCurrentOperation = 0;
+		private CigarOperator currentOperator = null;
+
+		public CigarIterator(String cigar, boolean reverse) {
+			this.cigarElements = new ArrayList(TextCigarCodec.getSingleton().decode(cigar).getCigarElements());
+			this.reverse = reverse;
+			this.currentCigarElementsPos = this.reverse ? cigarElements.size() : -1;
+			this.advanceCigarElement();
+		}
+
+		@Override
+		public boolean hasNext() {
+			return repetitionsOfCurrentOperation > 0
+					|| (this.currentCigarElementsPos >= 0 && this.currentCigarElementsPos < this.cigarElements.size());
+		}
+
+		@Override
+		public CigarOperator next() {
+
+			CigarOperator result = this.currentOperator;
+			this.repetitionsOfCurrentOperation--;
+			if (repetitionsOfCurrentOperation == 0 && (this.currentCigarElementsPos >= 0 && this
+					.currentCigarElementsPos < this.cigarElements.size())) {
+				advanceCigarElement();
+			}
+
+			return result;
+		}
+
+		private void advanceCigarElement() {
+			this.currentCigarElementsPos = this.currentCigarElementsPos + (this.reverse ? -1 : 1);
+			if (this.currentCigarElementsPos >= 0 && this.currentCigarElementsPos < this.cigarElements.size()) {
+				CigarElement element = this.cigarElements.get(this.currentCigarElementsPos);
+				this.repetitionsOfCurrentOperation = element.getLength();
+				this.currentOperator = element.getOperator();
+			}
+		}
+	}
+
+	protected enum MDTagOperator {
+		DELETION, SEQUENCE_MATCH, VARIANT
+	}
+
+	protected static abstract class MDTagOperation {
+		public abstract int getLength();
+
+		public abstract MDTagOperator getOperator();
+	}
+
+	protected static class SequenceMatchOperation extends MDTagOperation {
+		int length;
+
+		public SequenceMatchOperation(int length) {
+			this.length = length;
+		}
+
+		@Override
+		public int getLength() {
+			return length;
+		}
+
+		@Override
+		public MDTagOperator getOperator() {
+			return MDTagOperator.SEQUENCE_MATCH;
+		}
+	}
+
+	protected static class SequenceVariantOperation extends MDTagOperation {
+		private char allele;
+
+		public SequenceVariantOperation(char alelle) {
+			this.allele = allele;
+		}
+
+		@Override
+		public int getLength() {
+			return 1;
+		}
+
+		@Override
+		public MDTagOperator getOperator() {
+			return MDTagOperator.VARIANT;
+		}
+	}
+
+	protected static class DeletionOperation extends MDTagOperation {
+		private String deletedBases;
+
+		public DeletionOperation(String deletedBases) {
+			this.deletedBases = deletedBases;
+		}
+
+		public String getDeletedBases() {
+			return deletedBases;
+		}
+
+		@Override
+		public int getLength() {
+			return deletedBases.length();
+		}
+
+		@Override
+		public MDTagOperator getOperator() {
+			return MDTagOperator.DELETION;
+		}
+	}
+
+	protected static class MDTagIterator implements Iterator<MDTagOperator> {
+		static final Pattern mdPat = Pattern.compile("\\G(?:([0-9]+)|([ACTGNactgn])|(\\^[ACTGNactgn]+))");
+
+		private final boolean reverse;
+		private List<MDTagOperation> mdOperations;
+		private int currentMDOperationsPos;
+
+		private int repetitionsOfCurrentOperation = 0;
+		private MDTagOperator currentOperator = null;
+
+		private List<MDTagOperation> decodeMDTag(String mdString) {
+			Matcher matcher = mdPat.matcher(mdString);
+
+			ArrayList result = new ArrayList<>();
+			while (matcher.find()) {
+				if (matcher.group(1) != null) {
+					// match
+					int length = Integer.parseInt(matcher.group(1));
+					if (length > 0) {
+						result.add(new SequenceMatchOperation(Integer.parseInt(matcher.group(1))));
+					}
+				} else if (matcher.group(2) != null) {
+					// variant
+					result.add(new SequenceVariantOperation(matcher.group(2).charAt(0)));
+				} else if (matcher.group(3) != null) {
+					// deletion
+					result.add(new DeletionOperation(matcher.group(3).substring(1)));
+				}
+			}
+
+			return result;
+		}
+
+		public MDTagIterator(String mdString, boolean reverse) {
+			this.mdOperations = decodeMDTag(mdString);
+			this.reverse = reverse;
+			this.currentMDOperationsPos = this.reverse ? mdOperations.size() : -1;
+			this.advanceMDOperation();
+		}
+
+		@Override
+		public boolean hasNext() {
+			return repetitionsOfCurrentOperation > 0
+					|| (this.currentMDOperationsPos >= 0 && this.currentMDOperationsPos < this.mdOperations.size());
+		}
+
+		@Override
+		public MDTagOperator next() {
+
+			MDTagOperator result = this.currentOperator;
+			this.repetitionsOfCurrentOperation--;
+			if (repetitionsOfCurrentOperation == 0 && (this.currentMDOperationsPos >= 0 && this
+					.currentMDOperationsPos < this.mdOperations.size())) {
+				advanceMDOperation();
+			}
+
+			return result;
+		}
+
+		private void advanceMDOperation() {
+			this.currentMDOperationsPos = this.currentMDOperationsPos + (this.reverse ? -1 : 1);
+			if (this.currentMDOperationsPos >= 0 && this.currentMDOperationsPos < this.mdOperations.size()) {
+				MDTagOperation element = this.mdOperations.get(this.currentMDOperationsPos);
+				this.repetitionsOfCurrentOperation = element.getLength();
+				this.currentOperator = element.getOperator();
+			}
+		}
+	}
+}
@@ -216,6 +216,42 @@ public class ListerFilterTest {
 		assertEquals("XXXTTT", aSAMRecord.getReadString());
 	}
 
+	@Test
+	public void testStatistics() throws InterruptedException {
+		final ListerFilter filter = createTrimmingFilterUntil(1);
+		filter.onlyWithOneAlignment = true;
+
+		filter.filterOut(createSAMRecord("T", "1M", "A", 1, false));
+		filter.filterOut(createSAMRecord("T", "1M", "1", 0, false));
+		SAMRecord withTwoAlignments = createSAMRecord("T", "1M", "1", 0, false);
+		withTwoAlignments.setAttribute("XM", 2);
+		filter.filterOut(withTwoAlignments);
+
+		// frozen reads are not counted
+		filter.freezeCountersInThread();
+		filter.filterOut(createSAMRecord("T", "1M", "A", 1, false));
+		filter.unfreezeCountersInThread();
+
+		// reads filtered in other threads are merged
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				filter.filterOut(createSAMRecord("T", "1M", "A", 1, false));
+			}
+		});
+		thread.start();
+		thread.join();
+
+		ListerFilter.Statistics statistics = filter.getStatistics();
+		assertEquals(4, statistics.getProcessed());
+		assertEquals(2, statistics.getTrimmed());
+		assertEquals(1, statistics.getFiltered(ListerFilter.FilterReason.MORE_THAN_ONE_ALIGNMENT));
+		assertEquals(1, statistics.getFiltered());
+
+		filter.resetCounters();
+		assertEquals(0, filter.getStatistics().getProcessed());
+	}
+
 	private SAMRecord createSAMRecord(String read, String cigar, String md, int NM, boolean reverse) {
 		SAMFileHeader header = new SAMFileHeader();
 		List<SAMProgramRecord> PRs = new ArrayList<>();
@@ -5,8 +5,8 @@ import static junit.framework.Assert.assertEquals;
 
 import org.junit.Test;
 
-import es.cnio.bioinfo.bicycle.gatk.ListerFilter.MDTagIterator;
-import es.cnio.bioinfo.bicycle.gatk.ListerFilter.MDTagOperator;
+import es.cnio.bioinfo.bicycle.gatk.IteratorReadTrimmer.MDTagIterator;
+import es.cnio.bioinfo.bicycle.gatk.IteratorReadTrimmer.MDTagOperator;
 import net.sf.samtools.CigarOperator;
 
 public class MDIteratorTest {
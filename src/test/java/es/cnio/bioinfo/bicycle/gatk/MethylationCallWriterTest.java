@@ -0,0 +1,176 @@
+package es.cnio.bioinfo.bicycle.gatk;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import es.cnio.bioinfo.bicycle.MethylationCall;
+
+public class MethylationCallWriterTest {
+
+	private static MethylationCall call(String contig, long position, Strand strand, Context context, String
+			pileup, List<String> annotations) {
+		return new MethylationCall(contig, position, strand, context, 0.05d, pileup.length(), pileup.length(), 1,
+				pileup, false, false, annotations, 0.5d);
+	}
+
+	private static byte[] write(List<MethylationCall> calls) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		MethylationCallWriter writer = new MethylationCallWriter(bytes);
+		for (MethylationCall call : calls) {
+			writer.write(call);
+		}
+		writer.close();
+		return bytes.toByteArray();
+	}
+
+	private static List<MethylationCall> read(byte[] bytes, List<BEDAnnotationTrack> tracks) throws IOException {
+		List<MethylationCall> calls = new ArrayList<MethylationCall>();
+		MethylationCallReader reader = new MethylationCallReader(new ByteArrayInputStream(bytes), tracks);
+		for (MethylationCall call = reader.read(); call != null; call = reader.read()) {
+			calls.add(call);
+		}
+		reader.close();
+		return calls;
+	}
+
+	private static void assertSameCalls(List<MethylationCall> expected, List<MethylationCall> actual) {
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			assertEquals(expected.get(i).marshall(), actual.get(i).marshall());
+		}
+	}
+
+	private static BEDAnnotationTrack createTrack(String contents) throws IOException {
+		File bed = File.createTempFile("annotations", ".bed");
+		bed.deleteOnExit();
+		FileWriter writer = new FileWriter(bed);
+		writer.write(contents);
+		writer.close();
+		return new BEDAnnotationTrack(bed);
+	}
+
+	@Test
+	public void testRandomCallsRoundTrip() throws IOException {
+		List<BEDAnnotationTrack> tracks = Arrays.asList(
+				createTrack("chr1\t0\t1000\tgeneA\nchr1\t500\t2000\tgeneB\nchr2\t0\t100\tgeneC\n"),
+				createTrack("chr1\t100\t200\tcpg1\n"));
+		String[] contigs = {"chr1", "chr2", "chrUn_gl000220"};
+		char[] bases = {'A', 'C', 'G', 'T'};
+
+		Random random = new Random(42);
+		List<MethylationCall> calls = new ArrayList<MethylationCall>();
+		for (int i = 0; i < 5000; i++) {
+			// mostly increasing positions in runs of the same contig, with some jumps back and between contigs
+			String contig = contigs[(i / 100) % contigs.length];
+			long position = random.nextInt(10) == 0 ? random.nextInt(3000) + 1 : (i % 100) * 37L + 1;
+			if (random.nextInt(50) == 0) {
+				position += 5000000000L;
+			}
+
+			StringBuilder pileup = new StringBuilder();
+			int depth = random.nextInt(12);
+			for (int j = 0; j < depth; j++) {
+				pileup.append(bases[random.nextInt(bases.length)]);
+			}
+			if (random.nextInt(10) == 0) {
+				// not packable in 2 bits per base
+				pileup.append(random.nextBoolean() ? 'N' : 'c');
+			}
+
+			double pval = random.nextInt(4) == 0 ? 1d : random.nextDouble();
+			calls.add(new MethylationCall(contig, position, random.nextBoolean() ? Strand.WATSON : Strand.CRICK,
+					Context.values()[random.nextInt(Context.values().length)], pval, pileup.length(), random
+					.nextInt(pileup.length() + 1), random.nextInt(pileup.length() + 1), pileup.toString(), random
+					.nextBoolean(), random.nextBoolean(), Annotations.annotate(tracks, contig, position), random
+					.nextDouble()));
+		}
+
+		assertSameCalls(calls, read(write(calls), tracks));
+	}
+
+	@Test
+	public void testContigDictionaryWithRevisits() throws IOException {
+		List<String> noAnnotations = Collections.emptyList();
+		List<MethylationCall> calls = Arrays.asList(
+				call("chr1", 100, Strand.WATSON, Context.CG, "CCT", noAnnotations),
+				call("chr1", 90, Strand.CRICK, Context.CHG, "T", noAnnotations),
+				call("chr2", 5, Strand.WATSON, Context.CHH, "", noAnnotations),
+				call("chr1", 7, Strand.WATSON, Context.CG, "CCCCC", noAnnotations),
+				call("chr2", 3000000000L, Strand.CRICK, Context.CG, "ACGTA", noAnnotations),
+				call("chr3", 1, Strand.WATSON, Context.CHH, "N.", noAnnotations));
+
+		List<MethylationCall> read = read(write(calls), null);
+		assertSameCalls(calls, read);
+		// the context and the strand are kept in the flags
+		assertEquals(Context.CHG, read.get(1).getContext());
+		assertEquals(Strand.CRICK, read.get(1).getStrand());
+	}
+
+	@Test
+	public void testConcatenatedStreams() throws IOException {
+		List<String> noAnnotations = Collections.emptyList();
+		// both writers give index 0 to their first contig, so the dictionary must be reset between them
+		List<MethylationCall> first = Arrays.asList(
+				call("chr1", 10, Strand.WATSON, Context.CG, "CC", noAnnotations),
+				call("chr2", 20, Strand.WATSON, Context.CG, "CT", noAnnotations));
+		List<MethylationCall> second = Arrays.asList(
+				call("chr2", 30, Strand.CRICK, Context.CHH, "TT", noAnnotations),
+				call("chr3", 40, Strand.CRICK, Context.CHH, "T", noAnnotations),
+				call("chr2", 50, Strand.CRICK, Context.CHH, "C", noAnnotations));
+
+		ByteArrayOutputStream concatenated = new ByteArrayOutputStream();
+		concatenated.write(write(first));
+		concatenated.write(write(second));
+		concatenated.write(write(Collections.<MethylationCall>emptyList()));
+
+		List<MethylationCall> expected = new ArrayList<MethylationCall>(first);
+		expected.addAll(second);
+		assertSameCalls(expected, read(concatenated.toByteArray(), null));
+	}
+
+	@Test
+	public void testAnnotationIdentifiersWithoutTracks() throws IOException {
+		List<BEDAnnotationTrack> tracks = Collections.singletonList(createTrack("chr1\t0\t10\tgeneA\n"));
+		List<MethylationCall> calls = Arrays.asList(
+				call("chr1", 5, Strand.WATSON, Context.CG, "C", Annotations.annotate(tracks, "chr1", 5)),
+				call("chr1", 50, Strand.WATSON, Context.CG, "C", Annotations.annotate(tracks, "chr1", 50)));
+
+		List<MethylationCall> read = read(write(calls), null);
+		assertEquals(Collections.singletonList(Integer.toString(tracks.get(0).getAnnotationId("chr1", 5))), read
+				.get(0).getAnnotations());
+		assertEquals(Collections.singletonList(Integer.toString(BEDAnnotationTrack.NO_FEATURES)), read.get(1)
+				.getAnnotations());
+	}
+
+	@Test
+	public void testRejectsAnnotationsWithoutIdentifiers() throws IOException {
+		MethylationCallWriter writer = new MethylationCallWriter(new ByteArrayOutputStream());
+		try {
+			writer.write(call("chr1", 5, Strand.WATSON, Context.CG, "C", Arrays.asList("geneA")));
+			fail("annotations without identifiers cannot be written");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testEmptyFile() throws IOException {
+		MethylationCallReader reader = new MethylationCallReader(new ByteArrayInputStream(new byte[0]));
+		assertNull(reader.read());
+		reader.close();
+	}
+}
@@ -0,0 +1,59 @@
+package es.cnio.bioinfo.bicycle.gatk;
+
+import static junit.framework.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class PValueHistogramTest {
+
+	@Test
+	public void testAddAndCount() {
+		PValueHistogram histogram = new PValueHistogram(4);
+		for (int i = 0; i < 1000; i++) {
+			histogram.add(i / 100d);
+			histogram.add(i / 100d);
+		}
+		assertEquals(1000, histogram.size());
+		assertEquals(2000, histogram.getTotal());
+		assertEquals(2, histogram.getCount(0.5d));
+		assertEquals(0, histogram.getCount(0.505d));
+		assertEquals(100, histogram.countBelow(0.5d));
+	}
+
+	@Test
+	public void testAddAll() {
+		PValueHistogram histogram1 = new PValueHistogram();
+		histogram1.add(0.01d);
+		histogram1.add(1d, 10);
+
+		PValueHistogram histogram2 = new PValueHistogram();
+		histogram2.add(0.01d);
+		histogram2.add(0.5d);
+
+		histogram1.addAll(histogram2);
+		assertEquals(3, histogram1.size());
+		assertEquals(13, histogram1.getTotal());
+		assertEquals(2, histogram1.getCount(0.01d));
+		assertEquals(10, histogram1.getCount(1d));
+		assertEquals(3, histogram1.countBelow(1d));
+	}
+
+	@Test
+	public void testCumulativeCountBelow() {
+		PValueHistogram histogram = new PValueHistogram();
+		histogram.add(0.5d, 3);
+		histogram.add(0.01d);
+		histogram.add(1d, 10);
+		histogram.add(0d, 2);
+
+		CumulativePValueHistogram cumulative = new CumulativePValueHistogram(histogram);
+		assertEquals(4, cumulative.size());
+		assertEquals(16, cumulative.getTotal());
+		assertEquals(0, cumulative.countBelow(0d));
+		assertEquals(2, cumulative.countBelow(0.01d));
+		assertEquals(3, cumulative.countBelow(0.2d));
+		assertEquals(6, cumulative.countBelow(1d));
+		assertEquals(16, cumulative.countBelow(2d));
+		assertEquals(histogram.countBelow(0.5000001d), cumulative.countBelow(0.5000001d));
+	}
+}
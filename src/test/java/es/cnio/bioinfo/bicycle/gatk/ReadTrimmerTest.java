@@ -0,0 +1,130 @@
+package es.cnio.bioinfo.bicycle.gatk;
+
+import static junit.framework.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import net.sf.samtools.TextCigarCodec;
+
+public class ReadTrimmerTest {
+
+	private static final String[][] CASES = {
+		// CIGAR, MD: the cases of CigarIteratorTest and MDIteratorTest
+		{"3M", "3"},
+		{"5M", "3A1"},
+		{"6M", "3A0C1"},
+		{"4M", "1^ACG0T2"},
+		{"1M3D3M", "1^ACG0T2"},
+		{"3M2I1M", "4"},
+		{"3M2I1M", "1A2"},
+		{"3M2D1M", "3^AC1"},
+		// variants at the ends, lowercase bases, unseparated operations
+		{"5M", "0A3C0"},
+		{"6M", "2ac2"},
+		{"6M", "2AC2"},
+		{"1M2D5M", "1^GT0AC3"},
+		{"2M1D3M", "2^N0n2"},
+		{"3M2D4M", "1A1^CG2T1"},
+		{"2D4M", "^GT0A3"},
+		// malformed tags are only parsed up to the first invalid operation
+		{"6M", "3A1X1"},
+		{"6M", "2^3"},
+		{"6M", "2A"},
+		{"6M", ""},
+		// operations other than M, I and D are not trimmed
+		{"1S5M", "1A3"},
+		{"5M1S", "1A3"},
+	};
+
+	private static void assertSameTrimPoint(String cigar, String md, int readLength) {
+		for (boolean reverse : new boolean[]{false, true}) {
+			for (int trimMismatches = 1; trimMismatches <= 3; trimMismatches++) {
+				int expected = IteratorReadTrimmer.findTrimPoint(cigar, md, reverse, readLength, trimMismatches);
+				int actual = ReadTrimmer.findTrimPoint(TextCigarCodec.getSingleton().decode(cigar)
+						.getCigarElements(), md, reverse, readLength, trimMismatches);
+				assertEquals("CIGAR " + cigar + ", MD " + md + ", reverse " + reverse + ", mismatches " +
+						trimMismatches, expected, actual);
+			}
+		}
+	}
+
+	private static int getReadLength(String cigar) {
+		int length = 0;
+		int count = 0;
+		for (char c : cigar.toCharArray()) {
+			if (Character.isDigit(c)) {
+				count = count * 10 + (c - '0');
+			} else {
+				if (c != 'D') {
+					length += count;
+				}
+				count = 0;
+			}
+		}
+		return length;
+	}
+
+	@Test
+	public void testIteratorCases() {
+		for (String[] testCase : CASES) {
+			assertSameTrimPoint(testCase[0], testCase[1], getReadLength(testCase[0]));
+		}
+	}
+
+	@Test
+	public void testRandomAlignments() {
+		char[] bases = {'A', 'C', 'G', 'T', 'N', 'a', 'c', 'g', 't'};
+		Random random = new Random(7);
+		for (int i = 0; i < 20000; i++) {
+			StringBuilder cigar = new StringBuilder();
+			StringBuilder md = new StringBuilder();
+			char lastOperator = 0;
+			int operatorLength = 0;
+			int matches = 0;
+			boolean inDeletion = false;
+
+			int operations = 1 + random.nextInt(20);
+			for (int j = 0; j < operations; j++) {
+				int type = random.nextInt(10);
+				char operator = type < 7 ? 'M' : type < 9 ? 'I' : 'D';
+				if (operator == 'D' && lastOperator == 'I') {
+					operator = 'M';
+				}
+				if (operator != lastOperator && lastOperator != 0) {
+					cigar.append(operatorLength).append(lastOperator);
+					operatorLength = 0;
+				}
+				operatorLength++;
+				lastOperator = operator;
+
+				if (operator == 'M') {
+					inDeletion = false;
+					if (random.nextInt(4) == 0) {
+						md.append(matches).append(bases[random.nextInt(bases.length)]);
+						matches = 0;
+					} else {
+						matches++;
+					}
+				} else if (operator == 'D') {
+					if (!inDeletion) {
+						md.append(matches).append('^');
+						matches = 0;
+						inDeletion = true;
+					}
+					md.append(bases[random.nextInt(bases.length)]);
+				}
+			}
+			cigar.append(operatorLength).append(lastOperator);
+			md.append(matches);
+
+			String mdTag = md.toString();
+			if (random.nextInt(10) == 0) {
+				// truncated tags
+				mdTag = mdTag.substring(0, random.nextInt(mdTag.length() + 1));
+			}
+			assertSameTrimPoint(cigar.toString(), mdTag, getReadLength(cigar.toString()));
+		}
+	}
+}
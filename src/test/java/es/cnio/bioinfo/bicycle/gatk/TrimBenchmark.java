@@ -0,0 +1,131 @@
+package es.cnio.bioinfo.bicycle.gatk;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import es.cnio.bioinfo.bicycle.gatk.IteratorReadTrimmer.CigarIterator;
+import es.cnio.bioinfo.bicycle.gatk.IteratorReadTrimmer.MDTagIterator;
+import net.sf.samtools.CigarElement;
+import net.sf.samtools.TextCigarCodec;
+
+/**
+ * Compares the read trimming of {@link ListerFilter} against the former implementation in
+ * {@link IteratorReadTrimmer}, based on {@link CigarIterator} and {@link MDTagIterator}, over the CIGAR and MD cases
+ * of CigarIteratorTest and MDIteratorTest, on both strands. ReadTrimmerTest checks that both give the same trim
+ * points.
+ * <p>
+ * It is not run by the test phase. Run it with the main method, with the test classpath.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TrimBenchmark {
+
+	private static final String[][] CASES = {
+		// read, CIGAR, MD
+		{"TTT", "3M", "3"},
+		{"TTTAT", "5M", "3A1"},
+		{"TTTACT", "6M", "3A0C1"},
+		{"TTTT", "1M3D3M", "1^ACG0T2"},
+		{"TTTTTT", "3M2I1M", "4"},
+		{"TTTT", "3M2D1M", "3^AC1"}
+	};
+
+	@Param({"1", "2"})
+	public int trimMismatches;
+
+	private String[] reads;
+	private String[] cigars;
+	private String[] mds;
+	private List<CigarElement>[] cigarElements;
+
+	@SuppressWarnings("unchecked")
+	@Setup
+	public void setup() {
+		reads = new String[CASES.length];
+		cigars = new String[CASES.length];
+		mds = new String[CASES.length];
+		cigarElements = new List[CASES.length];
+		for (int i = 0; i < CASES.length; i++) {
+			reads[i] = CASES[i][0];
+			cigars[i] = CASES[i][1];
+			mds[i] = CASES[i][2];
+			// the records carry their CIGAR already decoded
+			cigarElements[i] = TextCigarCodec.getSingleton().decode(cigars[i]).getCigarElements();
+		}
+	}
+
+	@Benchmark
+	public void iterators(Blackhole blackhole) {
+		for (int i = 0; i < reads.length; i++) {
+			blackhole.consume(trimWithIterators(reads[i], cigars[i], mds[i], false, trimMismatches));
+			blackhole.consume(trimWithIterators(reads[i], cigars[i], mds[i], true, trimMismatches));
+		}
+	}
+
+	@Benchmark
+	public void readTrimmer(Blackhole blackhole) {
+		for (int i = 0; i < reads.length; i++) {
+			blackhole.consume(trimWithReadTrimmer(reads[i], cigarElements[i], mds[i], false, trimMismatches));
+			blackhole.consume(trimWithReadTrimmer(reads[i], cigarElements[i], mds[i], true, trimMismatches));
+		}
+	}
+
+	private static byte[] trimWithReadTrimmer(String read, List<CigarElement> cigar, String md, boolean isReverse,
+		int trimMismatches) {
+
+		// the bases are masked in place in the record, the copy stands for its getReadBases()
+		byte[] bases = read.getBytes();
+		int trimPoint = ReadTrimmer.findTrimPoint(cigar, md, isReverse, bases.length, trimMismatches);
+		if (trimPoint != -1) {
+			if (isReverse) {
+				Arrays.fill(bases, 0, trimPoint, (byte) ListerFilter.TRIMMED_BASE);
+			} else {
+				Arrays.fill(bases, trimPoint, bases.length, (byte) ListerFilter.TRIMMED_BASE);
+			}
+		}
+		return bases;
+	}
+
+	private static String trimWithIterators(String read, String cigar, String md, boolean isReverse,
+		int trimMismatches) {
+
+		int trimPoint = IteratorReadTrimmer.findTrimPoint(cigar, md, isReverse, read.length(), trimMismatches);
+		if (trimPoint != -1) {
+			if (isReverse) {
+				return read.substring(0, trimPoint).replaceAll(".", "" + ListerFilter.TRIMMED_BASE)
+					+ read.substring(trimPoint);
+			} else {
+				return read.substring(0, trimPoint)
+					+ read.substring(trimPoint).replaceAll(".", "" + ListerFilter.TRIMMED_BASE);
+			}
+		}
+		return read;
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		Options options = new OptionsBuilder()
+			.include(TrimBenchmark.class.getSimpleName())
+			.warmupIterations(5)
+			.measurementIterations(5)
+			.forks(1)
+			.build();
+
+		new Runner(options).run();
+	}
+}
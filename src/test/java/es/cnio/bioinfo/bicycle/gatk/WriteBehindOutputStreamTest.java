@@ -0,0 +1,82 @@
+package es.cnio.bioinfo.bicycle.gatk;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+public class WriteBehindOutputStreamTest {
+
+	@Test
+	public void testWritesAllTheData() throws IOException {
+		File file = File.createTempFile("writebehind", ".bin");
+		file.deleteOnExit();
+
+		byte[] data = new byte[1000];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) i;
+		}
+
+		WriteBehindOutputStream out = new WriteBehindOutputStream(file, false, 64);
+		out.write(data, 0, 500);
+		out.flush();
+		assertEquals(500, file.length());
+		for (int i = 500; i < data.length; i++) {
+			out.write(data[i]);
+		}
+		out.close();
+
+		byte[] written = Files.readAllBytes(file.toPath());
+		assertEquals(data.length, written.length);
+		for (int i = 0; i < data.length; i++) {
+			assertEquals(data[i], written[i]);
+		}
+	}
+
+	@Test
+	public void testFailedWriteIsRethrown() throws IOException {
+		// writes to /dev/full fail with "no space left on device"
+		File full = new File("/dev/full");
+		Assume.assumeTrue(full.canWrite());
+
+		WriteBehindOutputStream out = new WriteBehindOutputStream(full, true, 16);
+		byte[] data = new byte[16];
+		IOException error = null;
+		try {
+			// the first full buffer is written in background, the error is seen when the next one is handed over
+			for (int i = 0; i < 4; i++) {
+				out.write(data, 0, data.length);
+			}
+			out.flush();
+		} catch (IOException e) {
+			error = e;
+		}
+		assertNotNull("the write to a full device should fail", error);
+
+		// the stream keeps failing with the original error, not with a NullPointerException
+		try {
+			out.write(1);
+			fail("write after a failed write");
+		} catch (IOException e) {
+			assertEquals(error, e.getCause());
+		}
+		try {
+			out.flush();
+			fail("flush after a failed write");
+		} catch (IOException e) {
+			assertEquals(error, e.getCause());
+		}
+		try {
+			out.close();
+			fail("close after a failed write");
+		} catch (IOException e) {
+			assertEquals(error, e.getCause());
+		}
+	}
+}
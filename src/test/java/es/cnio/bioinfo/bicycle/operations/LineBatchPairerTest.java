@@ -0,0 +1,96 @@
+package es.cnio.bioinfo.bicycle.operations;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class LineBatchPairerTest {
+
+	// more lines than the queues can hold, so the producer blocks while the pairer is not consuming
+	private static final int LINES = (LineBatchPairer.LINE_BATCHES + 4) * LineBatchPairer.LINE_BATCH_SIZE;
+
+	/**
+	 * Feeds both aligners from a single thread, like the reads fan-out does: a full GA queue stops the CT lines too.
+	 */
+	private Thread startProducer(final LineBatchPairer pairer, final int CTLines, final int GALines) {
+		Thread producer = new Thread() {
+			@Override
+			public void run() {
+				for (int i = 0; i < Math.max(CTLines, GALines); i++) {
+					if (i < CTLines) {
+						pairer.getCTBatcher().add("CT" + i);
+					}
+					if (i < GALines) {
+						pairer.getGABatcher().add("GA" + i);
+					}
+				}
+				pairer.getCTBatcher().finish();
+				pairer.getGABatcher().finish();
+			}
+		};
+		producer.setDaemon(true);
+		producer.start();
+		return producer;
+	}
+
+	@Test(timeout = 30000)
+	public void testPairsAllLines() throws InterruptedException {
+		LineBatchPairer pairer = new LineBatchPairer();
+		startProducer(pairer, LINES, LINES);
+
+		final List<String> pairs = new ArrayList<String>();
+		assertTrue(pairer.pairAll(new LineBatchPairer.LinePairHandler() {
+			@Override
+			public void merge(String CTLine, String GALine) {
+				pairs.add(CTLine + "-" + GALine);
+			}
+		}));
+
+		assertEquals(LINES, pairs.size());
+		for (int i = 0; i < LINES; i++) {
+			assertEquals("CT" + i + "-GA" + i, pairs.get(i));
+		}
+	}
+
+	@Test(timeout = 30000)
+	public void testFailedMergeDrainsBothAligners() throws InterruptedException {
+		LineBatchPairer pairer = new LineBatchPairer();
+		Thread producer = startProducer(pairer, LINES, LINES);
+
+		final RuntimeException error = new RuntimeException("merge failed");
+		try {
+			pairer.pairAll(new LineBatchPairer.LinePairHandler() {
+				@Override
+				public void merge(String CTLine, String GALine) {
+					throw error;
+				}
+			});
+			fail("the merge error should be rethrown");
+		} catch (RuntimeException e) {
+			assertSame(error, e);
+		}
+
+		producer.join();
+	}
+
+	@Test(timeout = 30000)
+	public void testDifferentNumberOfLinesDrainsBothAligners() throws InterruptedException {
+		LineBatchPairer pairer = new LineBatchPairer();
+		Thread producer = startProducer(pairer, LINES, LINES + LineBatchPairer.LINE_BATCH_SIZE + 1);
+
+		assertFalse(pairer.pairAll(new LineBatchPairer.LinePairHandler() {
+			@Override
+			public void merge(String CTLine, String GALine) {
+			}
+		}));
+
+		producer.join();
+	}
+}
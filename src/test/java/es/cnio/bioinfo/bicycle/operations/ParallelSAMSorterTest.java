@@ -0,0 +1,120 @@
+package es.cnio.bioinfo.bicycle.operations;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMRecordCoordinateComparator;
+import net.sf.samtools.SAMSequenceRecord;
+import net.sf.samtools.util.CloseableIterator;
+
+public class ParallelSAMSorterTest {
+
+	// several full runs, which are spilled, and a last partial run, which is kept in memory
+	private static final int RUNS = 4;
+	private static final int RECORDS = RUNS * ParallelSAMSorter.MIN_RUN_SIZE + ParallelSAMSorter.MIN_RUN_SIZE / 2;
+
+	@Test
+	public void testSpillsAndMergesRuns() throws IOException {
+		File tmpDir = File.createTempFile("sorter", "");
+		tmpDir.delete();
+		tmpDir.mkdir();
+
+		SAMFileHeader header = createHeader();
+		List<SAMRecord> records = createRecords(header, new Random(17));
+		Map<String, String> bases = new HashMap<String, String>();
+		for (SAMRecord record : records) {
+			bases.put(record.getReadName(), record.getReadString());
+		}
+
+		// far less records in RAM than the records of a run, so the runs are as small as possible
+		ParallelSAMSorter sorter = new ParallelSAMSorter(header, 1000, tmpDir, 2);
+		try {
+			for (SAMRecord record : records) {
+				sorter.add(record);
+			}
+			sorter.doneAdding();
+			assertEquals(RUNS, tmpDir.listFiles().length);
+
+			SAMRecordCoordinateComparator comparator = new SAMRecordCoordinateComparator();
+			SAMRecord previous = null;
+			int count = 0;
+			CloseableIterator<SAMRecord> iterator = sorter.iterator();
+			try {
+				while (iterator.hasNext()) {
+					SAMRecord record = iterator.next();
+					if (previous != null) {
+						assertTrue("record " + count + " is not sorted", comparator.compare(previous, record) <= 0);
+					}
+					// each record is read back once, with its bases
+					assertEquals(bases.remove(record.getReadName()), record.getReadString());
+					previous = record;
+					count++;
+				}
+			} finally {
+				iterator.close();
+			}
+			assertEquals(RECORDS, count);
+			assertTrue(bases.isEmpty());
+		} finally {
+			sorter.cleanup();
+		}
+
+		assertEquals(0, tmpDir.listFiles().length);
+		tmpDir.delete();
+	}
+
+	private SAMFileHeader createHeader() {
+		SAMFileHeader header = new SAMFileHeader();
+		header.addSequence(new SAMSequenceRecord("chr1", 100000));
+		header.addSequence(new SAMSequenceRecord("chr2", 100000));
+		header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+		return header;
+	}
+
+	/**
+	 * Creates reads in both strands of both sequences, and some unmapped reads, in random order
+	 */
+	private List<SAMRecord> createRecords(SAMFileHeader header, Random random) {
+		char[] nucleotides = {'A', 'C', 'G', 'T'};
+		List<SAMRecord> records = new ArrayList<SAMRecord>();
+		for (int i = 0; i < RECORDS; i++) {
+			StringBuilder bases = new StringBuilder();
+			StringBuilder qualities = new StringBuilder();
+			for (int j = 0; j < 10; j++) {
+				bases.append(nucleotides[random.nextInt(nucleotides.length)]);
+				qualities.append('I');
+			}
+
+			SAMRecord record = new SAMRecord(header);
+			record.setReadName("read" + i);
+			if (random.nextInt(100) == 0) {
+				record.setReadUnmappedFlag(true);
+			} else {
+				record.setReferenceName(random.nextBoolean() ? "chr1" : "chr2");
+				// few positions, so many reads share their start
+				record.setAlignmentStart(1 + random.nextInt(5000));
+				record.setCigarString("10M");
+				record.setReadNegativeStrandFlag(random.nextBoolean());
+				record.setMappingQuality(255);
+			}
+			record.setReadString(bases.toString());
+			record.setBaseQualityString(qualities.toString());
+			records.add(record);
+		}
+		Collections.shuffle(records, random);
+		return records;
+	}
+}
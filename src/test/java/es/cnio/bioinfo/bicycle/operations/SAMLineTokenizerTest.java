@@ -0,0 +1,51 @@
+package es.cnio.bioinfo.bicycle.operations;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class SAMLineTokenizerTest {
+
+	private SAMLineTokenizer tokenizer = new SAMLineTokenizer();
+
+	@Test
+	public void testRestoreForwardRead() {
+		tokenizer.parse("read1||ACGCA\t0\tchr1\t10\t255\t5M\t*\t0\t0\tATGTA\tIIIII\tAS:i:-3\n");
+		tokenizer.restoreOriginalRead();
+		assertEquals("read1\t0\tchr1\t10\t255\t5M\t*\t0\t0\tACGCA\tIIIII\tAS:i:-3", tokenizer.toString());
+		assertTrue(tokenizer.isAligned());
+		assertEquals(-3, tokenizer.getIntTag("AS"));
+	}
+
+	@Test
+	public void testRestoreReverseRead() {
+		tokenizer.parse("read1||ACGCN\t16\tchr1\t10\t255\t5M\t*\t0\t0\tNATAT\tIIIII\tNM:i:1");
+		tokenizer.restoreOriginalRead();
+		assertEquals("read1\t16\tchr1\t10\t255\t5M\t*\t0\t0\tNGCGT\tIIIII\tNM:i:1", tokenizer.toString());
+		assertEquals(1, tokenizer.getIntTag("NM"));
+	}
+
+	@Test
+	public void testRestorePairedRead() {
+		tokenizer.parse("pair||AACC||GGTT\t129\tchr1\t10\t255\t*\t*\t0\t0\tAATT\tIIII");
+		tokenizer.restoreOriginalRead();
+		assertEquals("pair/2\t129\tchr1\t10\t255\t*\t*\t0\t0\tGGTT\tIIII", tokenizer.toString());
+		assertFalse(tokenizer.isAligned());
+
+		SAMLineTokenizer mate1 = new SAMLineTokenizer();
+		mate1.parse("pair||AACC||GGTT\t65\tchr1\t10\t255\t*\t*\t0\t0\tAATT\tIIII");
+		mate1.restoreOriginalRead();
+		assertTrue(mate1.hasSameReadName(tokenizer, true));
+		assertFalse(mate1.hasSameReadName(tokenizer, false));
+	}
+
+	@Test
+	public void testHeaderIsNotModified() {
+		tokenizer.parse("@SQ\tSN:chr1\tLN:1000 ");
+		tokenizer.restoreOriginalRead();
+		assertTrue(tokenizer.isHeader());
+		assertEquals("@SQ\tSN:chr1\tLN:1000", tokenizer.toString());
+	}
+}
@@ -21,6 +21,7 @@ along with bicycle Project.  If not, see <http://www.gnu.org/licenses/>.
 
 package es.cnio.bioinfo.bicycle.test;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import java.io.File;
@@ -140,15 +141,15 @@ public class AnalysisTest {
 					assertTrue(ma.getSummaryFile(reference, sample).exists());
 
 					System.err.println("====METHYLATION-WATSON=====");
-					System.err.println(Utils.readFile(ma.getMethylationFile(Strand.WATSON, reference, sample)));
-					assertTrue(Utils.readFile(ma.getMethylationFile(Strand.WATSON, reference, sample)).indexOf
+					System.err.println(Utils.readMethylationFile(ma.getMethylationFile(Strand.WATSON, reference, sample)));
+					assertTrue(Utils.readMethylationFile(ma.getMethylationFile(Strand.WATSON, reference, sample)).indexOf
 								("chr10\t6\tWATSON\tCG") != -1);
-					assertTrue(Utils.readFile(ma.getMethylationFile(Strand.WATSON, reference, sample)).indexOf
+					assertTrue(Utils.readMethylationFile(ma.getMethylationFile(Strand.WATSON, reference, sample)).indexOf
 								("chr10\t14\tWATSON\tCHG") != -1);
 					System.err.println("===========================");
 
 					System.err.println("====METHYLATION-CRICK=====");
-					System.err.println(Utils.readFile(ma.getMethylationFile(Strand.CRICK, reference, sample)));
+					System.err.println(Utils.readMethylationFile(ma.getMethylationFile(Strand.CRICK, reference, sample)));
 					System.err.println("===========================");
 
 
@@ -206,17 +207,17 @@ public class AnalysisTest {
 					assertTrue(ma.getSummaryFile(reference, sample).exists());
 
 					System.err.println("====METHYLATION-WATSON=====");
-					System.err.println(Utils.readFile(ma.getMethylationFile(Strand.WATSON, reference, sample)));
+					System.err.println(Utils.readMethylationFile(ma.getMethylationFile(Strand.WATSON, reference, sample)));
 					//trim, this line must have depth 4, not 5 due to trimming...
 
-						assertTrue(Utils.readFile(ma.getMethylationFile(Strand.WATSON, reference, sample)).indexOf
+						assertTrue(Utils.readMethylationFile(ma.getMethylationFile(Strand.WATSON, reference, sample)).indexOf
 								("chr10\t59\tWATSON\tCG\t4\t4\t4\t1.0\tCCCC") != -1);
 					System.err.println("===========================");
 
 					System.err.println("====METHYLATION-CRICK=====");
-					System.err.println(Utils.readFile(ma.getMethylationFile(Strand.CRICK, reference, sample)));
+					System.err.println(Utils.readMethylationFile(ma.getMethylationFile(Strand.CRICK, reference, sample)));
 					//trim test, the following line must be missing
-					assertTrue(Utils.readFile(ma.getMethylationFile(Strand.CRICK, reference, sample)).indexOf
+					assertTrue(Utils.readMethylationFile(ma.getMethylationFile(Strand.CRICK, reference, sample)).indexOf
 							("chr10\t16\tCRICK\tCHG\t1\t1\t1\t1.0\tG\t0.0\tfalse\tfalse") == -1);
 					System.err.println("===========================");
 
@@ -273,17 +274,17 @@ public class AnalysisTest {
 					assertTrue(ma.getSummaryFile(reference, sample).exists());
 
 					System.err.println("====METHYLATION-WATSON=====");
-					System.err.println(Utils.readFile(ma.getMethylationFile(Strand.WATSON, reference, sample)));
-						assertTrue(Utils.readFile(ma.getMethylationFile(Strand.WATSON, reference, sample)).indexOf
+					System.err.println(Utils.readMethylationFile(ma.getMethylationFile(Strand.WATSON, reference, sample)));
+						assertTrue(Utils.readMethylationFile(ma.getMethylationFile(Strand.WATSON, reference, sample)).indexOf
 								("chr10\t6\tWATSON\tCG") != -1);
-						assertTrue(Utils.readFile(ma.getMethylationFile(Strand.WATSON, reference, sample)).indexOf
+						assertTrue(Utils.readMethylationFile(ma.getMethylationFile(Strand.WATSON, reference, sample)).indexOf
 								("chr10\t14\tWATSON\tCHG") != -1);
 					System.err.println("===========================");
 
 					System.err.println("====METHYLATION-CRICK=====");
-					System.err.println(Utils.readFile(ma.getMethylationFile(Strand.CRICK, reference, sample)));
+					System.err.println(Utils.readMethylationFile(ma.getMethylationFile(Strand.CRICK, reference, sample)));
 					if (!this.bowtie2Local) {
-						assertTrue(Utils.readFile(ma.getMethylationFile(Strand.CRICK, reference, sample)).indexOf
+						assertTrue(Utils.readMethylationFile(ma.getMethylationFile(Strand.CRICK, reference, sample)).indexOf
 								("chr10\t36\tCRICK\tCHH\t1\t1\t0\t0.0\tA\t1.0\tfalse\tfalse") != -1);
 					}
 					System.err.println("===========================");
@@ -356,12 +357,12 @@ public class AnalysisTest {
 					assertTrue(ma.getSummaryFile(reference, sample).exists());
 
 					System.err.println("====METHYLATION-WATSON=====");
-					System.err.println(Utils.readFile(ma.getMethylationFile(Strand.WATSON, reference, sample)));
+					System.err.println(Utils.readMethylationFile(ma.getMethylationFile(Strand.WATSON, reference, sample)));
 
 					System.err.println("===========================");
 
 					System.err.println("====METHYLATION-CRICK=====");
-					System.err.println(Utils.readFile(ma.getMethylationFile(Strand.CRICK, reference, sample)));
+					System.err.println(Utils.readMethylationFile(ma.getMethylationFile(Strand.CRICK, reference, sample)));
 					System.err.println("===========================");
 
 
@@ -424,12 +425,12 @@ public class AnalysisTest {
 					assertTrue(ma.getSummaryFile(reference, sample).exists());
 
 					System.err.println("====METHYLATION-WATSON=====");
-					System.err.println(Utils.readFile(ma.getMethylationFile(Strand.WATSON, reference, sample)));
+					System.err.println(Utils.readMethylationFile(ma.getMethylationFile(Strand.WATSON, reference, sample)));
 					if (!this.bowtie2Local) {
-						assertTrue(Utils.readFile(ma.getMethylationFile(Strand.WATSON, reference, sample)).indexOf
+						assertTrue(Utils.readMethylationFile(ma.getMethylationFile(Strand.WATSON, reference, sample)).indexOf
 								("chr10\t59\tWATSON\tCG\t5\t5\t5\t1.0\tCCCCC") != -1);
 					} else {
-						assertTrue(Utils.readFile(ma.getMethylationFile(Strand.WATSON, reference, sample)).indexOf
+						assertTrue(Utils.readMethylationFile(ma.getMethylationFile(Strand.WATSON, reference, sample)).indexOf
 								("chr10\t59\tWATSON\tCG\t2\t2\t2\t1.0\tCC") != -1);
 					}
 
@@ -437,7 +438,7 @@ public class AnalysisTest {
 					System.err.println("===========================");
 
 					System.err.println("====METHYLATION-CRICK=====");
-					System.err.println(Utils.readFile(ma.getMethylationFile(Strand.CRICK, reference, sample)));
+					System.err.println(Utils.readMethylationFile(ma.getMethylationFile(Strand.CRICK, reference, sample)));
 					System.err.println("===========================");
 
 
@@ -502,21 +503,21 @@ public class AnalysisTest {
 					assertTrue(ma.getSummaryFile(reference, sample).exists());
 
 					System.err.println("====METHYLATION-WATSON=====");
-					System.err.println(Utils.readFile(ma.getMethylationFile(Strand.WATSON, reference, sample)));
+					System.err.println(Utils.readMethylationFile(ma.getMethylationFile(Strand.WATSON, reference, sample)));
 
 					// with the uniquealignments option, the --local mode generates in this dataset many reads with
 					// multiple alignments, with are then filtered
 					if (!this.bowtie2Local) {
-						assertTrue(Utils.readFile(ma.getMethylationFile(Strand.WATSON, reference, sample)).indexOf
+						assertTrue(Utils.readMethylationFile(ma.getMethylationFile(Strand.WATSON, reference, sample)).indexOf
 								("chr10\t59\tWATSON\tCG\t5\t5\t5\t1.0\tCCCCC") != -1);
 					} else {
-						assertTrue(Utils.readFile(ma.getMethylationFile(Strand.WATSON, reference, sample)).indexOf
+						assertTrue(Utils.readMethylationFile(ma.getMethylationFile(Strand.WATSON, reference, sample)).indexOf
 								("chr10\t59\tWATSON\tCG\t2\t2\t2\t1.0\tCC") != -1);
 					}
 					System.err.println("===========================");
 
 					System.err.println("====METHYLATION-CRICK=====");
-					System.err.println(Utils.readFile(ma.getMethylationFile(Strand.CRICK, reference, sample)));
+					System.err.println(Utils.readMethylationFile(ma.getMethylationFile(Strand.CRICK, reference, sample)));
 					System.err.println("===========================");
 
 
@@ -535,4 +536,67 @@ public class AnalysisTest {
 		}
 	}
 
+	@Test
+	public void nativeCallerMatchesWalker() throws IOException, InterruptedException {
+		// without clonal removal, with clonal reads marked before calling, and with clonal reads removed per locus
+		assertNativeCallerMatchesWalker(false, true);
+		assertNativeCallerMatchesWalker(true, true);
+		assertNativeCallerMatchesWalker(true, false);
+	}
+
+	private void assertNativeCallerMatchesWalker(boolean removeClonal, boolean markClonalReads) throws IOException,
+			InterruptedException {
+		Project project = prepareProject();
+		try {
+
+			MethylationAnalysis ma = new MethylationAnalysis(project);
+			ma.setMarkClonalReads(markClonalReads);
+
+			List<File> bedFiles = Arrays.asList(new File(Utils.getBedsDirectory()).listFiles(new FilenameFilter() {
+
+				@Override
+				public boolean accept(File dir, String name) {
+					return name.endsWith(".bed");
+				}
+			}));
+
+			for (Sample sample : project.getSamples()) {
+				for (Reference reference : project.getReferences()) {
+					String[][] results = new String[2][];
+					for (int i = 0; i < 2; i++) {
+						ma.setNativeCaller(i == 1);
+						ma.analyzeWithErrorFromControlGenome(
+								reference,
+								sample,
+								true, //trim
+								4,
+								true,
+								false,
+								true,
+								removeClonal,
+								true, //correct non-CG
+								1,
+								0.01,
+								4,
+								bedFiles,
+								"control");
+						File summary = ma.getSummaryFile(reference, sample);
+						results[i] = new String[]{
+								Utils.readFile(ma.getMethylcytosinesFile(reference, sample)),
+								// the date of the analysis is different
+								Utils.readFile(summary).replaceAll("Date: .*\\n", ""),
+								Utils.readFile(new File(summary.getAbsolutePath() + ".filters"))
+						};
+					}
+
+					String config = "removeClonal=" + removeClonal + ", markClonalReads=" + markClonalReads;
+					assertEquals("methylcytosines, " + config, results[0][0], results[1][0]);
+					assertEquals("summary, " + config, results[0][1], results[1][1]);
+					assertEquals("filters, " + config, results[0][2], results[1][2]);
+				}
+			}
+		} finally {
+			Utils.deleteDirOnJVMExit(project.getProjectDirectory());
+		}
+	}
 }
@@ -138,11 +138,11 @@ public class NonDirectionalAnalysisTest {
 					assertTrue(ma.getSummaryFile(reference, sample).exists());
 
 					System.err.println("====METHYLATION-WATSON=====");
-					System.err.println(Utils.readFile(ma.getMethylationFile(Strand.WATSON, reference, sample)));
+					System.err.println(Utils.readMethylationFile(ma.getMethylationFile(Strand.WATSON, reference, sample)));
 					System.err.println("===========================");
 
 					System.err.println("====METHYLATION-CRICK=====");
-					System.err.println(Utils.readFile(ma.getMethylationFile(Strand.CRICK, reference, sample)));
+					System.err.println(Utils.readMethylationFile(ma.getMethylationFile(Strand.CRICK, reference, sample)));
 					System.err.println("===========================");
 
 
@@ -21,6 +21,7 @@ along with bicycle Project.  If not, see <http://www.gnu.org/licenses/>.
 
 package es.cnio.bioinfo.bicycle.test;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import java.io.File;
@@ -30,6 +31,7 @@ import org.junit.Test;
 
 import es.cnio.bioinfo.bicycle.Project;
 import es.cnio.bioinfo.bicycle.Sample;
+import es.cnio.bioinfo.bicycle.gatk.BadBisulfiteFilter;
 import es.cnio.bioinfo.bicycle.operations.SampleBisulfitation;
 
 public class ReadsBisulfitationTest {
@@ -72,4 +74,53 @@ public class ReadsBisulfitationTest {
 		}
 	}
 
+	@Test
+	public void testPairedBadBisulfitedMates() throws IOException {
+		File tempDir = Utils.generateTempDirName("newproject");
+		File readsDir = Utils.generateTempDirName("reads");
+		readsDir.mkdir();
+		File sample1 = new File(readsDir.getAbsolutePath() + File.separator + "sample01");
+		sample1.mkdir();
+		// pair2 has only mate 2 unconverted (4 cytosines out of CpG in the Crick strand), and pair3 has only mate 1
+		// unconverted (4 cytosines out of CpG in the Watson strand)
+		Utils.append(Utils.touchFile(sample1, "reads_1.fastq"),
+				"@pair1/1\nACGTACGTAA\n+\nIIIIIIIIII\n" +
+				"@pair2/1\nACGTACGTAA\n+\nIIIIIIIIII\n" +
+				"@pair3/1\nCACACACATT\n+\nIIIIIIIIII\n" +
+				"@pair4/1\nACGTACGTAA\n+\n@IIIIIIIII\n");
+		Utils.append(Utils.touchFile(sample1, "reads_2.fastq"),
+				"@pair1/2\nTTCGAACGTT\n+\nIIIIIIIIII\n" +
+				"@pair2/2\nAGAGAGAGTT\n+\nIIIIIIIIII\n" +
+				"@pair3/2\nTTCGAACGTT\n+\nIIIIIIIIII\n" +
+				"@pair4/2\nTTCGAACGTT\n+\n@IIIIIIIII\n");
+		try {
+			Project p = Project.buildNewProject(
+					tempDir,
+					new File(Utils.getReferenceDirectory()),
+					readsDir,
+					new File(Utils.getBowtiePath()),
+					new File(Utils.getBowtie2Path()),
+					new File(Utils.getSamtoolsPath()),
+					true, true, "_1.fastq");
+			Sample sample = p.getSamples().get(0);
+			SampleBisulfitation sb = new SampleBisulfitation(sample);
+			sb.computeSampleBisulfitation(false, new BadBisulfiteFilter());
+
+			// both mates of a pair are kept or removed together, so the files keep the same order of pairs
+			File mate1 = sample.getReadsMate1Files().get(0);
+			File mate2 = sample.getReadsMate2Files().get(0);
+			assertEquals("@pair1/1||ACGTACGTAA\nATGTATGTAA\n+\nIIIIIIIIII\n" +
+					"@pair4/1||ACGTACGTAA\nATGTATGTAA\n+\n@IIIIIIIII", Utils.readFile(sb.getBisulfitedFile(mate1)));
+			assertEquals("@pair1/2||TTCGAACGTT\nTTTGAATGTT\n+\nIIIIIIIIII\n" +
+					"@pair4/2||TTCGAACGTT\nTTTGAATGTT\n+\n@IIIIIIIII", Utils.readFile(sb.getBisulfitedFile(mate2)));
+			assertEquals("@pair2/1\nACGTACGTAA\n+\nIIIIIIIIII\n" +
+					"@pair3/1\nCACACACATT\n+\nIIIIIIIIII", Utils.readFile(sb.getUnconvertedReads(mate1)));
+			assertEquals("@pair2/2\nAGAGAGAGTT\n+\nIIIIIIIIII\n" +
+					"@pair3/2\nTTCGAACGTT\n+\nIIIIIIIIII", Utils.readFile(sb.getUnconvertedReads(mate2)));
+		} finally {
+			Utils.deleteDir(tempDir);
+			Utils.deleteDir(readsDir);
+		}
+	}
+
 }
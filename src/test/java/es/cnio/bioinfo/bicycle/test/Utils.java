@@ -33,6 +33,9 @@ import java.util.Properties;
 import java.util.UUID;
 import java.util.logging.Logger;
 
+import es.cnio.bioinfo.bicycle.MethylationCall;
+import es.cnio.bioinfo.bicycle.gatk.MethylationCallReader;
+
 public class Utils {
 
 	private static final Logger logger = Logger.getLogger(Utils.class.getName());
@@ -89,6 +92,24 @@ public class Utils {
 		writer.close();
 	}
 
+	/**
+	 * Reads a binary .methylation file, returning its calls as text, one per line
+	 */
+	public static String readMethylationFile(File f) throws IOException {
+		StringBuilder builder = new StringBuilder();
+		MethylationCallReader reader = new MethylationCallReader(new FileInputStream(f));
+		try {
+			boolean first = true;
+			for (MethylationCall call = reader.read(); call != null; call = reader.read(), first = false) {
+				if (!first) builder.append("\n");
+				builder.append(call.marshall());
+			}
+		} finally {
+			reader.close();
+		}
+		return builder.toString();
+	}
+
 	public static String readFile(File f) throws IOException {
 		StringBuilder builder = new StringBuilder();
 		BufferedReader reader = new BufferedReader(new FileReader(f));